@@ -0,0 +1,104 @@
+import java.sql.SQLException;
+import java.util.*;
+
+// Bounded read-through cache of accounts, used instead of the full in-memory
+// registry when the table is larger than the heap. Entries are kept in LRU order
+// and evicted when either the entry budget or the estimated byte budget is exceeded.
+// A miss loads the account with a primary-key SELECT.
+class AccountCache {
+
+    interface Loader {
+        BankAccount load(int accountNumber) throws SQLException;
+    }
+
+    private static final long ENTRY_OVERHEAD_BYTES = 120; // object headers, fields and map entry
+
+    private final long maxEntries;
+    private final long maxBytes;
+    private final Loader loader;
+    private final LinkedHashMap<Integer, BankAccount> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+
+    // Metrics
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public AccountCache(long maxEntries, long maxBytes, Loader loader) {
+        this.maxEntries = maxEntries > 0 ? maxEntries : Long.MAX_VALUE;
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.loader = loader;
+    }
+
+    // Return the account, loading it on a miss; null if it does not exist
+    public BankAccount get(int accNo) throws SQLException {
+        synchronized (this) {
+            BankAccount account = entries.get(accNo);
+            if (account != null) {
+                hits++;
+                return account;
+            }
+            misses++;
+        }
+
+        // Load outside the lock so one slow query does not block other lookups
+        BankAccount loaded = loader.load(accNo);
+        if (loaded == null) {
+            return null;
+        }
+        synchronized (this) {
+            BankAccount existing = entries.get(accNo);
+            if (existing != null) {
+                return existing; // another thread loaded it first
+            }
+            entries.put(accNo, loaded);
+            bytes += estimateSize(loaded);
+            evictIfNeeded();
+            return loaded;
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<BankAccount> it = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            BankAccount eldest = it.next();
+            it.remove();
+            bytes -= estimateSize(eldest);
+            evictions++;
+        }
+    }
+
+    // The cached account, or null if it is not cached; never loads
+    public synchronized BankAccount peek(int accNo) {
+        return entries.get(accNo);
+    }
+
+    // Drop an account so the next lookup reads it from the database again
+    public synchronized void invalidate(int accNo) {
+        BankAccount removed = entries.remove(accNo);
+        if (removed != null) {
+            bytes -= estimateSize(removed);
+            invalidations++;
+        }
+    }
+
+    private static long estimateSize(BankAccount account) {
+        return ENTRY_OVERHEAD_BYTES + stringSize(account.getHoldername()) + stringSize(account.getEmail());
+    }
+
+    private static long stringSize(String s) {
+        return s == null ? 0 : 40 + s.length();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        double hitRate = lookups == 0 ? 0 : 100.0 * hits / lookups;
+        return String.format("entries=%d bytes=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d invalidations=%d",
+                entries.size(), bytes, hits, misses, hitRate, evictions, invalidations);
+    }
+}
@@ -0,0 +1,149 @@
+import java.sql.*;
+import java.util.*;
+
+// SQL for the accounts table: its first definition and the upgrades that predate
+// SchemaMigrations (which runs them as version 1), and the single-row insert
+// and balance updates of the menu. The statements are prepared through the connection
+// pool, which keeps them open per connection (see ConnectionPool), and the driver
+// prepares them on the server (useServerPrepStmts in BankingApp.DRIVER_OPTIONS), so a
+// call only binds its parameters and sends them in binary form.
+class AccountDao {
+    private static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS accounts (" +
+            "account_number INT PRIMARY KEY, " +
+            "holder_name VARCHAR(100), " +
+            "balance BIGINT, " +
+            "email VARCHAR(100), " +
+            "account_type VARCHAR(20), " +
+            "version BIGINT NOT NULL DEFAULT 0, " +
+            "updated_at TIMESTAMP(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6) ON UPDATE CURRENT_TIMESTAMP(6), " +
+            "INDEX idx_accounts_updated_at (updated_at))";
+
+    // account_type codes (SchemaMigrations version 3)
+    static final byte SAVINGS = 0;
+    static final byte CURRENT = 1;
+
+    static final String INSERT_SQL = "INSERT INTO accounts (account_number, holder_name, balance, email, " +
+            "account_type) VALUES (?, ?, ?, ?, ?)";
+    static final String UPDATE_BALANCE_SQL =
+            "UPDATE accounts SET balance = ?, version = version + 1 WHERE account_number = ?";
+    private static final String VERSION_SQL = "SELECT version FROM accounts WHERE account_number = ?";
+
+    // Create the table, or bring one from before the cents, version and updated_at columns up to date
+    static void createTable(Statement stmt) throws SQLException {
+        stmt.executeUpdate(CREATE_TABLE_SQL);
+        migrateBalanceToCents(stmt);
+        addVersionColumn(stmt);
+        addUpdatedAtColumn(stmt);
+    }
+
+    static byte typeCode(BankAccount account) {
+        return account instanceof SavingsAccount ? SAVINGS : CURRENT;
+    }
+
+    // Insert a new account on its shard
+    static void insert(BankAccount account) throws SQLException {
+        try (Connection conn = BankingApp.getConnection(account.getAccountNumber());
+                PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL)) {
+            pstmt.setInt(1, account.getAccountNumber());
+            pstmt.setString(2, account.getHoldername());
+            pstmt.setLong(3, account.getBalance());
+            pstmt.setString(4, account.getEmail());
+            pstmt.setByte(5, typeCode(account));
+            pstmt.executeUpdate();
+        }
+    }
+
+    // Overwrite an account's balance without a version check. Returns the row's new
+    // version, or -1 if there is no such row.
+    static long updateBalance(int accountNumber, long newBalance) throws SQLException {
+        return updateBalances(new int[] { accountNumber }, new long[] { newBalance })[0];
+    }
+
+    // Overwrite balances that change together (the two sides of a transfer). Rows on the
+    // same shard are written in one transaction; rows on different shards in one each.
+    // The new versions are read inside the same transaction, while the row locks are held,
+    // so they belong to these balances; -1 for a row that does not exist.
+    static long[] updateBalances(int[] accountNumbers, long[] balances) throws SQLException {
+        long[] versions = new long[accountNumbers.length];
+        Map<ShardRouter.Shard, List<Integer>> byShard = new LinkedHashMap<>();
+        for (int i = 0; i < accountNumbers.length; i++) {
+            byShard.computeIfAbsent(BankingApp.shards.shardFor(accountNumbers[i]), s -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<ShardRouter.Shard, List<Integer>> group : byShard.entrySet()) {
+            try (Connection conn = BankingApp.getConnection(group.getKey())) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement pstmt = conn.prepareStatement(UPDATE_BALANCE_SQL);
+                        PreparedStatement select = conn.prepareStatement(VERSION_SQL)) {
+                    for (int i : group.getValue()) {
+                        pstmt.setLong(1, balances[i]);
+                        pstmt.setInt(2, accountNumbers[i]);
+                        pstmt.addBatch();
+                    }
+                    int[] counts = pstmt.executeBatch();
+                    for (int b = 0; b < counts.length; b++) {
+                        if (counts[b] == 0) {
+                            int accNo = accountNumbers[group.getValue().get(b)];
+                            BankingApp.refreshShards();
+                            throw new SQLException("Account " + accNo + " not found on " + group.getKey());
+                        }
+                    }
+                    for (int i : group.getValue()) {
+                        select.setInt(1, accountNumbers[i]);
+                        try (ResultSet rs = select.executeQuery()) {
+                            versions[i] = rs.next() ? rs.getLong(1) : -1;
+                        }
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            }
+        }
+        return versions;
+    }
+
+    // Convert a DOUBLE balance column (amount in units) to BIGINT cents.
+    // Each step can be re-run, so an interrupted migration resumes on the next start.
+    static void migrateBalanceToCents(Statement stmt) throws SQLException {
+        String balanceType = columnType(stmt, "balance");
+        String centsType = columnType(stmt, "balance_cents");
+        if (centsType == null && !"double".equals(balanceType)) {
+            return; // already migrated
+        }
+        System.out.println("Migrating balances to cents...");
+        if (centsType == null) {
+            stmt.executeUpdate("ALTER TABLE accounts ADD COLUMN balance_cents BIGINT NULL");
+        }
+        stmt.executeUpdate("UPDATE accounts SET balance_cents = ROUND(balance * 100) WHERE balance_cents IS NULL");
+        stmt.executeUpdate("ALTER TABLE accounts DROP COLUMN balance, " +
+                "CHANGE COLUMN balance_cents balance BIGINT NOT NULL");
+        System.out.println("Balance migration completed.");
+    }
+
+    // Row version for optimistic concurrency between application instances
+    static void addVersionColumn(Statement stmt) throws SQLException {
+        if (columnType(stmt, "version") == null) {
+            stmt.executeUpdate("ALTER TABLE accounts ADD COLUMN version BIGINT NOT NULL DEFAULT 0");
+            System.out.println("Added version column to accounts.");
+        }
+    }
+
+    // Time of the last change to each row, so a restart from a snapshot image reads only newer rows
+    static void addUpdatedAtColumn(Statement stmt) throws SQLException {
+        if (columnType(stmt, "updated_at") == null) {
+            stmt.executeUpdate("ALTER TABLE accounts ADD COLUMN updated_at TIMESTAMP(6) NOT NULL " +
+                    "DEFAULT CURRENT_TIMESTAMP(6) ON UPDATE CURRENT_TIMESTAMP(6), " +
+                    "ADD INDEX idx_accounts_updated_at (updated_at)");
+            System.out.println("Added updated_at column to accounts.");
+        }
+    }
+
+    // Data type of a column of the accounts table, or null if the column does not exist
+    static String columnType(Statement stmt, String column) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT DATA_TYPE FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'accounts' AND COLUMN_NAME = '" + column + "'")) {
+            return rs.next() ? rs.getString(1).toLowerCase() : null;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Loads the accounts table into the registry page by page.
+// Pages are read with keyset pagination on account_number (no OFFSET scans and
+// no single huge result set), one shard after the other, while a second thread
+// inserts the previous page into the registry. The load can run in the background;
+// until it completes, lookups that miss the registry fall back to a primary-key SELECT.
+// A load stopped by an error is never marked complete: lookups keep falling back to
+// the database, and callers waiting for the whole book get the error instead.
+class AccountLoader {
+    static final String SELECT_COLUMNS =
+            "SELECT account_number, holder_name, balance, email, account_type, version FROM accounts";
+    static final String PAGE_SQL = SELECT_COLUMNS + " WHERE account_number > ? ORDER BY account_number LIMIT ?";
+    static final String BY_NUMBER_SQL = SELECT_COLUMNS + " WHERE account_number = ?";
+    private static final List<BankAccount> END = new ArrayList<>();
+
+    // Where loaded pages go
+    interface PageSink {
+        int addAll(List<BankAccount> page);
+    }
+
+    private final AccountRegistry registry;
+    private final PageSink sink;
+    private final int pageSize;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean complete;
+    private volatile SQLException failure; // why the load stopped before the end
+    private volatile long rowsLoaded;
+    private long startNanos;
+    private long elapsedNanos;
+
+    public AccountLoader(AccountRegistry registry, int pageSize) {
+        this(registry, registry::addAll, pageSize);
+    }
+
+    public AccountLoader(AccountRegistry registry, PageSink sink, int pageSize) {
+        this.registry = registry;
+        this.sink = sink;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    // Map the current row to an account object
+    static BankAccount readAccount(ResultSet rs) throws SQLException {
+        int accNo = rs.getInt("account_number");
+        String name = rs.getString("holder_name");
+        long balance = rs.getLong("balance");
+        String email = rs.getString("email");
+        byte type = rs.getByte("account_type");
+
+        BankAccount account = BankAccount.restore(type == AccountDao.SAVINGS, accNo, name, balance, email);
+        account.markPersisted(balance, rs.getLong("version"));
+        return account;
+    }
+
+    // Load the whole table, returning when every page is in the registry
+    public void loadAll() throws SQLException {
+        startNanos = System.nanoTime();
+        BlockingQueue<List<BankAccount>> pages = new ArrayBlockingQueue<>(4);
+        Thread indexer = new Thread(() -> index(pages), "account-indexer");
+        indexer.start();
+
+        boolean finished = false;
+        try {
+            for (ShardRouter.Shard shard : BankingApp.shards.shards()) {
+                int lastAccNo = Integer.MIN_VALUE;
+                while (true) {
+                    List<BankAccount> page = new ArrayList<>(pageSize);
+                    lastAccNo = readPage(shard, lastAccNo, page);
+                    if (page.isEmpty()) {
+                        break;
+                    }
+                    pages.put(page);
+                    if (page.size() < pageSize) {
+                        break; // every row read is kept, so a short page is the end of the shard
+                    }
+                }
+            }
+            finished = true;
+        } catch (SQLException e) {
+            failure = e;
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new SQLException("Account load interrupted", e);
+        } finally {
+            try {
+                pages.put(END);
+                indexer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            elapsedNanos = System.nanoTime() - startNanos;
+            if (finished) {
+                complete = true;
+            } else if (failure == null) {
+                failure = new SQLException("Account load stopped");
+            }
+            done.countDown();
+        }
+    }
+
+    // Read one page after the given account number, returns the last account number read
+    private int readPage(ShardRouter.Shard shard, int afterAccNo, List<BankAccount> page) throws SQLException {
+        int last = afterAccNo;
+        try (Connection conn = BankingApp.getConnection(shard);
+                PreparedStatement pstmt = conn.prepareStatement(PAGE_SQL)) {
+            pstmt.setFetchSize(pageSize);
+            pstmt.setInt(1, afterAccNo);
+            pstmt.setInt(2, pageSize);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    last = rs.getInt("account_number");
+                    page.add(readAccount(rs));
+                }
+            }
+        }
+        return last;
+    }
+
+    private void index(BlockingQueue<List<BankAccount>> pages) {
+        try {
+            while (true) {
+                List<BankAccount> page = pages.take();
+                if (page == END) {
+                    return;
+                }
+                // Accounts already loaded on demand are kept, they may have newer balances
+                sink.addAll(page);
+                rowsLoaded += page.size();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Start loading in a background thread and return immediately
+    public void loadInBackground() {
+        Thread loader = new Thread(() -> {
+            try {
+                loadAll();
+                System.out.println("\n" + progress());
+            } catch (SQLException e) {
+                System.out.println("\nError loading accounts: " + e.getMessage());
+            }
+        }, "account-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    // Look up a single account while the bulk load is still running
+    public BankAccount loadOne(int accNo) throws SQLException {
+        BankAccount account = readOne(accNo);
+        if (account != null && !registry.add(account)) {
+            return registry.get(accNo); // the bulk load got there first
+        }
+        return account;
+    }
+
+    // Read one account by primary key without touching the registry, null if it does not exist
+    static BankAccount readOne(int accNo) throws SQLException {
+        try (Connection conn = BankingApp.getConnection(accNo);
+                PreparedStatement pstmt = conn.prepareStatement(BY_NUMBER_SQL)) {
+            pstmt.setInt(1, accNo);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return readAccount(rs);
+            }
+        }
+    }
+
+    // Read all accounts whose email or holder_name equals the value (case-insensitive)
+    static List<BankAccount> readWhere(String column, String value) throws SQLException {
+        if (!column.equals("email") && !column.equals("holder_name")) {
+            throw new IllegalArgumentException("Unsupported column: " + column);
+        }
+        List<BankAccount> result = new ArrayList<>();
+        for (ShardRouter.Shard shard : BankingApp.shards.shards()) {
+            try (Connection conn = BankingApp.getConnection(shard);
+                    PreparedStatement pstmt = conn.prepareStatement(SELECT_COLUMNS + " WHERE " + column + " = ?")) {
+                pstmt.setString(1, value);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(readAccount(rs));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // The accounts were loaded some other way (from snapshot images)
+    public void markLoaded(long rows, long nanos) {
+        rowsLoaded = rows;
+        elapsedNanos = nanos;
+        complete = true;
+        done.countDown();
+    }
+
+    // Every account is in the registry
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // Wait until every account is in the registry; throws if the load failed partway
+    public void awaitCompletion() throws InterruptedException, SQLException {
+        done.await();
+        if (!complete) {
+            throw new SQLException("Accounts were only partly loaded: " + failure.getMessage(), failure);
+        }
+    }
+
+    public String progress() {
+        boolean stopped = done.getCount() == 0;
+        long nanos = stopped ? elapsedNanos : System.nanoTime() - startNanos;
+        double seconds = nanos / 1e9;
+        double rate = seconds > 0 ? rowsLoaded / seconds : 0;
+        return String.format("%s %d accounts in %.2f s (%.0f rows/sec)",
+                complete ? "Loaded" : stopped ? "Load failed after" : "Loading:", rowsLoaded, seconds, rate);
+    }
+}
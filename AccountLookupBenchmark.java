@@ -0,0 +1,74 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Account lookup by number: the linear ArrayList scan findaccount used before
+// AccountRegistry, against AccountRegistry.get, for hits and misses at several book sizes.
+// Both hold the same account objects, in the same order. The scan is O(n), so it runs
+// far fewer operations per round at the larger sizes.
+// Run: java -Xms4g -Xmx4g AccountLookupBenchmark [accounts...]     (default 10000 1000000 10000000)
+class AccountLookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 10_000, 1_000_000, 10_000_000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        int ops = Integer.getInteger("bench.ops", 1_000_000);
+        // About 20M accounts visited per scan round whatever the size
+        long scanVisits = Long.getLong("bench.scanVisits", 20_000_000L);
+
+        for (int size : sizes) {
+            List<BankAccount> list = new ArrayList<>(size);
+            AccountRegistry registry = new AccountRegistry(size);
+            int[] accNos = new int[size];
+            for (int i = 0; i < size; i++) {
+                accNos[i] = 100_000 + i * 7;
+                String name = "Customer " + i % 50_000;
+                String email = "customer" + i + "@mail.example.com";
+                BankAccount account = i % 2 == 0 ? new SavingsAccount(accNos[i], name, 1_000_000, email)
+                        : new CurrentAccount(accNos[i], name, 1_000_000, email);
+                list.add(account);
+                registry.add(account);
+            }
+            // Random account numbers, so a hit scans half the list on average
+            int[] order = new int[1 << 16];
+            Random random = new Random(42);
+            for (int i = 0; i < order.length; i++) {
+                order[i] = accNos[random.nextInt(size)];
+            }
+            int mask = order.length - 1;
+            int scanOps = (int) Math.max(5, Math.min(ops, scanVisits / size));
+            String n = label(size);
+
+            Bench.run("ArrayList scan (hit, " + n + ")", scanOps, i -> scan(list, order[i & mask]).getAccountNumber());
+            Bench.run("ArrayList scan (miss, " + n + ")", Math.max(5, scanOps / 2),
+                    i -> scan(list, order[i & mask] + 1) == null ? 0 : 1);
+            Bench.run("AccountRegistry.get (hit, " + n + ")", ops, i -> registry.get(order[i & mask]).getAccountNumber());
+            Bench.run("AccountRegistry.get (miss, " + n + ")", ops, i -> registry.get(order[i & mask] + 1) == null ? 0 : 1);
+        }
+    }
+
+    // findaccount as it was: the first account with the number, or null
+    private static BankAccount scan(List<BankAccount> accounts, int accNo) {
+        for (BankAccount account : accounts) {
+            if (account.getAccountNumber() == accNo) {
+                return account;
+            }
+        }
+        return null;
+    }
+
+    private static String label(int size) {
+        if (size >= 1_000_000 && size % 1_000_000 == 0) {
+            return size / 1_000_000 + "M";
+        }
+        if (size >= 1_000 && size % 1_000 == 0) {
+            return size / 1_000 + "k";
+        }
+        return Integer.toString(size);
+    }
+}
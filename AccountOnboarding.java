@@ -0,0 +1,342 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bulk account creation.
+// Rows are validated as they are submitted, grouped into transactions of txnSize rows
+// and inserted by several threads, each chunk with one batched INSERT (rewritten by the
+// driver into multi-row statements) and one commit. Rows whose account number already
+// exists are reported as DUPLICATE instead of failing the chunk: the chunk first looks
+// up which of its numbers are taken and inserts the rest. If someone else creates one of
+// them in the meantime the INSERT fails on the key, the transaction is rolled back and
+// the chunk is looked up and inserted again. With several shards a chunk is split into
+// one transaction per shard. Every submitted row gets exactly one outcome.
+class AccountOnboarding {
+    static final int CREATED = 0;
+    static final int DUPLICATE = 1;
+    static final int INVALID = 2;
+    static final int FAILED = 3;
+    static final String[] OUTCOME_NAMES = { "CREATED", "DUPLICATE", "INVALID", "FAILED" };
+
+    private static final int MAX_ATTEMPTS = 3; // per chunk, when numbers are taken concurrently
+    private static final String INSERT_SQL = "INSERT INTO accounts " +
+            "(account_number, holder_name, balance, email, account_type) VALUES (?, ?, ?, ?, ?)";
+
+    // Called once per row, possibly from several threads
+    interface OutcomeListener {
+        void outcome(long row, int accountNumber, int outcome, String message);
+    }
+
+    private static final class NewAccount {
+        final long row;
+        final int accountNumber;
+        final boolean savings;
+        final String name;
+        final String email;
+        final long balance;
+
+        NewAccount(long row, int accountNumber, boolean savings, String name, String email, long balance) {
+            this.row = row;
+            this.accountNumber = accountNumber;
+            this.savings = savings;
+            this.name = name;
+            this.email = email;
+            this.balance = balance;
+        }
+    }
+
+    private final int txnSize;
+    private final OutcomeListener listener;
+    private final ExecutorService inserters;
+    private final Semaphore chunksInFlight;
+    private final Phaser pending = new Phaser(1);
+    private final IntSet seen = new IntSet();
+    private final String existingSql;
+    private List<NewAccount> chunk;
+
+    private final LongAdder[] counts = { new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder() };
+    private final long startNanos = System.nanoTime();
+
+    public AccountOnboarding(int txnSize, int parallelism, OutcomeListener listener) {
+        this.txnSize = Math.max(1, txnSize);
+        this.listener = listener;
+        int threads = Math.max(1, parallelism);
+        this.inserters = Executors.newFixedThreadPool(threads);
+        this.chunksInFlight = new Semaphore(threads * 2); // bounds the rows held in memory
+        this.chunk = new ArrayList<>(this.txnSize);
+        this.existingSql = existingSql(this.txnSize);
+    }
+
+    // Queue one account; invalid rows and numbers repeated in the input are reported at once
+    public void submit(long row, int accountNumber, boolean savings, String name, String email, long balance)
+            throws InterruptedException {
+        int code = AccountValidator.checkNewAccount(name, email, balance);
+        if (code != AccountValidator.OK) {
+            report(row, accountNumber, INVALID, AccountValidator.message(code));
+            return;
+        }
+        if (!seen.add(accountNumber)) {
+            report(row, accountNumber, DUPLICATE, "Account number appears earlier in the input");
+            return;
+        }
+        if (BankingApp.store != null ? BankingApp.store.contains(accountNumber)
+                : BankingApp.cache == null && BankingApp.accounts.contains(accountNumber)) {
+            report(row, accountNumber, DUPLICATE, "Account number " + accountNumber + " already exists!");
+            return;
+        }
+        chunk.add(new NewAccount(row, accountNumber, savings, name, email, balance));
+        if (chunk.size() == txnSize) {
+            dispatch();
+        }
+    }
+
+    // Submit every line of a CSV file: account_number,type,holder_name,email,balance
+    // where type is S/Savings or C/Current. A header line and blank lines are skipped.
+    public void submitFile(Path csv) throws IOException, InterruptedException {
+        try (BufferedReader in = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            String line;
+            long row = 0;
+            while ((line = in.readLine()) != null) {
+                row++;
+                if (line.trim().isEmpty() || (row == 1 && line.startsWith("account_number"))) {
+                    continue;
+                }
+                String[] f = line.split(",", 5);
+                int accNo = 0;
+                try {
+                    if (f.length < 5) {
+                        throw new IllegalArgumentException("Expected 5 fields");
+                    }
+                    accNo = Integer.parseInt(f[0].trim());
+                    String type = f[1].trim();
+                    boolean savings = type.equalsIgnoreCase("S") || type.equalsIgnoreCase("Savings");
+                    if (!savings && !type.equalsIgnoreCase("C") && !type.equalsIgnoreCase("Current")) {
+                        throw new IllegalArgumentException("Unknown account type " + type);
+                    }
+                    submit(row, accNo, savings, f[2].trim(), f[3].trim(),
+                            Money.fromAmount(Double.parseDouble(f[4].trim())));
+                } catch (NumberFormatException e) {
+                    report(row, accNo, INVALID, "Invalid number");
+                } catch (IllegalArgumentException | InvalidAmountException e) {
+                    report(row, accNo, INVALID, e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Insert what is left and wait for every chunk to finish
+    public void finish() throws InterruptedException {
+        if (!chunk.isEmpty()) {
+            dispatch();
+        }
+        pending.arriveAndAwaitAdvance();
+        inserters.shutdown();
+        inserters.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void dispatch() throws InterruptedException {
+        List<NewAccount> rows = chunk;
+        chunk = new ArrayList<>(txnSize);
+        chunksInFlight.acquire();
+        pending.register();
+        inserters.execute(() -> {
+            BankingApp.shards.beginInsert();
+            try {
+                for (List<NewAccount> part : splitByShard(rows)) {
+                    insertChunk(part);
+                }
+            } finally {
+                BankingApp.shards.endInsert();
+                chunksInFlight.release();
+                pending.arriveAndDeregister();
+            }
+        });
+    }
+
+    private static Collection<List<NewAccount>> splitByShard(List<NewAccount> rows) {
+        ShardRouter router = BankingApp.shards;
+        if (router.size() == 1 && !router.isRebalancing()) {
+            return Collections.singletonList(rows);
+        }
+        Map<ShardRouter.Shard, List<NewAccount>> parts = new LinkedHashMap<>();
+        for (NewAccount a : rows) {
+            parts.computeIfAbsent(router.shardFor(a.accountNumber), s -> new ArrayList<>()).add(a);
+        }
+        return parts.values();
+    }
+
+    // Insert rows that all belong to the same shard in one transaction
+    private void insertChunk(List<NewAccount> rows) {
+        Set<Integer> existing = null;
+        try (Connection conn = BankingApp.getConnection(rows.get(0).accountNumber)) {
+            conn.setAutoCommit(false);
+            for (int attempt = 1;; attempt++) {
+                try {
+                    existing = existing(conn, rows);
+                    insert(conn, rows, existing);
+                    conn.commit();
+                    break;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    // A number was created by someone else after the lookup: look the chunk up again
+                    if (!isDuplicateKey(e) || attempt == MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            for (NewAccount a : rows) {
+                report(a.row, a.accountNumber, FAILED, e.getMessage());
+            }
+            return;
+        }
+
+        List<BankAccount> added = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            NewAccount a = rows.get(i);
+            if (existing.contains(a.accountNumber)) {
+                report(a.row, a.accountNumber, DUPLICATE, "Account number " + a.accountNumber + " already exists!");
+                continue;
+            }
+            try {
+                BankAccount account = a.savings ? new SavingsAccount(a.accountNumber, a.name, a.balance, a.email)
+                        : new CurrentAccount(a.accountNumber, a.name, a.balance, a.email);
+                account.markPersisted(a.balance, 0);
+                added.add(account);
+                report(a.row, a.accountNumber, CREATED, null);
+            } catch (InvalidAmountException e) {
+                report(a.row, a.accountNumber, INVALID, e.getMessage()); // already checked in submit
+            }
+        }
+        if (BankingApp.store != null) {
+            BankingApp.store.addAll(added);
+        } else if (BankingApp.cache == null) {
+            BankingApp.accounts.addAll(added);
+        }
+    }
+
+    // Batched INSERT of the rows not in existing; every row it inserts is created, since
+    // a taken number fails the whole batch
+    private static void insert(Connection conn, List<NewAccount> rows, Set<Integer> existing) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(INSERT_SQL)) {
+            int batched = 0;
+            for (NewAccount a : rows) {
+                if (existing.contains(a.accountNumber)) {
+                    continue;
+                }
+                insert.setInt(1, a.accountNumber);
+                insert.setString(2, a.name);
+                insert.setLong(3, a.balance);
+                insert.setString(4, a.email);
+                insert.setByte(5, a.savings ? AccountDao.SAVINGS : AccountDao.CURRENT);
+                insert.addBatch();
+                batched++;
+            }
+            if (batched > 0) {
+                insert.executeBatch();
+            }
+        }
+    }
+
+    private static boolean isDuplicateKey(SQLException e) {
+        // A failed batch may wrap the driver's exception for the row
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLIntegrityConstraintViolationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Account numbers of the chunk that are already in the table
+    private Set<Integer> existing(Connection conn, List<NewAccount> rows) throws SQLException {
+        Set<Integer> found = new HashSet<>();
+        String sql = rows.size() == txnSize ? existingSql : existingSql(rows.size());
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < rows.size(); i++) {
+                pstmt.setInt(i + 1, rows.get(i).accountNumber);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    found.add(rs.getInt(1));
+                }
+            }
+        }
+        return found;
+    }
+
+    private static String existingSql(int size) {
+        StringBuilder sb = new StringBuilder("SELECT account_number FROM accounts WHERE account_number IN (");
+        for (int i = 0; i < size; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.append(')').toString();
+    }
+
+    private void report(long row, int accountNumber, int outcome, String message) {
+        counts[outcome].increment();
+        if (listener != null) {
+            listener.outcome(row, accountNumber, outcome, message);
+        }
+    }
+
+    public long getCount(int outcome) {
+        return counts[outcome].sum();
+    }
+
+    public String stats() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long total = 0;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return String.format("%d rows in %.2f s (%.0f rows/sec): created=%d duplicate=%d invalid=%d failed=%d",
+                total, seconds, seconds > 0 ? total / seconds : 0, counts[CREATED].sum(), counts[DUPLICATE].sum(),
+                counts[INVALID].sum(), counts[FAILED].sum());
+    }
+
+    // Open-addressing set of ints, used to spot numbers repeated in the input without boxing
+    private static final class IntSet {
+        private int[] keys = new int[1024];
+        private boolean hasZero;
+        private int size;
+
+        boolean add(int key) {
+            if (key == 0) {
+                boolean added = !hasZero;
+                hasZero = true;
+                return added;
+            }
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int h = key * 0x9E3779B9;
+            for (int i = (h ^ (h >>> 16)) & mask;; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return false;
+                }
+                if (keys[i] == 0) {
+                    keys[i] = key;
+                    size++;
+                    return true;
+                }
+            }
+        }
+
+        private void resize() {
+            int[] old = keys;
+            keys = new int[old.length * 2];
+            size = 0;
+            for (int key : old) {
+                if (key != 0) {
+                    add(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// In-memory index of all accounts.
+// Accounts are stored in an open-addressing hash table keyed by the primitive
+// account number (no Integer boxing), with secondary indexes by email and holder name.
+// The secondary indexes are sorted, so they also answer prefix searches.
+// Lookups may run concurrently; adds and removes take an exclusive lock.
+// Iteration is not synchronized; use snapshot() when other threads may add accounts.
+class AccountRegistry implements Iterable<BankAccount> {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] keys;
+    private BankAccount[] values; // null marks an empty slot
+    private int size;
+    private int mask;
+    private int resizeAt;
+
+    private final TreeMap<String, List<BankAccount>> byEmail = new TreeMap<>();
+    private final TreeMap<String, List<BankAccount>> byName = new TreeMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public AccountRegistry() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AccountRegistry(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int needed = (int) Math.ceil(Math.max(expectedSize, 16) / LOAD_FACTOR);
+        return Integer.highestOneBit(needed - 1) << 1;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new BankAccount[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    // Spread the bits of the account number so sequential numbers don't cluster
+    private int slot(int accNo) {
+        int h = accNo * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    // Find account by number, returns null if not present
+    public BankAccount get(int accNo) {
+        lock.readLock().lock();
+        try {
+            int i = slot(accNo);
+            BankAccount account;
+            while ((account = values[i]) != null) {
+                if (keys[i] == accNo) {
+                    return account;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(int accNo) {
+        return get(accNo) != null;
+    }
+
+    // Add a new account, returns false if the account number is already taken
+    public boolean add(BankAccount account) {
+        lock.writeLock().lock();
+        try {
+            int accNo = account.getAccountNumber();
+            int i = slot(accNo);
+            while (values[i] != null) {
+                if (keys[i] == accNo) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = accNo;
+            values[i] = account;
+            size++;
+            index(byEmail, emailKey(account.getEmail()), account);
+            index(byName, nameKey(account.getHoldername()), account);
+            if (size > resizeAt) {
+                rehash(values.length << 1);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Add a batch of accounts under one lock, skipping numbers that are already present.
+    // Returns the number of accounts added.
+    public int addAll(List<BankAccount> batch) {
+        lock.writeLock().lock();
+        try {
+            int added = 0;
+            for (BankAccount account : batch) {
+                if (add(account)) {
+                    added++;
+                }
+            }
+            return added;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Remove an account, returns the removed account or null
+    public BankAccount remove(int accNo) {
+        lock.writeLock().lock();
+        try {
+            int i = slot(accNo);
+            BankAccount account;
+            while ((account = values[i]) != null) {
+                if (keys[i] == accNo) {
+                    deleteSlot(i);
+                    size--;
+                    unindex(byEmail, emailKey(account.getEmail()), account);
+                    unindex(byName, nameKey(account.getHoldername()), account);
+                    return account;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    private void deleteSlot(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            BankAccount account = values[i];
+            if (account == null) {
+                break;
+            }
+            int home = slot(keys[i]);
+            // Move the entry back if its home slot is not between the hole and its current slot
+            boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                keys[hole] = keys[i];
+                values[hole] = account;
+                hole = i;
+            }
+        }
+        values[hole] = null;
+        keys[hole] = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        BankAccount[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != null) {
+                int i = slot(oldKeys[j]);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Remove every account
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            allocate(tableSizeFor(DEFAULT_CAPACITY));
+            size = 0;
+            byEmail.clear();
+            byName.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Copy of all accounts, safe to use while other threads add accounts
+    public BankAccount[] snapshot() {
+        lock.readLock().lock();
+        try {
+            BankAccount[] result = new BankAccount[size];
+            int n = 0;
+            for (BankAccount account : values) {
+                if (account != null) {
+                    result[n++] = account;
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Find accounts by email (case-insensitive)
+    public List<BankAccount> findByEmail(String email) {
+        return lookup(byEmail, emailKey(email));
+    }
+
+    // Find accounts by holder name (case-insensitive)
+    public List<BankAccount> findByHolderName(String name) {
+        return lookup(byName, nameKey(name));
+    }
+
+    // Up to limit accounts whose email starts with the prefix (case-insensitive), in email order
+    public List<BankAccount> findByEmailPrefix(String prefix, int limit) {
+        return lookupPrefix(byEmail, emailKey(prefix), limit);
+    }
+
+    // Up to limit accounts whose holder name starts with the prefix (case-insensitive), in name order
+    public List<BankAccount> findByHolderNamePrefix(String prefix, int limit) {
+        return lookupPrefix(byName, nameKey(prefix), limit);
+    }
+
+    private static String emailKey(String email) {
+        return email == null ? "" : email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String nameKey(String name) {
+        return name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static void index(Map<String, List<BankAccount>> map, String key, BankAccount account) {
+        List<BankAccount> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            map.put(key, list);
+        }
+        list.add(account);
+    }
+
+    private static void unindex(Map<String, List<BankAccount>> map, String key, BankAccount account) {
+        List<BankAccount> list = map.get(key);
+        if (list != null) {
+            list.remove(account);
+            if (list.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private List<BankAccount> lookup(Map<String, List<BankAccount>> map, String key) {
+        lock.readLock().lock();
+        try {
+            List<BankAccount> list = map.get(key);
+            return list == null ? Collections.emptyList() : new ArrayList<>(list);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<BankAccount> lookupPrefix(TreeMap<String, List<BankAccount>> map, String prefix, int limit) {
+        lock.readLock().lock();
+        try {
+            List<BankAccount> result = new ArrayList<>(Math.min(limit, 64));
+            for (Map.Entry<String, List<BankAccount>> entry : map.tailMap(prefix, true).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    break;
+                }
+                for (BankAccount account : entry.getValue()) {
+                    if (result.size() == limit) {
+                        return result;
+                    }
+                    result.add(account);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<BankAccount> iterator() {
+        return new Iterator<BankAccount>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < values.length && values[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < values.length;
+            }
+
+            @Override
+            public BankAccount next() {
+                if (next >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                BankAccount account = values[next];
+                next = advance(next + 1);
+                return account;
+            }
+        };
+    }
+}
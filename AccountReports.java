@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+// Reports and searches over the whole book: current accounts in overdraft, the top
+// balances, totals by account type and prefix search on email or holder name.
+// When every account is in the registry the reports run there: scans are parallel
+// streams over a snapshot of the registry (the common fork/join pool splits the array
+// and merges per-chunk results), and prefix searches use the registry's sorted email
+// and name indexes. Otherwise (cache or compact mode, or a lazy load still running)
+// they are pushed down to SQL on every shard after pending balances are flushed.
+// Matching accounts are handed to a consumer as they are found rather than collected.
+class AccountReports {
+    private static final String OVERDRAWN_SQL = AccountLoader.SELECT_COLUMNS +
+            " WHERE account_type = " + AccountDao.CURRENT + " AND balance < 0";
+    private static final String TOP_SQL = AccountLoader.SELECT_COLUMNS + " ORDER BY balance DESC LIMIT ?";
+    private static final String TOTALS_SQL = "SELECT account_type, COUNT(*), SUM(GREATEST(balance, 0)), " +
+            "SUM(LEAST(balance, 0)) FROM accounts GROUP BY account_type";
+
+    private final AccountRegistry registry;
+    private final BooleanSupplier resident;
+
+    // resident: whether the registry holds every account right now
+    public AccountReports(AccountRegistry registry, BooleanSupplier resident) {
+        this.registry = registry;
+        this.resident = resident;
+    }
+
+    // Account count, deposits (positive balances) and overdrafts (negative balances) per type
+    static final class Totals {
+        final long[] accounts = new long[2];
+        final long[] deposits = new long[2];
+        final long[] overdrafts = new long[2];
+
+        void add(BankAccount account) {
+            int type = AccountDao.typeCode(account);
+            long balance = account.getBalance();
+            accounts[type]++;
+            if (balance >= 0) {
+                deposits[type] += balance;
+            } else {
+                overdrafts[type] += balance;
+            }
+        }
+
+        void merge(Totals other) {
+            for (int t = 0; t < 2; t++) {
+                accounts[t] += other.accounts[t];
+                deposits[t] += other.deposits[t];
+                overdrafts[t] += other.overdrafts[t];
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            String[] names = { "Savings", "Current" };
+            for (int t = 0; t < 2; t++) {
+                sb.append(String.format("%-8s accounts=%d deposits=%s overdrafts=%s%n", names[t], accounts[t],
+                        Money.format(deposits[t]), Money.format(overdrafts[t])));
+            }
+            return sb.toString();
+        }
+    }
+
+    // The n largest balances seen, as a min-heap on the balance read when the account was offered
+    private static final class TopN {
+        private final int n;
+        private final PriorityQueue<long[]> heap; // { balance, index into accounts }
+        private final List<BankAccount> accounts = new ArrayList<>();
+
+        TopN(int n) {
+            this.n = n;
+            // Grows as needed: n may be far larger than the book
+            this.heap = new PriorityQueue<>(Math.max(1, Math.min(n, 1024)), (a, b) -> Long.compare(a[0], b[0]));
+        }
+
+        void add(BankAccount account) {
+            add(account, account.getBalance());
+        }
+
+        void merge(TopN other) {
+            for (long[] entry : other.heap) {
+                add(other.accounts.get((int) entry[1]), entry[0]);
+            }
+        }
+
+        private void add(BankAccount account, long balance) {
+            if (heap.size() < n) {
+                heap.add(new long[] { balance, accounts.size() });
+                accounts.add(account);
+            } else if (n > 0 && balance > heap.peek()[0]) {
+                long[] smallest = heap.poll();
+                accounts.set((int) smallest[1], account);
+                smallest[0] = balance;
+                heap.add(smallest);
+            }
+        }
+
+        // Largest balance first
+        List<BankAccount> sorted() {
+            List<long[]> entries = new ArrayList<>(heap);
+            entries.sort((a, b) -> Long.compare(b[0], a[0]));
+            List<BankAccount> result = new ArrayList<>(entries.size());
+            for (long[] entry : entries) {
+                result.add(accounts.get((int) entry[1]));
+            }
+            return result;
+        }
+    }
+
+    // Current accounts with a negative balance; returns how many were found
+    public long overdrawn(Consumer<BankAccount> out) throws SQLException {
+        if (resident.getAsBoolean()) {
+            long[] found = new long[1];
+            Arrays.stream(registry.snapshot()).parallel()
+                    .filter(account -> account instanceof CurrentAccount && account.getBalance() < 0)
+                    .forEachOrdered(account -> {
+                        found[0]++;
+                        out.accept(account);
+                    });
+            return found[0];
+        }
+        flushPending();
+        long found = 0;
+        for (ShardRouter.Shard shard : BankingApp.shards.shards()) {
+            try (Connection conn = BankingApp.getConnection(shard);
+                    PreparedStatement pstmt = conn.prepareStatement(OVERDRAWN_SQL)) {
+                pstmt.setFetchSize(Integer.MIN_VALUE); // stream the rows instead of buffering the result
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        BankAccount account = readAccount(rs);
+                        if (account != null) {
+                            found++;
+                            out.accept(account);
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // The n accounts with the largest balances, largest first
+    public List<BankAccount> topBalances(int n) throws SQLException {
+        if (resident.getAsBoolean()) {
+            return Arrays.stream(registry.snapshot()).parallel()
+                    .collect(() -> new TopN(n), TopN::add, TopN::merge)
+                    .sorted();
+        }
+        flushPending();
+        TopN top = new TopN(n);
+        for (ShardRouter.Shard shard : BankingApp.shards.shards()) {
+            try (Connection conn = BankingApp.getConnection(shard);
+                    PreparedStatement pstmt = conn.prepareStatement(TOP_SQL)) {
+                pstmt.setInt(1, n);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        BankAccount account = readAccount(rs);
+                        if (account != null) {
+                            top.add(account);
+                        }
+                    }
+                }
+            }
+        }
+        return top.sorted();
+    }
+
+    public Totals totals() throws SQLException {
+        if (resident.getAsBoolean()) {
+            return Arrays.stream(registry.snapshot()).parallel().collect(Totals::new, Totals::add, Totals::merge);
+        }
+        flushPending();
+        Totals totals = new Totals();
+        for (ShardRouter.Shard shard : BankingApp.shards.shards()) {
+            try (Connection conn = BankingApp.getConnection(shard);
+                    Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery(TOTALS_SQL)) {
+                while (rs.next()) {
+                    int type = rs.getInt(1) == AccountDao.SAVINGS ? 0 : 1;
+                    totals.accounts[type] += rs.getLong(2);
+                    totals.deposits[type] += rs.getLong(3);
+                    totals.overdrafts[type] += rs.getLong(4);
+                }
+            }
+        }
+        return totals;
+    }
+
+    // Up to limit accounts whose email ("email") or holder name ("holder_name") starts with
+    // the prefix, case-insensitive and in that column's order; returns how many were found
+    public int searchPrefix(String column, String prefix, int limit, Consumer<BankAccount> out)
+            throws SQLException {
+        boolean email = column.equals("email");
+        if (!email && !column.equals("holder_name")) {
+            throw new IllegalArgumentException("Unsupported column: " + column);
+        }
+        List<BankAccount> found;
+        if (resident.getAsBoolean()) {
+            found = email ? registry.findByEmailPrefix(prefix, limit)
+                    : registry.findByHolderNamePrefix(prefix, limit);
+        } else {
+            found = new ArrayList<>();
+            String sql = AccountLoader.SELECT_COLUMNS + " WHERE " + column + " LIKE ? ORDER BY " + column + " LIMIT ?";
+            for (ShardRouter.Shard shard : BankingApp.shards.shards()) {
+                try (Connection conn = BankingApp.getConnection(shard);
+                        PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setString(1, likePrefix(prefix.trim()));
+                    pstmt.setInt(2, limit);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            BankAccount account = readAccount(rs);
+                            if (account != null) {
+                                found.add(account);
+                            }
+                        }
+                    }
+                }
+            }
+            // Each shard returned its first rows in order; merge them
+            Comparator<BankAccount> order = Comparator.comparing(
+                    account -> String.valueOf(email ? account.getEmail() : account.getHoldername())
+                            .toLowerCase(Locale.ROOT));
+            found.sort(order);
+            if (found.size() > limit) {
+                found = found.subList(0, limit);
+            }
+        }
+        for (BankAccount account : found) {
+            out.accept(account);
+        }
+        return found.size();
+    }
+
+    // LIKE pattern matching values that start with the text
+    static String likePrefix(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    // The row as an account; the resident object if there is one, it may be newer than the row
+    private static BankAccount readAccount(ResultSet rs) throws SQLException {
+        BankAccount account = AccountLoader.readAccount(rs);
+        BankAccount current = BankingApp.residentAccount(account.getAccountNumber());
+        return current != null ? current : account;
+    }
+
+    // Write acknowledged balances to the database, so SQL sees the same book as the menu
+    private static void flushPending() throws SQLException {
+        if (BankingApp.balanceWriter != null) {
+            try {
+                BankingApp.balanceWriter.flush();
+            } catch (IOException e) {
+                throw new SQLException("Could not flush pending balances: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+// Size and load time of the snapshot images (AccountSnapshots), without the database.
+// Writes a base image of the book, changes 1% of the accounts and writes a delta, then
+// clears the registry and loads the base and the delta back, as a restart would, and
+// checks that the loaded balances add up to the same total.
+// Run: java -Xms4g -Xmx4g AccountSnapshotBenchmark [accounts] [dir]
+class AccountSnapshotBenchmark {
+    private static final int NAMES = 50_000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Path dir = Paths.get(args.length > 1 ? args[1] : "bench-snapshot");
+        deleteImages(dir);
+
+        AccountRegistry registry = new AccountRegistry(count);
+        long start = System.nanoTime();
+        List<BankAccount> page = new ArrayList<>(10000);
+        for (int i = 0; i < count; i++) {
+            String name = "Customer " + (i % NAMES);
+            String email = "customer" + i + "@mail.example.com";
+            BankAccount account = i % 2 == 0 ? new SavingsAccount(i, name, 1_000_000, email)
+                    : new CurrentAccount(i, name, 1_000_000, email);
+            account.markPersisted(1_000_000, 0);
+            page.add(account);
+            if (page.size() == 10000) {
+                registry.addAll(page);
+                page.clear();
+            }
+        }
+        registry.addAll(page);
+        page = null;
+        System.out.printf("%d accounts built in %.2f s%n", count, (System.nanoTime() - start) / 1e9);
+
+        AccountSnapshots snapshots = new AccountSnapshots(dir, 8, 1024, 0, false);
+        snapshots.write(registry);
+        System.out.println("base:  " + snapshots.stats());
+
+        Random random = new Random(42);
+        for (int i = 0; i < count / 100; i++) {
+            registry.get(random.nextInt(count)).deposit(100);
+        }
+        snapshots.write(registry);
+        System.out.println("delta: " + snapshots.stats());
+        System.out.printf("images on disk %.1f MB (%.1f B/account)%n", imageBytes(dir) / 1048576.0,
+                imageBytes(dir) / (double) count);
+
+        long total = totalBalance(registry);
+        registry.clear();
+        System.gc();
+        AccountSnapshots restarted = new AccountSnapshots(dir, 8, 1024, 0, false);
+        start = System.nanoTime();
+        restarted.load(registry);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("loaded %d accounts in %.2f s (%.0f rows/sec)%n", registry.size(), seconds,
+                registry.size() / seconds);
+        if (totalBalance(registry) != total) {
+            System.out.println("Loaded balances differ from the book that was written");
+            System.exit(1);
+        }
+        deleteImages(dir);
+    }
+
+    private static long totalBalance(AccountRegistry registry) {
+        long total = 0;
+        for (BankAccount account : registry) {
+            total += account.getBalance();
+        }
+        return total;
+    }
+
+    private static long imageBytes(Path dir) throws IOException {
+        long bytes = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.img")) {
+            for (Path path : stream) {
+                bytes += Files.size(path);
+            }
+        }
+        return bytes;
+    }
+
+    private static void deleteImages(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.img*")) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,602 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+// Binary snapshot images of the account registry, so a restart does not read the
+// whole accounts table. A base image holds every account; the snapshots after it are
+// deltas holding only the accounts changed since the previous one. Accounts record
+// the current change epoch when they change, and each snapshot bumps the epoch, so a
+// delta is the accounts whose epoch is newer than the last snapshot written.
+// Every image also records the database time of each shard when it was taken. On
+// startup the base and its deltas are memory-mapped and loaded, then only the rows
+// whose updated_at is newer than that time (less a safety margin) are read from the
+// database. Those cover balances that were still pending when the image was taken
+// and changes made by other instances.
+// Images are written to temporary files and renamed when complete; a large image is
+// split into parts, and a set of parts is only used if all of them are present and
+// their checksums match.
+class AccountSnapshots {
+    // Accounts record this when they change (see BankAccount.changed)
+    static volatile int changeEpoch = 1;
+
+    static final byte BASE = 0;
+    static final byte DELTA = 1;
+    private static final String[] KIND_NAMES = { "base", "delta" };
+    private static final String SUFFIX = ".img";
+    private static final int MAGIC = 0x4E534B42; // "BKSN"
+    private static final short FORMAT = 1;
+    private static final byte SAVINGS = 0;
+    private static final byte CURRENT = 1;
+    // Names offset, row count, name count, part number, last-part flag, checksum
+    private static final int TRAILER_BYTES = 8 + 4 + 4 + 4 + 1 + 8;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int LOAD_PAGE = 10000;
+    static final String CHANGED_SINCE_SQL = AccountLoader.SELECT_COLUMNS + " WHERE updated_at >= FROM_UNIXTIME(?)";
+
+    private final Path dir;
+    private final int maxDeltas;
+    private final long partBytes;
+    private final long marginMicros;
+    private final boolean useDatabase; // false: no watermarks and no catch-up (benchmarks)
+
+    // The chain of images on disk (guarded by this)
+    private int baseEpoch = -1;
+    private int lastEpoch;
+    private int deltas;
+    private long baseBytes;
+    private long deltaBytes;
+
+    private long written;
+    private long lastRows;
+    private long lastBytes;
+    private long lastWriteNanos;
+    private long loadedRows;
+    private long caughtUpRows;
+    private long loadNanos;
+    private ScheduledExecutorService timer;
+
+    public AccountSnapshots(Path dir, int maxDeltas, int partMb, long marginSec, boolean useDatabase)
+            throws IOException {
+        this.dir = dir;
+        this.maxDeltas = Math.max(0, maxDeltas);
+        this.partBytes = Math.max(1, partMb) * 1024L * 1024L;
+        this.marginMicros = marginSec * 1_000_000L;
+        this.useDatabase = useDatabase;
+        Files.createDirectories(dir);
+
+        // Leftovers of a snapshot interrupted by a crash
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX + ".tmp")) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        // New images are numbered after everything on disk
+        int newest = 0;
+        for (ImageFile file : imageFiles()) {
+            newest = Math.max(newest, file.epoch);
+        }
+        lastEpoch = newest;
+        changeEpoch = newest + 1;
+    }
+
+    // One part of an image, parsed from its file name and trailer
+    private static final class ImageFile {
+        final Path path;
+        final byte kind;
+        final int epoch;
+        final int part;
+        MappedByteBuffer buf;
+        int baseEpoch;
+        int fromEpoch;
+        long namesOffset;
+        int rows;
+        int nameCount;
+        boolean last;
+        Map<String, Long> watermarks;
+        int rowsOffset;
+
+        ImageFile(Path path, byte kind, int epoch, int part) {
+            this.path = path;
+            this.kind = kind;
+            this.epoch = epoch;
+            this.part = part;
+        }
+    }
+
+    // Write a snapshot of the registry: a delta, or a new base when there is none yet,
+    // after maxDeltas deltas, or once the deltas add up to half the base
+    public synchronized void write(AccountRegistry registry) throws IOException, SQLException {
+        long start = System.nanoTime();
+        int epoch = changeEpoch;
+        changeEpoch = epoch + 1;
+        // Database time first, so every row committed after it is newer than the watermark
+        Map<String, Long> watermarks = useDatabase ? watermarks() : new LinkedHashMap<>();
+        boolean base = baseEpoch < 0 || deltas >= maxDeltas || deltaBytes > baseBytes / 2;
+        int from = base ? 0 : lastEpoch + 1;
+
+        BankAccount[] all = registry.snapshot();
+        int rows = 0;
+        for (BankAccount account : all) {
+            if (account.changedIn >= from) {
+                rows++;
+            }
+        }
+        if (!base && rows == 0) {
+            return; // nothing changed since the last snapshot
+        }
+
+        List<Path> parts = new ArrayList<>();
+        long bytes;
+        try {
+            bytes = writeParts(base ? BASE : DELTA, epoch, from, watermarks, all, parts);
+            for (Path part : parts) {
+                String name = part.getFileName().toString();
+                Files.move(part, part.resolveSibling(name.substring(0, name.length() - 4)),
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+            throw e;
+        }
+
+        if (base) {
+            // The older images are no longer needed
+            for (ImageFile file : imageFiles()) {
+                if (file.epoch < epoch) {
+                    Files.deleteIfExists(file.path);
+                }
+            }
+            baseEpoch = epoch;
+            baseBytes = bytes;
+            deltas = 0;
+            deltaBytes = 0;
+        } else {
+            deltas++;
+            deltaBytes += bytes;
+        }
+        lastEpoch = epoch;
+        written++;
+        lastRows = rows;
+        lastBytes = bytes;
+        lastWriteNanos = System.nanoTime() - start;
+    }
+
+    // Write the accounts changed in or after the given epoch, returns the bytes written.
+    // The temporary files are added to parts as they are created.
+    private long writeParts(byte kind, int epoch, int from, Map<String, Long> watermarks, BankAccount[] all,
+            List<Path> parts) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32C crc = new CRC32C();
+        long total = 0;
+        int i = 0;
+        do {
+            Path path = dir.resolve(String.format("%s-%010d-%04d%s.tmp", KIND_NAMES[kind], epoch, parts.size(),
+                    SUFFIX));
+            parts.add(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                crc.reset();
+                buf.clear();
+                buf.putInt(MAGIC).putShort(FORMAT).put(kind).put((byte) 0);
+                buf.putInt(epoch).putInt(kind == BASE ? epoch : baseEpoch).putInt(from);
+                buf.putLong(System.currentTimeMillis());
+                buf.putShort((short) watermarks.size());
+                for (Map.Entry<String, Long> entry : watermarks.entrySet()) {
+                    putString(buf, entry.getKey());
+                    buf.putLong(entry.getValue());
+                }
+
+                long size = 0;
+                int rows = 0;
+                Map<String, Integer> nameIds = new HashMap<>();
+                List<String> names = new ArrayList<>();
+                for (; i < all.length && size + buf.position() < partBytes; i++) {
+                    BankAccount account = all[i];
+                    if (account.changedIn < from) {
+                        continue;
+                    }
+                    byte[] email = account.getEmail() == null ? null
+                            : account.getEmail().getBytes(StandardCharsets.UTF_8);
+                    if (buf.remaining() < 39 + (email == null ? 0 : email.length)) {
+                        size += drain(channel, buf, crc);
+                    }
+                    String name = account.getHoldername();
+                    int nameId = -1;
+                    if (name != null) {
+                        Integer id = nameIds.get(name);
+                        if (id == null) {
+                            id = names.size();
+                            nameIds.put(name, id);
+                            names.add(name);
+                        }
+                        nameId = id;
+                    }
+                    buf.putInt(account.getAccountNumber());
+                    buf.put(account instanceof SavingsAccount ? SAVINGS : CURRENT);
+                    buf.putLong(account.getBalance());
+                    buf.putLong(account.getPersistedBalance());
+                    buf.putLong(account.getVersion());
+                    buf.putInt(nameId);
+                    if (email == null) {
+                        buf.putShort((short) -1);
+                    } else {
+                        buf.putShort((short) email.length).put(email);
+                    }
+                    rows++;
+                }
+
+                long namesOffset = size + buf.position();
+                for (String name : names) {
+                    if (buf.remaining() < 2 + name.length() * 3) {
+                        size += drain(channel, buf, crc);
+                    }
+                    putString(buf, name);
+                }
+                if (buf.remaining() < TRAILER_BYTES) {
+                    size += drain(channel, buf, crc);
+                }
+                buf.putLong(namesOffset).putInt(rows).putInt(names.size()).putInt(parts.size() - 1);
+                buf.put((byte) (nextChanged(all, i, from) < 0 ? 1 : 0));
+                buf.flip();
+                crc.update(buf.duplicate());
+                buf.position(buf.limit()).limit(buf.capacity());
+                buf.putLong(crc.getValue());
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    size += channel.write(buf);
+                }
+                channel.force(true);
+                total += size;
+            }
+            i = nextChanged(all, i, from);
+        } while (i >= 0);
+        return total;
+    }
+
+    // Index of the next account to write from position i on, -1 if there is none
+    private static int nextChanged(BankAccount[] all, int i, int from) {
+        for (; i < all.length; i++) {
+            if (all[i].changedIn >= from) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long drain(FileChannel channel, ByteBuffer buf, CRC32C crc) throws IOException {
+        buf.flip();
+        crc.update(buf.duplicate());
+        long size = 0;
+        while (buf.hasRemaining()) {
+            size += channel.write(buf);
+        }
+        buf.clear();
+        return size;
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int length = buf.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The current time of every shard's database, in microseconds
+    private static Map<String, Long> watermarks() throws SQLException {
+        Map<String, Long> watermarks = new LinkedHashMap<>();
+        for (ShardRouter.Shard shard : BankingApp.shards.shards()) {
+            try (Connection conn = BankingApp.getConnection(shard);
+                    Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT UNIX_TIMESTAMP(NOW(6))")) {
+                rs.next();
+                watermarks.put(shard.name, rs.getBigDecimal(1).movePointRight(6).longValue());
+            }
+        }
+        return watermarks;
+    }
+
+    // Load the newest base image and its deltas into the registry, then read the rows
+    // changed since from the database. Returns false if there is no usable image.
+    public synchronized boolean load(AccountRegistry registry) throws IOException, SQLException {
+        long start = System.nanoTime();
+        List<ImageFile> chain = chain();
+        if (chain.isEmpty()) {
+            return false;
+        }
+
+        // Accounts read from the images are as of the last image; anything changed from
+        // here on belongs to the next snapshot
+        int epoch = chain.get(chain.size() - 1).epoch;
+        changeEpoch = epoch;
+        long rows = 0;
+        long bytes = 0;
+        for (ImageFile file : chain) {
+            rows += readRows(file, registry);
+            bytes += file.buf.capacity();
+            if (file.kind == BASE) {
+                baseEpoch = file.epoch;
+                baseBytes += file.buf.capacity();
+            } else if (file.part == 0) {
+                deltas++;
+            }
+            file.buf = null;
+        }
+        deltaBytes = bytes - baseBytes;
+        lastEpoch = epoch;
+        changeEpoch = epoch + 1;
+        loadedRows = rows;
+
+        if (useDatabase) {
+            caughtUpRows = catchUp(registry, chain.get(chain.size() - 1).watermarks);
+        }
+        loadNanos = System.nanoTime() - start;
+        return true;
+    }
+
+    // The newest complete base and the unbroken run of deltas after it, mapped and
+    // checked. Images that cannot be used are deleted.
+    private List<ImageFile> chain() throws IOException {
+        Map<Long, List<ImageFile>> sets = new TreeMap<>(Comparator.reverseOrder());
+        for (ImageFile file : imageFiles()) {
+            sets.computeIfAbsent((long) file.epoch << 1 | file.kind, k -> new ArrayList<>()).add(file);
+        }
+        List<List<ImageFile>> valid = new ArrayList<>();
+        for (List<ImageFile> set : sets.values()) {
+            if (isComplete(set)) {
+                valid.add(set);
+            }
+        }
+
+        List<ImageFile> chain = new ArrayList<>();
+        int base = -1;
+        for (List<ImageFile> set : valid) {
+            if (set.get(0).kind == BASE) {
+                base = set.get(0).epoch;
+                chain.addAll(set);
+                break;
+            }
+        }
+        if (base >= 0) {
+            // The valid sets are newest first, walk the deltas forward from the base
+            int previous = base;
+            for (int s = valid.size() - 1; s >= 0; s--) {
+                ImageFile first = valid.get(s).get(0);
+                if (first.kind == DELTA && first.baseEpoch == base && first.epoch > previous) {
+                    if (first.fromEpoch != previous + 1) {
+                        break; // a delta is missing, the catch-up covers the rest
+                    }
+                    chain.addAll(valid.get(s));
+                    previous = first.epoch;
+                }
+            }
+        }
+
+        Set<Path> used = new HashSet<>();
+        for (ImageFile file : chain) {
+            used.add(file.path);
+        }
+        for (ImageFile file : imageFiles()) {
+            if (!used.contains(file.path)) {
+                System.out.println("Removing unusable snapshot image " + file.path.getFileName());
+                Files.deleteIfExists(file.path);
+            }
+        }
+        return chain;
+    }
+
+    // All parts of one image are present, intact and end with the last part
+    private boolean isComplete(List<ImageFile> set) throws IOException {
+        set.sort(Comparator.comparingInt(file -> file.part));
+        for (int i = 0; i < set.size(); i++) {
+            ImageFile file = set.get(i);
+            if (file.part != i || !open(file) || file.last != (i == set.size() - 1)) {
+                return false;
+            }
+            ImageFile first = set.get(0);
+            if (file.baseEpoch != first.baseEpoch || file.fromEpoch != first.fromEpoch) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Map the file and read its header and trailer; false if it is not a valid image
+    private static boolean open(ImageFile file) throws IOException {
+        long size = Files.size(file.path);
+        if (size < TRAILER_BYTES + 32 || size > Integer.MAX_VALUE) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+            file.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            file.buf.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        MappedByteBuffer buf = file.buf;
+        int end = buf.capacity() - 8;
+        CRC32C crc = new CRC32C();
+        ByteBuffer view = buf.duplicate();
+        view.limit(end);
+        crc.update(view);
+        if (buf.getLong(end) != crc.getValue() || buf.getInt(0) != MAGIC || buf.getShort(4) != FORMAT
+                || buf.get(6) != file.kind) {
+            return false;
+        }
+        int trailer = buf.capacity() - TRAILER_BYTES;
+        file.namesOffset = buf.getLong(trailer);
+        file.rows = buf.getInt(trailer + 8);
+        file.nameCount = buf.getInt(trailer + 12);
+        file.last = buf.get(trailer + 20) == 1;
+        if (buf.getInt(8) != file.epoch || buf.getInt(trailer + 16) != file.part) {
+            return false;
+        }
+        file.baseEpoch = buf.getInt(12);
+        file.fromEpoch = buf.getInt(16);
+        buf.position(28);
+        int shards = buf.getShort();
+        file.watermarks = new LinkedHashMap<>();
+        for (int i = 0; i < shards; i++) {
+            String shard = getString(buf);
+            file.watermarks.put(shard, buf.getLong());
+        }
+        file.rowsOffset = buf.position();
+        buf.position(0);
+        return true;
+    }
+
+    // Add the image's accounts to the registry; a delta replaces accounts already there
+    private static int readRows(ImageFile file, AccountRegistry registry) {
+        ByteBuffer buf = file.buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buf.position((int) file.namesOffset);
+        String[] names = new String[file.nameCount];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = getString(buf);
+        }
+
+        buf.position(file.rowsOffset);
+        List<BankAccount> page = new ArrayList<>(LOAD_PAGE);
+        int loaded = 0;
+        for (int i = 0; i < file.rows; i++) {
+            int accNo = buf.getInt();
+            byte type = buf.get();
+            long balance = buf.getLong();
+            long persisted = buf.getLong();
+            long version = buf.getLong();
+            int nameId = buf.getInt();
+            String email = getString(buf);
+            String name = nameId < 0 ? null : names[nameId];
+            BankAccount account = BankAccount.restore(type == SAVINGS, accNo, name, balance, email);
+            account.markPersisted(persisted, version);
+            if (file.kind == BASE) {
+                page.add(account);
+                if (page.size() == LOAD_PAGE) {
+                    loaded += registry.addAll(page);
+                    page.clear();
+                }
+            } else {
+                replace(registry, account);
+                loaded++;
+            }
+        }
+        return loaded + registry.addAll(page);
+    }
+
+    private static void replace(AccountRegistry registry, BankAccount account) {
+        registry.remove(account.getAccountNumber());
+        registry.add(account);
+    }
+
+    // Read the rows changed since the image was taken from every shard; a shard the
+    // image does not know is read in full. Returns the number of rows read.
+    private long catchUp(AccountRegistry registry, Map<String, Long> watermarks) throws SQLException {
+        long rows = 0;
+        for (ShardRouter.Shard shard : BankingApp.shards.shards()) {
+            Long watermark = watermarks.get(shard.name);
+            String sql = watermark == null ? AccountLoader.SELECT_COLUMNS : CHANGED_SINCE_SQL;
+            try (Connection conn = BankingApp.getConnection(shard);
+                    PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                if (watermark != null) {
+                    pstmt.setBigDecimal(1, BigDecimal.valueOf(Math.max(0, watermark - marginMicros), 6));
+                }
+                pstmt.setFetchSize(LOAD_PAGE);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        replace(registry, AccountLoader.readAccount(rs));
+                        rows++;
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    private List<ImageFile> imageFiles() throws IOException {
+        List<ImageFile> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                // <kind>-<epoch>-<part>.img
+                String[] fields = path.getFileName().toString().replace(SUFFIX, "").split("-");
+                if (fields.length != 3) {
+                    continue;
+                }
+                byte kind = (byte) Arrays.asList(KIND_NAMES).indexOf(fields[0]);
+                try {
+                    if (kind >= 0) {
+                        files.add(new ImageFile(path, kind, Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+                    }
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return files;
+    }
+
+    // Write a snapshot every intervalSec seconds, the first one after initialDelaySec
+    // once the loader has finished
+    public synchronized void start(AccountRegistry registry, AccountLoader loader, long initialDelaySec,
+            long intervalSec) {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "account-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(() -> {
+            try {
+                loader.awaitCompletion();
+                write(registry);
+            } catch (IOException | SQLException | RuntimeException e) {
+                System.out.println("Error writing account snapshot: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, initialDelaySec, Math.max(1, intervalSec), TimeUnit.SECONDS);
+    }
+
+    // Stop the timer and write a last snapshot
+    public void close(AccountRegistry registry) throws IOException, SQLException {
+        ScheduledExecutorService t;
+        synchronized (this) {
+            t = timer;
+        }
+        if (t != null) {
+            t.shutdown();
+            try {
+                t.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        write(registry);
+    }
+
+    public synchronized String loadSummary() {
+        double seconds = loadNanos / 1e9;
+        return String.format("Loaded %d accounts from snapshot images and %d changed rows from the database "
+                + "in %.2f s (%.0f rows/sec)", loadedRows, caughtUpRows, seconds,
+                seconds > 0 ? (loadedRows + caughtUpRows) / seconds : 0);
+    }
+
+    public synchronized String stats() {
+        return String.format("written=%d lastRows=%d lastSize=%.1fMB lastWriteMs=%.0f base=%d deltas=%d "
+                + "(%.1fMB base, %.1fMB deltas)", written, lastRows, lastBytes / 1048576.0, lastWriteNanos / 1e6,
+                baseEpoch, deltas, baseBytes / 1048576.0, deltaBytes / 1048576.0);
+    }
+}
@@ -0,0 +1,380 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// Compact store of all accounts outside the Java heap (-Dbank.load.mode=compact),
+// for books where one object per account makes garbage collection the largest
+// latency outlier. Rows live in pages of 65536; each page is one direct ByteBuffer
+// laid out column by column (account number, balance, persisted balance, version,
+// name id, email id, type), 41 bytes per row. Names and emails are dictionary-encoded,
+// and the account-number index is an off-heap open-addressing table, so the heap
+// holds a few objects per page instead of three per account.
+// BankAccount objects exist only for the accounts in use: the bounded AccountCache in
+// front of the store materializes them on a miss. Balance and persisted-state changes
+// are copied into the store while the account's lock is held, so a materialized
+// account always starts from the latest state.
+class AccountStore {
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_ROWS = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_ROWS - 1;
+
+    // Column offsets within a page
+    private static final int ACC_NO = 0;
+    private static final int BALANCE = ACC_NO + 4 * PAGE_ROWS;
+    private static final int PERSISTED = BALANCE + 8 * PAGE_ROWS;
+    private static final int VERSION = PERSISTED + 8 * PAGE_ROWS;
+    private static final int NAME = VERSION + 8 * PAGE_ROWS;
+    private static final int EMAIL = NAME + 4 * PAGE_ROWS;
+    private static final int TYPE = EMAIL + 4 * PAGE_ROWS;
+    private static final int PAGE_BYTES = TYPE + PAGE_ROWS;
+
+    private static final byte DELETED = 0;
+    private static final byte SAVINGS = 1;
+    private static final byte CURRENT = 2;
+
+    private static final float LOAD_FACTOR = 0.6f;
+    private static final int MAX_INDEX_SLOTS = 1 << 27; // 8 bytes each, within one ByteBuffer
+
+    private ByteBuffer[] pages = new ByteBuffer[16];
+    private int rows; // rows used, deleted ones included
+    private int live;
+
+    private ByteBuffer index; // per slot: account number, row + 1 (0 = empty)
+    private int mask;
+    private int resizeAt;
+
+    private final StringDictionary names = new StringDictionary();
+    private final StringDictionary emails = new StringDictionary();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public AccountStore(int expectedSize) {
+        int needed = (int) Math.ceil(Math.max(expectedSize, 16) / LOAD_FACTOR);
+        allocateIndex(Math.min(MAX_INDEX_SLOTS, Integer.highestOneBit(needed - 1) << 1));
+    }
+
+    private void allocateIndex(int slots) {
+        index = StringDictionary.allocate(slots * 8);
+        mask = slots - 1;
+        resizeAt = (int) (slots * LOAD_FACTOR);
+    }
+
+    private int slot(int accNo) {
+        int h = accNo * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    // Row of the account, -1 if it is not stored; callers hold the lock
+    private int find(int accNo) {
+        int i = slot(accNo);
+        int row;
+        while ((row = index.getInt(i * 8 + 4)) != 0) {
+            if (index.getInt(i * 8) == accNo) {
+                return row - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private ByteBuffer page(int row) {
+        return pages[row >>> PAGE_SHIFT];
+    }
+
+    // Add a new account, returns false if the account number is already taken
+    public boolean add(BankAccount account) {
+        lock.writeLock().lock();
+        try {
+            int accNo = account.getAccountNumber();
+            if (find(accNo) >= 0) {
+                return false;
+            }
+            if (live + 1 > resizeAt) {
+                if (mask + 1 >= MAX_INDEX_SLOTS) {
+                    throw new IllegalStateException("Account store is full: " + live + " accounts");
+                }
+                rehash((mask + 1) * 2);
+            }
+            int row = rows++;
+            if ((row >>> PAGE_SHIFT) == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+            }
+            if (pages[row >>> PAGE_SHIFT] == null) {
+                pages[row >>> PAGE_SHIFT] = StringDictionary.allocate(PAGE_BYTES);
+            }
+            ByteBuffer page = page(row);
+            int r = row & PAGE_MASK;
+            page.putInt(ACC_NO + r * 4, accNo);
+            page.putLong(BALANCE + r * 8, account.getBalance());
+            page.putLong(PERSISTED + r * 8, account.getPersistedBalance());
+            page.putLong(VERSION + r * 8, account.getVersion());
+            page.putInt(NAME + r * 4, names.intern(account.getHoldername()));
+            page.putInt(EMAIL + r * 4, emails.intern(account.getEmail()));
+            page.put(TYPE + r, account instanceof SavingsAccount ? SAVINGS : CURRENT);
+
+            int i = slot(accNo);
+            while (index.getInt(i * 8 + 4) != 0) {
+                i = (i + 1) & mask;
+            }
+            index.putInt(i * 8, accNo);
+            index.putInt(i * 8 + 4, row + 1);
+            live++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Add a page of accounts under one lock, skipping numbers that are already present
+    public int addAll(List<BankAccount> batch) {
+        lock.writeLock().lock();
+        try {
+            int added = 0;
+            for (BankAccount account : batch) {
+                if (add(account)) {
+                    added++;
+                }
+            }
+            return added;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void rehash(int slots) {
+        ByteBuffer old = index;
+        allocateIndex(slots);
+        for (int j = 0; j < old.capacity() / 8; j++) {
+            int row = old.getInt(j * 8 + 4);
+            if (row != 0) {
+                int accNo = old.getInt(j * 8);
+                int i = slot(accNo);
+                while (index.getInt(i * 8 + 4) != 0) {
+                    i = (i + 1) & mask;
+                }
+                index.putInt(i * 8, accNo);
+                index.putInt(i * 8 + 4, row);
+            }
+        }
+    }
+
+    // Remove an account; its row is marked deleted and not reused
+    public boolean remove(int accNo) {
+        lock.writeLock().lock();
+        try {
+            int i = slot(accNo);
+            int row;
+            while ((row = index.getInt(i * 8 + 4)) != 0) {
+                if (index.getInt(i * 8) == accNo) {
+                    page(row - 1).put(TYPE + ((row - 1) & PAGE_MASK), DELETED);
+                    deleteSlot(i);
+                    live--;
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Backward-shift deletion, as in AccountRegistry
+    private void deleteSlot(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            int row = index.getInt(i * 8 + 4);
+            if (row == 0) {
+                break;
+            }
+            int accNo = index.getInt(i * 8);
+            int home = slot(accNo);
+            boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                index.putInt(hole * 8, accNo);
+                index.putInt(hole * 8 + 4, row);
+                hole = i;
+            }
+        }
+        index.putInt(hole * 8, 0);
+        index.putInt(hole * 8 + 4, 0);
+    }
+
+    public boolean contains(int accNo) {
+        lock.readLock().lock();
+        try {
+            return find(accNo) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // A new account object with the stored state, null if the account is not stored
+    public BankAccount materialize(int accNo) {
+        lock.readLock().lock();
+        try {
+            int row = find(accNo);
+            return row < 0 ? null : materializeRow(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private BankAccount materializeRow(int row) {
+        ByteBuffer page = page(row);
+        int r = row & PAGE_MASK;
+        int accNo = page.getInt(ACC_NO + r * 4);
+        String name = names.get(page.getInt(NAME + r * 4));
+        String email = emails.get(page.getInt(EMAIL + r * 4));
+        BankAccount account = BankAccount.restore(page.get(TYPE + r) == SAVINGS, accNo, name,
+                page.getLong(BALANCE + r * 8), email);
+        account.markPersisted(page.getLong(PERSISTED + r * 8), page.getLong(VERSION + r * 8));
+        return account;
+    }
+
+    // Balance after a change; callers hold the account's lock
+    public void setBalance(int accNo, long balance) {
+        lock.readLock().lock();
+        try {
+            int row = find(accNo);
+            if (row >= 0) {
+                page(row).putLong(BALANCE + (row & PAGE_MASK) * 8, balance);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Balance and persisted state of an account object; callers hold the account's lock
+    public void update(BankAccount account) {
+        long balance;
+        long persisted;
+        long version;
+        synchronized (account) {
+            balance = account.getBalance();
+            persisted = account.getPersistedBalance();
+            version = account.getVersion();
+        }
+        lock.readLock().lock();
+        try {
+            int row = find(account.getAccountNumber());
+            if (row >= 0) {
+                ByteBuffer page = page(row);
+                int r = row & PAGE_MASK;
+                page.putLong(BALANCE + r * 8, balance);
+                synchronized (page) {
+                    page.putLong(PERSISTED + r * 8, persisted);
+                    page.putLong(VERSION + r * 8, version);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The database row holds this balance at this version; same rule as BankAccount.markPersisted
+    public void markPersisted(int accNo, long balance, long version) {
+        lock.readLock().lock();
+        try {
+            int row = find(accNo);
+            if (row < 0) {
+                return;
+            }
+            ByteBuffer page = page(row);
+            int r = row & PAGE_MASK;
+            // The writer thread and lock holders both get here; the page is the monitor
+            synchronized (page) {
+                if (version < 0 || version > page.getLong(VERSION + r * 8)) {
+                    page.putLong(PERSISTED + r * 8, balance);
+                    page.putLong(VERSION + r * 8, version);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Stored row version, -1 if unknown or not stored
+    public long getVersion(int accNo) {
+        lock.readLock().lock();
+        try {
+            int row = find(accNo);
+            return row < 0 ? -1 : page(row).getLong(VERSION + (row & PAGE_MASK) * 8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Stored balance of the row at that version, 0 if not stored
+    public long getPersistedBalance(int accNo) {
+        lock.readLock().lock();
+        try {
+            int row = find(accNo);
+            return row < 0 ? 0 : page(row).getLong(PERSISTED + (row & PAGE_MASK) * 8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Find accounts by email or holder name (case-insensitive)
+    public List<BankAccount> findByEmail(String email) {
+        return findBy(emails, EMAIL, email);
+    }
+
+    public List<BankAccount> findByHolderName(String name) {
+        return findBy(names, NAME, name);
+    }
+
+    // Scan the id column for the matching dictionary entries
+    private List<BankAccount> findBy(StringDictionary dictionary, int column, String key) {
+        lock.readLock().lock();
+        try {
+            Set<Integer> ids = dictionary.idsMatching(key);
+            List<BankAccount> found = new ArrayList<>();
+            if (ids.isEmpty()) {
+                return found;
+            }
+            int[] sorted = ids.stream().mapToInt(Integer::intValue).sorted().toArray();
+            for (int row = 0; row < rows; row++) {
+                ByteBuffer page = page(row);
+                int r = row & PAGE_MASK;
+                if (page.get(TYPE + r) != DELETED && Arrays.binarySearch(sorted, page.getInt(column + r * 4)) >= 0) {
+                    found.add(materializeRow(row));
+                }
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Direct memory held by the pages, the index and the dictionaries
+    public long offHeapBytes() {
+        lock.readLock().lock();
+        try {
+            long pageCount = (rows + PAGE_ROWS - 1) >>> PAGE_SHIFT;
+            return pageCount * PAGE_BYTES + index.capacity() + names.offHeapBytes() + emails.offHeapBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String stats() {
+        lock.readLock().lock();
+        try {
+            return String.format("accounts=%d rows=%d names=%d emails=%d offHeapMb=%.1f", live, rows, names.size(),
+                    emails.size(), offHeapBytes() / 1048576.0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.*;
+import java.util.*;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+// Heap usage and GC pauses of the object model (AccountRegistry) against the
+// off-heap AccountStore with a bounded cache in front (bank.load.mode=compact).
+// Run one model per JVM so the numbers do not mix:
+//   java -Xms3g -Xmx3g AccountStoreBenchmark objects [accounts]
+//   java -Xms3g -Xmx3g -XX:MaxDirectMemorySize=2g AccountStoreBenchmark compact [accounts]
+// (a fixed heap size, so both models get the same young generation)
+// Prints the heap in use and the off-heap bytes after a full GC, the time of a full GC
+// with the book loaded, then looks up random accounts (which fills the cache in compact
+// mode) and runs deposits and withdrawals while short-lived garbage is allocated,
+// reporting the collections and the longest pause of each phase.
+class AccountStoreBenchmark {
+    private static final int NAMES = 50_000;
+
+    private static long gcCount;
+    private static long gcMillis;
+    private static long maxPauseMillis;
+
+    public static void main(String[] args) throws Exception {
+        String model = args.length > 0 ? args[0] : "objects";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+        int ops = Integer.getInteger("bench.ops", 2_000_000);
+        boolean compact = model.equals("compact");
+        // Must be set before BankingApp is initialized
+        System.setProperty("bank.load.mode", compact ? "compact" : "eager");
+        System.setProperty("bank.store.expectedAccounts", Integer.toString(count));
+        watchCollections();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            // New strings per account, as rows read over JDBC would have
+            String name = "Customer " + (i % NAMES);
+            String email = "customer" + i + "@mail.example.com";
+            BankAccount account = i % 2 == 0 ? new SavingsAccount(i, name, 1_000_000, email)
+                    : new CurrentAccount(i, name, 1_000_000, email);
+            account.markPersisted(1_000_000, 0);
+            if (compact) {
+                BankingApp.store.add(account);
+            } else {
+                BankingApp.accounts.add(account);
+            }
+        }
+        double loadSeconds = (System.nanoTime() - start) / 1e9;
+        long heap = usedHeap();
+        long offHeap = compact ? BankingApp.store.offHeapBytes() : 0;
+        System.out.printf("%s: %d accounts loaded in %.2f s%n", model, count, loadSeconds);
+        System.out.printf("heap in use %.1f MB (%.0f B/account), off-heap %.1f MB (%.0f B/account)%n",
+                heap / 1048576.0, heap / (double) count, offHeap / 1048576.0, offHeap / (double) count);
+
+        long[] fullGc = new long[3];
+        for (int i = 0; i < fullGc.length; i++) {
+            long t = System.nanoTime();
+            System.gc();
+            fullGc[i] = System.nanoTime() - t;
+        }
+        Arrays.sort(fullGc);
+        System.out.printf("full GC with the book loaded: %.1f ms (median of 3)%n", fullGc[1] / 1e6);
+
+        // Same work as the app's engine, without the journal and database
+        TransactionEngine engine = new TransactionEngine(BankingApp::findaccount, 1024,
+                (accNo, type, amount, balance) -> {
+                    if (BankingApp.store != null) {
+                        BankingApp.store.setBalance(accNo, balance);
+                    }
+                });
+        int[] order = new int[1 << 16];
+        Random random = new Random(42);
+        for (int i = 0; i < order.length; i++) {
+            order[i] = random.nextInt(count);
+        }
+        int mask = order.length - 1;
+        long collections = gcCount;
+        long collectionMillis = gcMillis;
+        maxPauseMillis = 0;
+        Bench.run(model + ": findaccount", ops, i -> BankingApp.findaccount(order[i & mask]).getAccountNumber());
+        System.out.printf("  %d collections, %d ms total, longest pause %d ms%n",
+                gcCount - collections, gcMillis - collectionMillis, maxPauseMillis);
+
+        collections = gcCount;
+        collectionMillis = gcMillis;
+        maxPauseMillis = 0;
+        Bench.run(model + ": deposit+withdraw with garbage", ops, i -> {
+            int accNo = order[i & mask];
+            engine.deposit(accNo, 100);
+            byte[] garbage = new byte[256]; // request parsing, logging and the like
+            return engine.withdraw(accNo, 100) + garbage.length;
+        });
+        System.out.printf("  %d collections, %d ms total, longest pause %d ms%n",
+                gcCount - collections, gcMillis - collectionMillis, maxPauseMillis);
+        if (compact) {
+            System.out.println("Account store: " + BankingApp.store.stats());
+            System.out.println("Account cache: " + BankingApp.cache.stats());
+        }
+        System.exit(0);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // Count every collection and remember the longest one
+    private static void watchCollections() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (info.getGcCause().equals("System.gc()")) {
+                    return;
+                }
+                long duration = info.getGcInfo().getDuration();
+                synchronized (AccountStoreBenchmark.class) {
+                    gcCount++;
+                    gcMillis += duration;
+                    maxPauseMillis = Math.max(maxPauseMillis, duration);
+                }
+            }, null, null);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+// Input checks for new accounts.
+// Each check returns a result code instead of throwing, so bulk paths can reject
+// bad rows without building exceptions. The require* methods wrap the same checks
+// in the usual InvalidEmailException/InvalidAmountException for the console.
+// The email check is hand-written and accepts exactly what the old pattern
+// ^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\.[a-zA-Z]{2,}$ accepted, without compiling a regex per call.
+// Names and emails must also fit their VARCHAR(100) columns, which would otherwise
+// truncate them or fail the insert.
+final class AccountValidator {
+    static final int OK = 0;
+    static final int EMAIL_INVALID = 1;
+    static final int NAME_EMPTY = 2;
+    static final int NAME_TOO_LONG = 3;
+    static final int BALANCE_NEGATIVE = 4;
+    static final int AMOUNT_NOT_POSITIVE = 5;
+    static final int EMAIL_TOO_LONG = 6;
+
+    static final int MAX_NAME_LENGTH = 100; // holder_name column width
+    static final int MAX_EMAIL_LENGTH = 100; // email column width
+
+    private static final String[] MESSAGES = {
+            "OK",
+            "Invalid email format. Please use format: example@domain.com",
+            "Name cannot be empty.",
+            "Name cannot be longer than " + MAX_NAME_LENGTH + " characters.",
+            "Initial balance cannot be negative",
+            "Amount must be positive",
+            "Email cannot be longer than " + MAX_EMAIL_LENGTH + " characters.",
+    };
+
+    private AccountValidator() {
+    }
+
+    static String message(int code) {
+        return MESSAGES[code];
+    }
+
+    static int checkEmail(String email) {
+        if (email == null) {
+            return EMAIL_INVALID;
+        }
+        int length = email.length();
+        if (length > MAX_EMAIL_LENGTH) {
+            return EMAIL_TOO_LONG;
+        }
+        int at = -1;
+        int lastDot = -1;
+        for (int i = 0; i < length; i++) {
+            char c = email.charAt(i);
+            if (c == '@') {
+                if (at >= 0) {
+                    return EMAIL_INVALID; // '@' is not allowed in either part
+                }
+                at = i;
+            } else if (at < 0) {
+                if (!isLocalChar(c)) {
+                    return EMAIL_INVALID;
+                }
+            } else if (c == '.') {
+                lastDot = i;
+            } else if (!isLetterOrDigit(c) && c != '-') {
+                return EMAIL_INVALID;
+            }
+        }
+        // Non-empty local part, at least one domain character before the last dot,
+        // and a top-level domain of two or more letters after it
+        if (at < 1 || lastDot < at + 2 || length - lastDot - 1 < 2) {
+            return EMAIL_INVALID;
+        }
+        for (int i = lastDot + 1; i < length; i++) {
+            if (!isLetter(email.charAt(i))) {
+                return EMAIL_INVALID;
+            }
+        }
+        return OK;
+    }
+
+    static int checkName(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return NAME_EMPTY;
+        }
+        return name.length() > MAX_NAME_LENGTH ? NAME_TOO_LONG : OK;
+    }
+
+    static int checkInitialBalance(long cents) {
+        return cents < 0 ? BALANCE_NEGATIVE : OK;
+    }
+
+    static int checkAmount(long cents) {
+        return cents <= 0 ? AMOUNT_NOT_POSITIVE : OK;
+    }
+
+    // All checks for a new account, returns the first failure
+    static int checkNewAccount(String name, String email, long balance) {
+        int code = checkName(name);
+        if (code == OK) {
+            code = checkEmail(email);
+        }
+        if (code == OK) {
+            code = checkInitialBalance(balance);
+        }
+        return code;
+    }
+
+    static void requireValidEmail(String email) throws InvalidEmailException {
+        int code = checkEmail(email);
+        if (code != OK) {
+            throw new InvalidEmailException(message(code));
+        }
+    }
+
+    static void requireValidNewAccount(String name, String email, long balance)
+            throws InvalidEmailException, InvalidAmountException {
+        int code = checkNewAccount(name, email, balance);
+        if (code == BALANCE_NEGATIVE) {
+            throw new InvalidAmountException(message(code));
+        } else if (code == EMAIL_INVALID || code == EMAIL_TOO_LONG) {
+            throw new InvalidEmailException(message(code));
+        } else if (code != OK) {
+            throw new IllegalArgumentException(message(code));
+        }
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return isLetter(c) || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isLocalChar(char c) {
+        return isLetterOrDigit(c) || c == '.' || c == '_' || c == '%' || c == '+' || c == '-';
+    }
+}
@@ -0,0 +1,68 @@
+import java.sql.*;
+
+// Version tracking for the balance writer, backed by the accounts held in memory.
+// When another instance has changed a row since we read it, the row is read again,
+// our unsaved change (balance minus the last persisted balance) is re-applied on top
+// of it, and the result is submitted for the next flush. The conditional UPDATE is
+// retried this way until it wins, without holding row locks in the database.
+class AccountVersions implements BalanceWriter.VersionTracker {
+    private static final String ROW_SQL = "SELECT balance, version FROM accounts WHERE account_number = ?";
+
+    @Override
+    public long expectedVersion(int accountNumber) {
+        BankAccount account = BankingApp.residentAccount(accountNumber);
+        if (account == null) {
+            return BankingApp.store != null ? BankingApp.store.getVersion(accountNumber) : -1;
+        }
+        return account.getVersion();
+    }
+
+    @Override
+    public long persistedBalance(int accountNumber) {
+        BankAccount account = BankingApp.residentAccount(accountNumber);
+        if (account == null) {
+            return BankingApp.store != null ? BankingApp.store.getPersistedBalance(accountNumber) : 0;
+        }
+        return account.getPersistedBalance();
+    }
+
+    @Override
+    public void persisted(int accountNumber, long balance, long version) {
+        BankingApp.markPersisted(accountNumber, balance, version);
+    }
+
+    @Override
+    public void resolveConflict(int accountNumber) {
+        BankingApp.engine.withAccountLocked(accountNumber, () -> {
+            BankAccount account = BankingApp.residentAccount(accountNumber);
+            if (account == null && BankingApp.store != null) {
+                account = BankingApp.store.materialize(accountNumber);
+            }
+            if (account == null) {
+                System.out.println("Account " + accountNumber + " left memory before its update conflict was resolved.");
+                return;
+            }
+            try (Connection conn = BankingApp.getConnection(accountNumber);
+                    PreparedStatement pstmt = conn.prepareStatement(ROW_SQL)) {
+                pstmt.setInt(1, accountNumber);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        System.out.println("Account " + accountNumber + " was deleted by another instance.");
+                        return;
+                    }
+                    long balance = account.rebase(rs.getLong("balance"), rs.getLong("version"));
+                    BankingApp.storeAccount(account);
+                    if (balance < 0 && account instanceof SavingsAccount) {
+                        System.out.println("Warning: account " + accountNumber
+                                + " is overdrawn after merging concurrent updates: " + Money.format(balance));
+                    }
+                    BankingApp.submitBalance(accountNumber, balance);
+                }
+            } catch (SQLException e) {
+                // Submit the unchanged balance so the next flush conflicts and retries the refresh
+                System.out.println("Error refreshing account " + accountNumber + ": " + e.getMessage());
+                BankingApp.submitBalance(accountNumber, account.getBalance());
+            }
+        });
+    }
+}
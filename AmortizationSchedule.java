@@ -0,0 +1,71 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// The remaining installments of a loan, assuming every future payment is made.
+// Nothing is stored: each installment is computed from the previous one while
+// iterating, so a 30-year schedule costs no more memory than a 1-month one.
+class AmortizationSchedule implements Iterable<AmortizationSchedule.Installment> {
+    static final class Installment {
+        final int number;
+        final long payment;
+        final long interest;
+        final long principal;
+        final long outstandingAfter;
+
+        Installment(int number, long payment, long interest, long principal, long outstandingAfter) {
+            this.number = number;
+            this.payment = payment;
+            this.interest = interest;
+            this.principal = principal;
+            this.outstandingAfter = outstandingAfter;
+        }
+    }
+
+    private final Loan loan;
+    private final long startOutstanding;
+    private final int startPaymentsMade;
+
+    AmortizationSchedule(Loan loan) {
+        this.loan = loan;
+        this.startOutstanding = loan.outstanding;
+        this.startPaymentsMade = loan.paymentsMade;
+    }
+
+    @Override
+    public Iterator<Installment> iterator() {
+        return new Iterator<Installment>() {
+            private long outstanding = startOutstanding;
+            private int made = startPaymentsMade;
+
+            @Override
+            public boolean hasNext() {
+                return outstanding > 0;
+            }
+
+            @Override
+            public Installment next() {
+                if (outstanding <= 0) {
+                    throw new NoSuchElementException();
+                }
+                long interest = Loan.monthlyInterest(outstanding, loan.rateBp);
+                long due = loan.dueAt(outstanding, made);
+                outstanding = outstanding + interest - due;
+                made++;
+                return new Installment(made, due, interest, due - interest, outstanding);
+            }
+        };
+    }
+
+    // Add the installments due in each of the next months to collected[month], without
+    // creating Installment objects; used for projections over the whole portfolio
+    static void addCollections(Loan loan, long[] collected) {
+        long outstanding = loan.outstanding;
+        int made = loan.paymentsMade;
+        for (int month = 0; month < collected.length && outstanding > 0; month++) {
+            long due = loan.dueAt(outstanding, made);
+            collected[month] += due;
+            outstanding = outstanding + Loan.monthlyInterest(outstanding, loan.rateBp) - due;
+            made++;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.*;
+import java.nio.file.*;
+
+// Throughput of the transaction path with different ways of logging each operation:
+// nothing, a println per operation (the old "Amount Deposited" messages, stdout
+// redirected to a file) and the AuditLog ring buffer with each full-ring policy.
+// Single-threaded with Bench (ns/op and B/op), then with several threads to show
+// how much a shared synchronous stream serializes the callers.
+// Run: java AuditBenchmark [threads]
+class AuditBenchmark {
+    private static final int ACCOUNTS = 10_000;
+
+    interface Logger {
+        void log(int accNo, short type, long amount, long balance);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+        int ops = Integer.getInteger("bench.ops", 500_000);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            BankingApp.accounts.add(new CurrentAccount(i, "Customer " + i, 1_000_000, "c" + i + "@mail.example.com"));
+        }
+        Path dir = Files.createTempDirectory("audit-bench");
+        // Redirected stdout: JDK's System.out is an autoflushing PrintStream over a small buffer
+        PrintStream stdout = new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(dir.resolve("stdout.txt").toFile()), 128), true);
+        AuditLog block = new AuditLog(dir.resolve("block.log"), 65536, AuditLog.BLOCK, 64L << 20, 2);
+        AuditLog drop = new AuditLog(dir.resolve("drop.log"), 65536, AuditLog.DROP, 64L << 20, 2);
+
+        Logger none = (accNo, type, amount, balance) -> {
+        };
+        Logger println = (accNo, type, amount, balance) -> stdout.println(
+                (type == Ledger.DEPOSIT ? "Amount Deposited: " : "Amount Withdrawn: ") + Money.format(amount));
+        Logger blocking = (accNo, type, amount, balance) -> block.record(type, accNo, amount, balance);
+        Logger dropping = (accNo, type, amount, balance) -> drop.record(type, accNo, amount, balance);
+
+        String[] names = { "no logging", "println to redirected stdout", "AuditLog (block)", "AuditLog (drop)" };
+        Logger[] loggers = { none, println, blocking, dropping };
+        for (int l = 0; l < loggers.length; l++) {
+            TransactionEngine engine = engine(loggers[l]);
+            Bench.run("deposit+withdraw, " + names[l], ops, i -> {
+                int accNo = Math.floorMod(i * 7919, ACCOUNTS);
+                engine.deposit(accNo, 100);
+                return engine.withdraw(accNo, 100);
+            });
+        }
+        System.out.println();
+        for (int l = 0; l < loggers.length; l++) {
+            threaded("deposit+withdraw, " + names[l], threads, ops, engine(loggers[l]));
+        }
+
+        block.close();
+        drop.close();
+        stdout.close();
+        System.out.println();
+        System.out.println("AuditLog (block): " + block.stats());
+        System.out.println("AuditLog (drop):  " + drop.stats());
+        System.exit(0);
+    }
+
+    private static TransactionEngine engine(Logger logger) {
+        return new TransactionEngine(BankingApp::findaccount, 1024,
+                (accNo, type, amount, balance) -> logger.log(accNo, type, amount, balance));
+    }
+
+    // Every thread runs opsPerThread deposit+withdraw pairs on its own slice of accounts
+    private static void threaded(String name, int threads, int opsPerThread, TransactionEngine engine)
+            throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int offset = t * (ACCOUNTS / threads);
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < opsPerThread; i++) {
+                        int accNo = offset + i % (ACCOUNTS / threads);
+                        engine.deposit(accNo, 100);
+                        engine.withdraw(accNo, 100);
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-48s %2d threads %14.0f ops/s%n", name, threads, threads * (double) opsPerThread / seconds);
+    }
+}
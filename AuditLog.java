@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Audit stream of account events, written as one JSON object per line.
+// Callers only claim a slot in a ring buffer (one atomic increment, no lock) and store
+// the event's fields in a preallocated long array (four longs per slot, so one event
+// touches one cache line), so recording a balance change does not allocate. A background thread formats the published slots into a byte
+// buffer and writes them to the file in batches, starting a new file when it reaches
+// maxBytes and keeping the last maxFiles files (audit.log, audit.log.1, ...).
+// When the ring is full, DROP discards the event (and counts it), BLOCK makes the
+// caller wait for the writer.
+class AuditLog {
+    // Event types; balance changes use the Ledger record types
+    static final short ACCOUNT_OPENED = 16;
+    static final short ERROR = 17;
+
+    static final int DROP = 0;
+    static final int BLOCK = 1;
+
+    private static final byte[][] EVENT_BYTES = new byte[18][];
+    private static final byte[] TS = ascii("{\"ts\":");
+    private static final byte[] EVENT = ascii(",\"event\":\"");
+    private static final byte[] ACCOUNT = ascii("\",\"account\":");
+    private static final byte[] AMOUNT = ascii(",\"amount\":");
+    private static final byte[] BALANCE = ascii(",\"balance\":");
+    private static final byte[] DETAIL = ascii(",\"detail\":\"");
+    private static final byte[] END = ascii("}\n");
+
+    static {
+        String[] names = { null, "DEPOSIT", "WITHDRAWAL", "TRANSFER_IN", "TRANSFER_OUT", "INTEREST",
+                "LOAN_DISBURSEMENT", "LOAN_REPAYMENT" };
+        for (int i = 1; i < names.length; i++) {
+            EVENT_BYTES[i] = ascii(names[i]);
+        }
+        EVENT_BYTES[ACCOUNT_OPENED] = ascii("ACCOUNT_OPENED");
+        EVENT_BYTES[ERROR] = ascii("ERROR");
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private final int mask;
+    private final long[] slots; // time, amount, balance, account << 16 | type
+    private final String[] details;
+    private final AtomicLongArray published; // sequence stored in each slot once its fields are written
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed; // every sequence below this has been copied out of the ring
+
+    private final int policy;
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final byte[] buf = new byte[256 * 1024]; // formatted lines waiting to be written
+    private final ByteBuffer out = ByteBuffer.wrap(buf);
+    private int pos;
+    private final byte[] digits = new byte[20];
+    private FileChannel channel;
+    private long fileBytes;
+    private int bufferedLines;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // Metrics
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private long written;
+    private long batches;
+    private long rotations;
+
+    public AuditLog(Path file, int capacity, int policy, long maxBytes, int maxFiles) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.slots = new long[size * 4];
+        this.details = new String[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.policy = policy;
+        this.file = file;
+        this.maxBytes = Math.max(buf.length, maxBytes);
+        this.maxFiles = Math.max(1, maxFiles);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        openFile();
+
+        writer = new Thread(this::runWriter, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Record a balance change or other event without a message; does not allocate
+    public boolean record(short type, int accountNumber, long amount, long balance) {
+        return record(type, accountNumber, amount, balance, null);
+    }
+
+    public boolean record(short type, int accountNumber, long amount, long balance, String detail) {
+        long seq = claim();
+        if (seq < 0) {
+            return false;
+        }
+        int i = (int) seq & mask;
+        int s = i << 2;
+        slots[s] = System.currentTimeMillis();
+        slots[s + 1] = amount;
+        slots[s + 2] = balance;
+        slots[s + 3] = (long) accountNumber << 16 | (type & 0xFFFF);
+        details[i] = detail;
+        published.lazySet(i, seq); // makes the fields above visible to the writer
+        return true;
+    }
+
+    private long claim() {
+        if (closed) {
+            return -1;
+        }
+        int capacity = mask + 1;
+        if (policy == DROP) {
+            while (true) {
+                long seq = claimed.get();
+                if (seq - consumed >= capacity) {
+                    dropped.increment();
+                    return -1;
+                }
+                if (claimed.compareAndSet(seq, seq + 1)) {
+                    return seq;
+                }
+            }
+        }
+        long seq = claimed.getAndIncrement();
+        if (seq - consumed >= capacity) {
+            blocked.increment();
+            LockSupport.unpark(writer);
+            while (seq - consumed >= capacity) {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+        return seq;
+    }
+
+    private void runWriter() {
+        long next = 0;
+        while (true) {
+            int i = (int) next & mask;
+            if (published.get(i) == next) {
+                if (buf.length - pos < 512) {
+                    consumed = next;
+                    writeOut();
+                }
+                format(i);
+                details[i] = null;
+                next++;
+                continue;
+            }
+            // Nothing more published: hand the slots back and write what we have
+            consumed = next;
+            if (pos > 0) {
+                writeOut();
+                continue;
+            }
+            if (closed && claimed.get() == next) {
+                return;
+            }
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private void format(int i) {
+        int s = i << 2;
+        put(TS);
+        putLong(slots[s]);
+        put(EVENT);
+        short type = (short) slots[s + 3];
+        if (type > 0 && type < EVENT_BYTES.length && EVENT_BYTES[type] != null) {
+            put(EVENT_BYTES[type]);
+        } else {
+            putLong(type);
+        }
+        put(ACCOUNT);
+        putLong(slots[s + 3] >> 16);
+        put(AMOUNT);
+        putLong(slots[s + 1]);
+        put(BALANCE);
+        putLong(slots[s + 2]);
+        if (details[i] != null) {
+            put(DETAIL);
+            putEscaped(details[i]);
+            buf[pos++] = '"';
+        }
+        put(END);
+        bufferedLines++;
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    // Decimal digits of a long, without going through a String
+    private void putLong(long v) {
+        if (v < 0) {
+            buf[pos++] = '-';
+        } else {
+            v = -v; // work with negative values so Long.MIN_VALUE needs no special case
+        }
+        int p = digits.length;
+        do {
+            long q = v / 10;
+            digits[--p] = (byte) ('0' + (q * 10 - v));
+            v = q;
+        } while (v != 0);
+        System.arraycopy(digits, p, buf, pos, digits.length - p);
+        pos += digits.length - p;
+    }
+
+    // JSON string contents, UTF-8; long messages are cut to keep a line within the buffer margin
+    private void putEscaped(String s) {
+        int n = Math.min(s.length(), 120);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf[pos++] = '\\';
+                buf[pos++] = (byte) c;
+            } else if (c < 0x20) {
+                buf[pos++] = ' ';
+            } else if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | c >> 6);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xE0 | c >> 12);
+                buf[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private void writeOut() {
+        out.clear().limit(pos);
+        try {
+            if (fileBytes + pos > maxBytes) {
+                rotate();
+            }
+            while (out.hasRemaining()) {
+                fileBytes += channel.write(out);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing audit log: " + e.getMessage());
+        }
+        pos = 0;
+        synchronized (this) {
+            written += bufferedLines;
+            batches++;
+        }
+        bufferedLines = 0;
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        Path dir = file.toAbsolutePath().getParent();
+        String name = file.getFileName().toString();
+        Files.deleteIfExists(dir.resolve(name + "." + (maxFiles - 1)));
+        for (int n = maxFiles - 2; n >= 1; n--) {
+            Path from = dir.resolve(name + "." + n);
+            if (Files.exists(from)) {
+                Files.move(from, dir.resolve(name + "." + (n + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(file, dir.resolve(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        openFile();
+        synchronized (this) {
+            rotations++;
+        }
+    }
+
+    // Write everything recorded so far and stop the writer
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Error closing audit log: " + e.getMessage());
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public synchronized String stats() {
+        return String.format("events=%d written=%d dropped=%d blockedWaits=%d batches=%d rotations=%d policy=%s",
+                claimed.get(), written, dropped.sum(), blocked.sum(), batches, rotations,
+                policy == DROP ? "drop" : "block");
+    }
+}
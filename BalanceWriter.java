@@ -0,0 +1,801 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Write-behind stage for balance updates.
+// Every update is appended to a local journal and forced to disk before submit()
+// returns (or, with forceOnSubmit off, by the background thread on every flush
+// interval, trading a short durability window for throughput), then queued.
+// With groupCommit the force runs outside the queue lock, so submitters keep appending
+// while it is in progress, and one force covers every update appended before it: a
+// submitter whose record an earlier force already covered returns without forcing, so
+// concurrent submitters share one fsync and each is still acknowledged on its own.
+// Without it every submit forces the journal itself while holding the lock.
+// Updates that must be applied together (the two sides of a transfer) are submitted
+// with submitAll: they are journaled behind a group header, recovered all-or-nothing,
+// and always land in the same batch, so rows on one shard commit in one transaction.
+// Repeated updates to the same account are coalesced and a background thread writes
+// them with one JDBC batch when the batch size or the flush interval is reached.
+// Journal segments are deleted only after the batch commits.
+// With several shards the rows of a batch are committed per shard. A shard that fails
+// gets its rows back into the queue while the others stay committed; since each row is
+// the account's whole balance, retrying it later completes a change that spans shards
+// (such as a transfer) without touching the part that already committed.
+// With a VersionTracker each row is written only if its version is still the one the
+// balance was computed from; rows changed by another instance are handed back to the
+// tracker, which refreshes the account and submits the rebased balance. Until that
+// submit arrives the rejected balance is journaled again in every new segment, so
+// deleting the segments of a flush never drops an acknowledged update.
+// Every record also carries the row balance and version its balance was computed from,
+// so recovery after a crash goes through the same version check (see recover()).
+class BalanceWriter {
+    // account number, balance, base balance (cents), base version, crc
+    private static final int RECORD_SIZE = 32;
+    private static final int CRC_OFFSET = 28;
+    private static final String SEGMENT_PREFIX = "balances-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String UPDATE_SQL =
+            "UPDATE accounts SET balance = ?, version = version + 1 WHERE account_number = ?";
+    private static final String CHECKED_UPDATE_SQL = UPDATE_SQL + " AND version = ?";
+    private static final String ROW_SQL = "SELECT balance, version FROM accounts WHERE account_number = ?";
+
+    // Optimistic concurrency between several application instances sharing the table
+    interface VersionTracker {
+        // Row version the account's balance is based on, or -1 to write without a check
+        long expectedVersion(int accountNumber);
+
+        // Row balance at that version
+        long persistedBalance(int accountNumber);
+
+        // The row was written with this balance and now has this version
+        void persisted(int accountNumber, long balance, long version);
+
+        // The row was changed by someone else: reload it, rebase the account and submit again.
+        // Called on a separate thread that holds no other locks.
+        void resolveConflict(int accountNumber);
+    }
+
+    private final Path journalDir;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final boolean synchronous;
+    private final boolean forceOnSubmit;
+    private final boolean groupCommit;
+    private final VersionTracker versions;
+    private final ExecutorService conflictResolver;
+
+    private Map<Integer, Long> pending = new LinkedHashMap<>();
+    private Map<Integer, Long> inFlight = Collections.emptyMap(); // batch being written
+    // Conflicted, not resubmitted yet: balance, base balance, base version
+    private final Map<Integer, long[]> unresolved = new LinkedHashMap<>();
+    private long flushGeneration; // incremented whenever a flush finishes
+    private FileChannel journal;
+    private long segmentSeq;
+    private final long firstSegment; // segments before this one are left by an earlier run
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private long appendedSeq; // submits appended to the journal
+    private long durableSeq; // submits known to be on disk
+    private final CRC32 crc = new CRC32();
+    private final Object flushLock = new Object();
+    private final Object forceLock = new Object(); // taken before this
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    // Metrics
+    private long submitted;
+    private long coalesced;
+    private long rowsWritten;
+    private long flushes;
+    private long failedFlushes;
+    private long totalFlushNanos;
+    private long maxFlushNanos;
+    private long checkedRows;
+    private long conflicts;
+    private long forces;
+
+    public BalanceWriter(Path journalDir, int batchSize, long flushIntervalMillis, boolean synchronous,
+            boolean forceOnSubmit, boolean groupCommit, VersionTracker versions) throws IOException {
+        this.journalDir = journalDir;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.synchronous = synchronous;
+        this.forceOnSubmit = forceOnSubmit || synchronous;
+        this.groupCommit = groupCommit;
+        this.versions = versions;
+        this.conflictResolver = versions == null ? null : Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "balance-conflicts");
+            t.setDaemon(true);
+            return t;
+        });
+        Files.createDirectories(journalDir);
+
+        // Continue numbering after any segments left by a previous run
+        for (Path segment : segments()) {
+            segmentSeq = Math.max(segmentSeq, segmentNumber(segment));
+        }
+        openSegment();
+        firstSegment = segmentSeq;
+
+        if (synchronous) {
+            flusher = null;
+        } else {
+            flusher = new Thread(this::runFlusher, "balance-writer");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    // Record a new balance. With forceOnSubmit the update is durable when this method returns.
+    public void submit(int accountNumber, long balance) throws IOException {
+        long baseVersion = baseVersion(accountNumber);
+        long baseBalance = baseBalance(accountNumber, baseVersion);
+        long seq;
+        synchronized (this) {
+            if (!journal.isOpen()) {
+                throw new IllegalStateException("Balance writer is closed");
+            }
+            appendRecord(journal, accountNumber, balance, baseBalance, baseVersion, false);
+            queue(accountNumber, balance);
+            seq = appended();
+        }
+        acknowledge(seq);
+    }
+
+    // Record new balances that must be written together (the sides of a transfer).
+    // A crash never leaves only some of them in the journal. If the group cannot be
+    // appended the journal is cut back to where the group began, nothing is queued and the
+    // IOException is thrown; a force that fails once the balances are queued throws
+    // SyncFailedException, and the balances are written like any other queued ones.
+    public void submitAll(int[] accountNumbers, long[] balances) throws IOException {
+        long[] baseVersions = new long[accountNumbers.length];
+        long[] baseBalances = new long[accountNumbers.length];
+        for (int i = 0; i < accountNumbers.length; i++) {
+            baseVersions[i] = baseVersion(accountNumbers[i]);
+            baseBalances[i] = baseBalance(accountNumbers[i], baseVersions[i]);
+        }
+        long seq;
+        synchronized (this) {
+            if (!journal.isOpen()) {
+                throw new IllegalStateException("Balance writer is closed");
+            }
+            long start = journal.position();
+            try {
+                appendRecord(journal, accountNumbers.length, 0, 0, 0, true);
+                for (int i = 0; i < accountNumbers.length; i++) {
+                    appendRecord(journal, accountNumbers[i], balances[i], baseBalances[i], baseVersions[i], false);
+                }
+            } catch (IOException e) {
+                try {
+                    journal.truncate(start);
+                } catch (IOException truncateFailed) {
+                    e.addSuppressed(truncateFailed);
+                }
+                throw e;
+            }
+            for (int i = 0; i < accountNumbers.length; i++) {
+                queue(accountNumbers[i], balances[i]);
+            }
+            try {
+                seq = appended();
+            } catch (IOException e) {
+                throw syncFailed(e);
+            }
+        }
+        try {
+            acknowledge(seq);
+        } catch (IOException e) {
+            throw syncFailed(e);
+        }
+    }
+
+    private static SyncFailedException syncFailed(IOException cause) {
+        SyncFailedException e = new SyncFailedException(cause.getMessage());
+        e.initCause(cause);
+        return e;
+    }
+
+    // Row version the account's balance is computed from, -1 without version checks
+    private long baseVersion(int accountNumber) {
+        return versions == null ? -1 : versions.expectedVersion(accountNumber);
+    }
+
+    // Row balance that goes with the version. It is read after the version: if a flush lands
+    // in between, the pair names the newer row, whose balance this one already includes.
+    private long baseBalance(int accountNumber, long version) {
+        return version < 0 ? 0 : versions.persistedBalance(accountNumber);
+    }
+
+    // Add to the pending batch; callers hold this
+    private void queue(int accountNumber, long balance) {
+        unresolved.remove(accountNumber); // this record supersedes a conflicted one
+        if (pending.put(accountNumber, balance) != null) {
+            coalesced++;
+        }
+        submitted++;
+    }
+
+    // Count the submit just appended, waking the flusher if the batch is full; callers hold this
+    private long appended() throws IOException {
+        appendedSeq++;
+        if (forceOnSubmit && !groupCommit) {
+            force(); // one fsync per submit, under the lock
+        }
+        if (pending.size() >= batchSize && !synchronous) {
+            notifyAll();
+        }
+        return appendedSeq;
+    }
+
+    // Return once the submit is durable (and, when synchronous, written to the database)
+    private void acknowledge(long seq) throws IOException {
+        if (forceOnSubmit && groupCommit) {
+            synchronized (forceLock) {
+                long covered;
+                FileChannel channel;
+                synchronized (this) {
+                    if (durableSeq >= seq) {
+                        covered = -1; // forced by another submitter while this one waited
+                    } else {
+                        covered = appendedSeq;
+                    }
+                    channel = journal;
+                }
+                if (covered >= 0) {
+                    channel.force(false); // appends continue meanwhile, the next force covers them
+                    synchronized (this) {
+                        durableSeq = Math.max(durableSeq, covered);
+                        forces++;
+                    }
+                }
+            }
+        }
+        if (synchronous) {
+            try {
+                flush();
+            } catch (SQLException e) {
+                // Still journaled and pending, the next flush retries it
+                System.out.println("Error flushing balances: " + e.getMessage());
+            }
+        }
+    }
+
+    // Force the journal, covering everything appended so far; callers hold this (and forceLock
+    // whenever group commit may be forcing outside of it)
+    private void force() throws IOException {
+        journal.force(false);
+        durableSeq = appendedSeq;
+        forces++;
+    }
+
+    // Latest balance that has been acknowledged but not yet committed, or null
+    public synchronized Long pendingBalance(int accountNumber) {
+        Long balance = pending.get(accountNumber);
+        if (balance == null) {
+            balance = inFlight.get(accountNumber);
+        }
+        if (balance == null && unresolved.containsKey(accountNumber)) {
+            balance = unresolved.get(accountNumber)[0];
+        }
+        return balance;
+    }
+
+    // Whether a balance of one of the accounts is waiting for, or in, a flush
+    public synchronized boolean hasPending(int[] accountNumbers) {
+        for (int accNo : accountNumbers) {
+            if (pending.containsKey(accNo) || inFlight.containsKey(accNo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Changes whenever a flush finishes; lets readers detect a commit that raced with a database read
+    public synchronized long getFlushGeneration() {
+        return flushGeneration;
+    }
+
+    // A group header carries the number of records that follow in place of the account
+    // number, and its CRC inverted so it cannot be mistaken for a balance record
+    private void appendRecord(FileChannel out, int accountNumber, long balance, long baseBalance, long baseVersion,
+            boolean groupHeader) throws IOException {
+        record.clear();
+        record.putInt(accountNumber).putLong(balance).putLong(baseBalance).putLong(baseVersion);
+        crc.reset();
+        crc.update(record.array(), 0, CRC_OFFSET);
+        record.putInt(groupHeader ? ~(int) crc.getValue() : (int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            out.write(record);
+        }
+    }
+
+    private void runFlusher() {
+        while (!closed) {
+            synchronized (this) {
+                if (pending.size() < batchSize) {
+                    try {
+                        wait(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!forceOnSubmit && !closed) {
+                    try {
+                        force();
+                    } catch (IOException e) {
+                        System.out.println("Error syncing balance journal: " + e.getMessage());
+                    }
+                }
+            }
+            try {
+                flush();
+            } catch (SQLException | IOException e) {
+                System.out.println("Error flushing balances: " + e.getMessage());
+                try {
+                    Thread.sleep(flushIntervalMillis); // back off before retrying
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Write all pending updates to the database now
+    public void flush() throws SQLException, IOException {
+        synchronized (flushLock) {
+            Map<Integer, Long> batch;
+            long coveredSeq;
+            synchronized (forceLock) {
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    batch = pending;
+                    inFlight = batch;
+                    pending = new LinkedHashMap<>();
+                    // Later submits go to a new segment so older ones can be dropped after commit
+                    coveredSeq = segmentSeq;
+                    force();
+                    journal.close();
+                    openSegment();
+                    // Conflicted updates still waiting for their rebased balance move to the new segment
+                    if (!unresolved.isEmpty()) {
+                        for (Map.Entry<Integer, long[]> entry : unresolved.entrySet()) {
+                            long[] kept = entry.getValue();
+                            appendRecord(journal, entry.getKey(), kept[0], kept[1], kept[2], false);
+                        }
+                        journal.force(false);
+                    }
+                }
+            }
+
+            long start = System.nanoTime();
+            SQLException error = null;
+            int written = 0;
+            Map<Integer, Long> conflicted = new LinkedHashMap<>();
+            for (Map<Integer, Long> group : groupByShard(batch)) {
+                try {
+                    writeBatch(group, conflicted);
+                    written += group.size();
+                } catch (SQLException e) {
+                    error = e;
+                    synchronized (this) {
+                        // Put the group back without overwriting anything newer
+                        for (Map.Entry<Integer, Long> entry : group.entrySet()) {
+                            pending.putIfAbsent(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+            }
+            // Journal the rejected rows again before their segments can go, then let the tracker rebase them
+            IOException journalError = null;
+            try {
+                keepConflicts(conflicted);
+            } catch (IOException e) {
+                journalError = e;
+            }
+            for (int accNo : conflicted.keySet()) {
+                conflictResolver.execute(() -> versions.resolveConflict(accNo));
+            }
+            if (error != null) {
+                synchronized (this) {
+                    inFlight = Collections.emptyMap();
+                    flushGeneration++;
+                    failedFlushes++;
+                    rowsWritten += written;
+                }
+                throw error;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            synchronized (this) {
+                inFlight = Collections.emptyMap();
+                flushGeneration++;
+                flushes++;
+                rowsWritten += written;
+                totalFlushNanos += elapsed;
+                maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+            }
+            if (journalError != null) {
+                throw journalError; // keep the segments, they still hold the conflicted updates
+            }
+            for (Path segment : segments()) {
+                long number = segmentNumber(segment);
+                if (number >= firstSegment && number <= coveredSeq) { // an earlier run's segments go in recover()
+                    Files.deleteIfExists(segment);
+                }
+            }
+        }
+    }
+
+    private static <V> Collection<Map<Integer, V>> groupByShard(Map<Integer, V> batch) {
+        ShardRouter router = BankingApp.shards;
+        if (router.size() == 1 && !router.isRebalancing()) {
+            return Collections.singletonList(batch);
+        }
+        Map<ShardRouter.Shard, Map<Integer, V>> groups = new LinkedHashMap<>();
+        for (Map.Entry<Integer, V> entry : batch.entrySet()) {
+            groups.computeIfAbsent(router.shardFor(entry.getKey()), s -> new LinkedHashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+        return groups.values();
+    }
+
+    // Keep conflicted rows in the journal until their rebased balances are submitted
+    private void keepConflicts(Map<Integer, Long> conflicted) throws IOException {
+        if (conflicted.isEmpty()) {
+            return;
+        }
+        // The tracker still holds the state the rejected balance was computed from
+        Map<Integer, long[]> kept = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Long> entry : conflicted.entrySet()) {
+            long baseVersion = baseVersion(entry.getKey());
+            kept.put(entry.getKey(),
+                    new long[] { entry.getValue(), baseBalance(entry.getKey(), baseVersion), baseVersion });
+        }
+        synchronized (forceLock) {
+            synchronized (this) {
+                for (Map.Entry<Integer, long[]> entry : kept.entrySet()) {
+                    if (!pending.containsKey(entry.getKey())) { // a newer submit is journaled already
+                        long[] update = entry.getValue();
+                        unresolved.put(entry.getKey(), update);
+                        appendRecord(journal, entry.getKey(), update[0], update[1], update[2], false);
+                    }
+                }
+                force();
+            }
+        }
+    }
+
+    // Write rows that all live on the same shard in one transaction; rows rejected by
+    // the version check are added to conflicted
+    private void writeBatch(Map<Integer, Long> batch, Map<Integer, Long> conflicted) throws SQLException {
+        int size = batch.size();
+        int[] accNos = new int[size];
+        long[] balances = new long[size];
+        long[] expected = new long[size];
+        int[] checkedIndex = new int[size];
+        int checked = 0;
+        boolean[] rejected = new boolean[size];
+
+        try (Connection conn = BankingApp.getConnection(batch.keySet().iterator().next())) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement update = conn.prepareStatement(UPDATE_SQL);
+                    PreparedStatement checkedUpdate = conn.prepareStatement(CHECKED_UPDATE_SQL)) {
+                int[] uncheckedIndex = new int[size];
+                int unchecked = 0;
+                int i = 0;
+                for (Map.Entry<Integer, Long> entry : batch.entrySet()) {
+                    accNos[i] = entry.getKey();
+                    balances[i] = entry.getValue();
+                    expected[i] = versions == null ? -1 : versions.expectedVersion(accNos[i]);
+                    PreparedStatement pstmt = expected[i] >= 0 ? checkedUpdate : update;
+                    pstmt.setLong(1, balances[i]);
+                    pstmt.setInt(2, accNos[i]);
+                    if (expected[i] >= 0) {
+                        pstmt.setLong(3, expected[i]);
+                        checkedIndex[checked++] = i;
+                    } else {
+                        uncheckedIndex[unchecked++] = i;
+                    }
+                    pstmt.addBatch();
+                    i++;
+                }
+                if (unchecked > 0) {
+                    int[] counts = update.executeBatch();
+                    for (int b = 0; b < unchecked && b < counts.length; b++) {
+                        if (counts[b] == 0) {
+                            // Not on the shard it routes to: another instance moved it; keep it pending
+                            BankingApp.refreshShards();
+                            throw new SQLException("Account " + accNos[uncheckedIndex[b]]
+                                    + " not found on " + BankingApp.shards.shardFor(accNos[uncheckedIndex[b]]));
+                        }
+                    }
+                }
+                if (checked > 0) {
+                    int[] counts = checkedUpdate.executeBatch();
+                    for (int b = 0; b < checked && b < counts.length; b++) {
+                        // 0 rows: the version moved on, another instance wrote the row first
+                        rejected[checkedIndex[b]] = counts[b] == 0;
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+
+        if (versions == null) {
+            return;
+        }
+        int conflictCount = 0;
+        for (int b = 0; b < checked; b++) {
+            int i = checkedIndex[b];
+            if (rejected[i]) {
+                conflicted.put(accNos[i], balances[i]);
+                conflictCount++;
+            } else {
+                versions.persisted(accNos[i], balances[i], expected[i] + 1);
+            }
+        }
+        synchronized (this) {
+            checkedRows += checked;
+            conflicts += conflictCount;
+        }
+    }
+
+    // Write the balances journaled by a run that crashed. Each goes through the version
+    // check with the row version it was computed from: a row still at that version takes the
+    // balance; a row another instance changed since gets the recovered change (balance minus
+    // base balance) re-applied on top, as a conflict does in a flush. A row that already holds
+    // the balance at the next version was written by the crashed run before it dropped the
+    // segment. Runs before the accounts are loaded, so they are read with these balances.
+    // If a shard fails, the rows not written yet replace the old segments for the next start.
+    public void recover() throws IOException, SQLException {
+        List<Path> old = new ArrayList<>();
+        Map<Integer, long[]> recovered = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Path segment : segments()) {
+                if (segmentNumber(segment) < firstSegment) {
+                    old.add(segment);
+                    readSegment(segment, recovered);
+                }
+            }
+        }
+        if (old.isEmpty()) {
+            return;
+        }
+
+        SQLException error = null;
+        int merged = 0;
+        Map<Integer, long[]> left = new LinkedHashMap<>();
+        for (Map<Integer, long[]> group : groupByShard(recovered)) {
+            try {
+                merged += writeRecovered(group);
+            } catch (SQLException e) {
+                error = e;
+                left.putAll(group);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            System.out.println("Recovered " + (recovered.size() - left.size()) + " unflushed balance updates from journal"
+                    + (merged > 0 ? ", " + merged + " merged with changes made since." : "."));
+        }
+
+        if (!left.isEmpty()) {
+            Path keep = old.get(0);
+            Path tmp = keep.resolveSibling(keep.getFileName() + ".tmp");
+            synchronized (this) {
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    for (Map.Entry<Integer, long[]> entry : left.entrySet()) {
+                        long[] update = entry.getValue();
+                        appendRecord(out, entry.getKey(), update[0], update[1], update[2], false);
+                    }
+                    out.force(false);
+                }
+            }
+            Files.move(tmp, keep, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            old.remove(0);
+        }
+        for (Path segment : old) {
+            Files.deleteIfExists(segment);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Write recovered rows that live on one shard in one transaction; returns the number
+    // of rows rebased onto a newer row
+    private int writeRecovered(Map<Integer, long[]> group) throws SQLException {
+        int merged = 0;
+        try (Connection conn = BankingApp.getConnection(group.keySet().iterator().next())) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement update = conn.prepareStatement(UPDATE_SQL);
+                    PreparedStatement checkedUpdate = conn.prepareStatement(CHECKED_UPDATE_SQL);
+                    PreparedStatement read = conn.prepareStatement(ROW_SQL)) {
+                for (Map.Entry<Integer, long[]> entry : group.entrySet()) {
+                    int accNo = entry.getKey();
+                    long balance = entry.getValue()[0];
+                    long base = entry.getValue()[1];
+                    long version = entry.getValue()[2];
+                    if (version < 0) {
+                        update.setLong(1, balance);
+                        update.setInt(2, accNo);
+                        if (update.executeUpdate() == 0) {
+                            System.out.println("Account " + accNo + " no longer exists; its recovered balance is dropped.");
+                        }
+                        continue;
+                    }
+                    while (true) {
+                        checkedUpdate.setLong(1, balance);
+                        checkedUpdate.setInt(2, accNo);
+                        checkedUpdate.setLong(3, version);
+                        if (checkedUpdate.executeUpdate() > 0) {
+                            break;
+                        }
+                        read.setInt(1, accNo);
+                        try (ResultSet rs = read.executeQuery()) {
+                            if (!rs.next()) {
+                                System.out.println("Account " + accNo + " no longer exists; its recovered balance is dropped.");
+                                break;
+                            }
+                            long rowBalance = rs.getLong("balance");
+                            long rowVersion = rs.getLong("version");
+                            if (rowVersion == version + 1 && rowBalance == balance) {
+                                break; // written before the crash
+                            }
+                            balance = Math.addExact(rowBalance, balance - base);
+                            base = rowBalance;
+                            version = rowVersion;
+                            merged++;
+                        }
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        return merged;
+    }
+
+    // Add the segment's records to recovered, the later record of an account replacing the earlier
+    private void readSegment(Path segment, Map<Integer, long[]> recovered) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+            int groupLeft = 0; // records still to come in the current group
+            Map<Integer, long[]> group = new LinkedHashMap<>();
+            while (true) {
+                buf.clear();
+                while (buf.hasRemaining() && in.read(buf) > 0) {
+                    // keep reading until the record is complete
+                }
+                if (buf.hasRemaining()) {
+                    break; // end of segment, or a record torn by a crash
+                }
+                crc.reset();
+                crc.update(buf.array(), 0, CRC_OFFSET);
+                int stored = buf.getInt(CRC_OFFSET);
+                if (groupLeft == 0 && stored == ~(int) crc.getValue()) {
+                    groupLeft = buf.getInt(0);
+                    if (groupLeft <= 0) {
+                        break;
+                    }
+                    group.clear();
+                    continue;
+                }
+                if (stored != (int) crc.getValue()) {
+                    break;
+                }
+                long[] update = { buf.getLong(4), buf.getLong(12), buf.getLong(20) };
+                if (groupLeft > 0) {
+                    group.put(buf.getInt(0), update);
+                    if (--groupLeft == 0) {
+                        recovered.putAll(group);
+                    }
+                    continue;
+                }
+                recovered.put(buf.getInt(0), update);
+            }
+            // A group cut short by a crash is dropped whole
+        }
+    }
+
+    private void openSegment() throws IOException {
+        segmentSeq++;
+        Path path = journalDir.resolve(SEGMENT_PREFIX + segmentSeq + SEGMENT_SUFFIX);
+        journal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(journalDir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : dir) {
+                result.add(path);
+            }
+        }
+        result.sort(Comparator.comparingLong(BalanceWriter::segmentNumber));
+        return result;
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Flush what is left and stop the background thread
+    public void close() throws SQLException, IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join(flushIntervalMillis + 5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+            if (conflictResolver != null) {
+                // Rebased balances from the last flush are submitted by the resolver, write them too
+                conflictResolver.shutdown();
+                try {
+                    conflictResolver.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                flush();
+            }
+        } finally {
+            synchronized (forceLock) {
+                synchronized (this) {
+                    journal.close();
+                }
+            }
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return pending.size();
+    }
+
+    // Submitted updates per database row they turn into; higher means more coalescing
+    public synchronized double getCoalescingRatio() {
+        return submitted == 0 ? 0 : (double) submitted / (submitted - coalesced);
+    }
+
+    // Fraction of version-checked row updates rejected because another instance wrote the row first
+    public synchronized double getConflictRate() {
+        return checkedRows == 0 ? 0 : (double) conflicts / checkedRows;
+    }
+
+    public synchronized long getConflicts() {
+        return conflicts;
+    }
+
+    // Journal forces (fsyncs) so far
+    public synchronized long getForces() {
+        return forces;
+    }
+
+    public synchronized String stats() {
+        double avgFlushMs = flushes == 0 ? 0 : totalFlushNanos / 1e6 / flushes;
+        return String.format("queueDepth=%d submitted=%d rowsWritten=%d coalescingRatio=%.2f flushes=%d "
+                + "failedFlushes=%d avgFlush=%.3fms maxFlush=%.3fms versionConflicts=%d conflictRate=%.3f%% "
+                + "unresolvedConflicts=%d journalForces=%d",
+                pending.size(), submitted, rowsWritten, getCoalescingRatio(), flushes, failedFlushes,
+                avgFlushMs, maxFlushNanos / 1e6, conflicts, getConflictRate() * 100, unresolved.size(), forces);
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Load generator for BankServer.
+// Opens many concurrent connections, each sending a mix of deposits, withdrawals and
+// balance lookups against a range of accounts, and reports throughput and latency.
+// Usage: java BankLoadClient [host] [port] [clients] [requestsPerClient] [firstAccount] [accounts] [--setup]
+// With --setup the accounts are created first.
+class BankLoadClient {
+    private final String host;
+    private final int port;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder failedConnections = new LongAdder();
+
+    BankLoadClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int firstAccount = args.length > 4 ? Integer.parseInt(args[4]) : 1_000_000;
+        int accounts = args.length > 5 ? Integer.parseInt(args[5]) : 10_000;
+        boolean setup = args.length > 6 && args[6].equals("--setup");
+
+        BankLoadClient client = new BankLoadClient(host, port);
+        if (setup) {
+            client.createAccounts(firstAccount, accounts);
+        }
+        client.run(clients, requests, firstAccount, accounts);
+    }
+
+    private void createAccounts(int firstAccount, int accounts) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket(host, port);
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            // Pipelined in groups so the setup does not pay a round trip per account
+            int group = 500;
+            for (int from = 0; from < accounts; from += group) {
+                int to = Math.min(from + group, accounts);
+                for (int i = from; i < to; i++) {
+                    int accNo = firstAccount + i;
+                    out.write("CREATE " + (i % 2 == 0 ? "S" : "C") + " " + accNo + " 1000.00 load" + accNo
+                            + "@example.com Load Test " + accNo + "\n");
+                }
+                out.flush();
+                for (int i = from; i < to; i++) {
+                    in.readLine();
+                }
+            }
+        }
+        System.out.printf("Created %d accounts in %.2f s%n", accounts, (System.nanoTime() - start) / 1e9);
+    }
+
+    private void run(int clients, int requests, int firstAccount, int accounts) throws InterruptedException {
+        ExecutorService threads = BankServer.newHandlerExecutor("load-client-");
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        for (int c = 0; c < clients; c++) {
+            long seed = c;
+            threads.execute(() -> runClient(seed, requests, firstAccount, accounts, ready, go));
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        threads.shutdown();
+        threads.awaitTermination(1, TimeUnit.HOURS);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long total = ok.sum() + errors.sum() + busy.sum();
+        System.out.printf("%d clients, %d requests in %.2f s (%.0f requests/sec)%n", clients, total, seconds,
+                seconds > 0 ? total / seconds : 0);
+        System.out.printf("ok=%d err=%d busy=%d failedConnections=%d%n", ok.sum(), errors.sum(), busy.sum(),
+                failedConnections.sum());
+        System.out.printf("latency us: mean=%.1f p50=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                latency.getMean() / 1e3, latency.getPercentile(50) / 1e3, latency.getPercentile(99) / 1e3,
+                latency.getPercentile(99.9) / 1e3, latency.getMax() / 1e3);
+    }
+
+    private void runClient(long seed, int requests, int firstAccount, int accounts, CountDownLatch ready,
+            CountDownLatch go) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Socket socket = null;
+        try {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            failedConnections.increment();
+        }
+        ready.countDown();
+        if (socket == null) {
+            return;
+        }
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            go.await();
+            for (int i = 0; i < requests; i++) {
+                int accNo = firstAccount + (int) ((seed * 31 + i) % accounts);
+                int op = random.nextInt(10);
+                String request = op < 4 ? "DEPOSIT " + accNo + " 10.00"
+                        : op < 7 ? "WITHDRAW " + accNo + " 5.00" : "SHOW " + accNo;
+                long start = System.nanoTime();
+                out.write(request);
+                out.write('\n');
+                out.flush();
+                String reply = in.readLine();
+                latency.record(System.nanoTime() - start);
+                if (reply == null) {
+                    failedConnections.increment();
+                    return;
+                } else if (reply.startsWith("OK")) {
+                    ok.increment();
+                } else if (reply.equals("BUSY")) {
+                    busy.increment();
+                } else {
+                    errors.increment();
+                }
+            }
+            out.write("QUIT\n");
+            out.flush();
+        } catch (IOException e) {
+            failedConnections.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
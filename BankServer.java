@@ -0,0 +1,296 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// TCP front end for the account operations.
+// Clients send one request per line and get one reply line back; requests may be
+// pipelined. Fields are separated by single spaces, amounts are decimals:
+//   CREATE <S|C> <accNo> <balance> <email> <holder name>
+//   DEPOSIT <accNo> <amount>        -> OK <new balance>
+//   WITHDRAW <accNo> <amount>       -> OK <new balance>
+//   TRANSFER <from> <to> <amount>   -> OK <source's new balance>
+//   SHOW <accNo>                    -> OK <accNo> <Savings|Current> <balance> <email> <holder name>
+//   INTEREST <accNo>                -> OK <interest>
+//   QUIT
+// Errors are answered with "ERR <message>". When the server is saturated it answers
+// "BUSY" and the client should retry later.
+// Each connection is served by its own thread: a virtual thread on Java 21 and later,
+// otherwise a platform thread with a small stack. Requests go through the same
+// TransactionEngine and persistence path as the console.
+class BankServer {
+    private final int port;
+    private final int backlog;
+    private final Semaphore inFlight;
+    private final int maxPendingWrites;
+    private final long busyTimeoutMillis;
+    private final ExecutorService handlers;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private volatile boolean running;
+
+    // Metrics
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+
+    public BankServer(int port, int backlog, int maxInFlight, int maxPendingWrites, long busyTimeoutMillis) {
+        this.port = port;
+        this.backlog = backlog;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.maxPendingWrites = maxPendingWrites;
+        this.busyTimeoutMillis = busyTimeoutMillis;
+        this.handlers = newHandlerExecutor("bank-client-");
+    }
+
+    // One virtual thread per task when the JDK has them, otherwise small-stack platform threads
+    static ExecutorService newHandlerExecutor(String namePrefix) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, namePrefix + count.incrementAndGet(), 256 * 1024);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port), backlog);
+        running = true;
+        acceptor = new Thread(this::acceptLoop, "bank-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.increment();
+                handlers.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                break; // shutting down
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        openConnections.incrementAndGet();
+        clients.add(socket);
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            s.setTcpNoDelay(true);
+            String line;
+            while (running && (line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.equalsIgnoreCase("QUIT")) {
+                    out.write("BYE\n");
+                    break;
+                }
+                out.write(handle(line));
+                out.write('\n');
+                // Replies to pipelined requests are sent together
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Client disconnected
+        } finally {
+            clients.remove(socket);
+            openConnections.decrementAndGet();
+        }
+    }
+
+    String handle(String line) {
+        requests.increment();
+        try {
+            if (!inFlight.tryAcquire(busyTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                busy.increment();
+                return "BUSY";
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "BUSY";
+        }
+        try {
+            return execute(line.split(" ", 6));
+        } catch (NumberFormatException e) {
+            errors.increment();
+            return "ERR Invalid number";
+        } catch (IllegalArgumentException e) {
+            errors.increment();
+            return "ERR " + e.getMessage();
+        } catch (AccountNotFoundException | InvalidAmountException | InsufficientBalanceException
+                | InvalidEmailException | DuplicateAccountException e) {
+            errors.increment();
+            return "ERR " + e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "BUSY";
+        } catch (RuntimeException e) {
+            errors.increment();
+            return "ERR Internal error: " + e;
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private String execute(String[] parts) throws AccountNotFoundException, InvalidAmountException,
+            InsufficientBalanceException, InvalidEmailException, DuplicateAccountException, InterruptedException {
+        String command = parts[0].toUpperCase();
+        switch (command) {
+            case "DEPOSIT":
+            case "WITHDRAW": {
+                expect(parts, 3);
+                int accNo = Integer.parseInt(parts[1]);
+                long amount = Money.fromAmount(Double.parseDouble(parts[2]));
+                if (!awaitWriterCapacity()) {
+                    busy.increment();
+                    return "BUSY";
+                }
+                long balance = command.equals("DEPOSIT") ? BankingApp.engine.deposit(accNo, amount)
+                        : BankingApp.engine.withdraw(accNo, amount);
+                return "OK " + Money.format(balance);
+            }
+            case "TRANSFER": {
+                expect(parts, 4);
+                int fromAccNo = Integer.parseInt(parts[1]);
+                int toAccNo = Integer.parseInt(parts[2]);
+                long amount = Money.fromAmount(Double.parseDouble(parts[3]));
+                if (!awaitWriterCapacity()) {
+                    busy.increment();
+                    return "BUSY";
+                }
+                return "OK " + Money.format(BankingApp.engine.transfer(fromAccNo, toAccNo, amount));
+            }
+            case "SHOW": {
+                expect(parts, 2);
+                BankAccount account = require(Integer.parseInt(parts[1]));
+                long[] balance = new long[1];
+                BankingApp.engine.withAccountLocked(account.getAccountNumber(), () -> balance[0] = account.getBalance());
+                return "OK " + account.getAccountNumber() + " "
+                        + (account instanceof SavingsAccount ? "Savings" : "Current") + " "
+                        + Money.format(balance[0]) + " " + account.getEmail() + " " + account.getHoldername();
+            }
+            case "INTEREST": {
+                expect(parts, 2);
+                BankAccount account = require(Integer.parseInt(parts[1]));
+                if (!(account instanceof SavingsAccount)) {
+                    return "ERR No interest rate for Current Account";
+                }
+                long[] interest = new long[1];
+                BankingApp.engine.withAccountLocked(account.getAccountNumber(),
+                        () -> interest[0] = ((SavingsAccount) account).interestFor(1));
+                return "OK " + Money.format(interest[0]);
+            }
+            case "CREATE": {
+                expect(parts, 6);
+                boolean savings = parts[1].equalsIgnoreCase("S");
+                if (!savings && !parts[1].equalsIgnoreCase("C")) {
+                    return "ERR Invalid account type, use S or C";
+                }
+                String name = parts[5].trim();
+                if (name.isEmpty()) {
+                    return "ERR Name cannot be empty.";
+                }
+                if (!awaitWriterCapacity()) {
+                    busy.increment();
+                    return "BUSY";
+                }
+                BankingApp.openAccount(savings, Integer.parseInt(parts[2]), name, parts[4],
+                        Money.fromAmount(Double.parseDouble(parts[3])));
+                return "OK";
+            }
+            default:
+                errors.increment();
+                return "ERR Unknown command " + parts[0];
+        }
+    }
+
+    private static void expect(String[] parts, int count) {
+        if (parts.length < count) {
+            throw new IllegalArgumentException("Expected " + count + " fields");
+        }
+    }
+
+    private static BankAccount require(int accNo) throws AccountNotFoundException {
+        BankAccount account = BankingApp.findaccount(accNo);
+        if (account == null) {
+            throw new AccountNotFoundException("Account number " + accNo + " not found!");
+        }
+        return account;
+    }
+
+    // Hold back updates while the balance writer is behind, so the database sets the pace
+    private boolean awaitWriterCapacity() throws InterruptedException {
+        BalanceWriter writer = BankingApp.balanceWriter;
+        if (writer == null || maxPendingWrites <= 0 || writer.getQueueDepth() < maxPendingWrites) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(busyTimeoutMillis);
+        while (writer.getQueueDepth() >= maxPendingWrites) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing server socket: " + e.getMessage());
+        }
+        // Unblock handlers waiting in readLine
+        for (Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        handlers.shutdown();
+        try {
+            if (!handlers.awaitTermination(5, TimeUnit.SECONDS)) {
+                handlers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String stats() {
+        return String.format("connections=%d open=%d requests=%d errors=%d busy=%d",
+                connections.sum(), openConnections.get(), requests.sum(), errors.sum(), busy.sum());
+    }
+}
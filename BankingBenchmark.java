@@ -0,0 +1,192 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Benchmarks for the core banking hot paths: account lookup, deposits and withdrawals
+// (directly and through the transaction engine), the overdraft check, interest and
+// validated account construction. The JDBC paths need the database and run only with
+// -Dbench.jdbc=true, against test accounts 990000000 and up.
+// Run: java BankingBenchmark
+//      java -Dbench.save=my-baseline.txt BankingBenchmark      (record a baseline)
+//      java -Dbench.baseline=my-baseline.txt BankingBenchmark  (exit code 1 on regressions)
+// benchmarks/baseline.txt is recorded from the JMH build of the same workloads; check a
+// change against it with BankingJmhBaseline (see JDBC_README.md).
+class BankingBenchmark {
+    private static final int ACCOUNTS = 100_000;
+    private static final int JDBC_FIRST_ACCOUNT = 990_000_000;
+
+    // Run with a tenth of the operations: they throw or print, and are far slower per op
+    private static final Set<String> SLOW = new HashSet<>(Arrays.asList(
+            "CurrentAccount.withdraw over limit (rejected)",
+            "SavingsAccount.CalculateInterest (no output)",
+            "requireValidNewAccount (invalid, throws)"));
+
+    public static void main(String[] args) throws Exception {
+        int ops = Integer.getInteger("bench.ops", 1_000_000);
+        PrintStream console = System.out;
+        for (Map.Entry<String, Bench.Op> workload : workloads().entrySet()) {
+            String name = workload.getKey();
+            boolean quiet = name.endsWith("(no output)");
+            if (quiet) {
+                System.setOut(new PrintStream(OutputStream.nullOutputStream())); // CalculateInterest prints its result
+            }
+            try {
+                Bench.run(name, SLOW.contains(name) ? ops / 10 : ops, workload.getValue());
+            } finally {
+                System.setOut(console);
+            }
+        }
+
+        if (Boolean.getBoolean("bench.jdbc")) {
+            runJdbc(Integer.getInteger("bench.jdbc.ops", 2000));
+        }
+
+        String save = System.getProperty("bench.save");
+        if (save != null) {
+            Bench.saveResults(Paths.get(save));
+        }
+        String baseline = System.getProperty("bench.baseline");
+        if (baseline != null) {
+            double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.25"));
+            if (Bench.compareWithBaseline(Paths.get(baseline), tolerance) > 0) {
+                System.exit(1);
+            }
+        }
+        System.exit(0); // the connection pool housekeeper is not a reason to keep running
+    }
+
+    // The benchmarks that need no database, by name in the order they run. Each operation
+    // gets its index; the JMH suite in jmh/ runs the same operations.
+    static Map<String, Bench.Op> workloads() throws Exception {
+        Map<String, Bench.Op> workloads = new LinkedHashMap<>();
+
+        // Lookups go through the registry; the loader is never asked because every number exists
+        int[] accNos = new int[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accNos[i] = 100_000 + i * 7;
+            BankingApp.accounts.add(i % 2 == 0
+                    ? new SavingsAccount(accNos[i], "Customer " + i, 1_000_000, "customer" + i + "@mail.example.com")
+                    : new CurrentAccount(accNos[i], "Customer " + i, 1_000_000, "customer" + i + "@mail.example.com"));
+        }
+        // Scattered over the table like real traffic, not sequential
+        int[] order = new int[1 << 16];
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < order.length; i++) {
+            order[i] = accNos[random.nextInt(ACCOUNTS)];
+        }
+        int mask = order.length - 1;
+
+        workloads.put("findaccount (hit)", i -> BankingApp.findaccount(order[i & mask]).getAccountNumber());
+        workloads.put("AccountRegistry.get (miss)", i -> BankingApp.accounts.get(order[i & mask] + 1) == null ? 0 : 1);
+
+        SavingsAccount savings = new SavingsAccount(1, "Saver", 1_000_000_000_000L, "saver@mail.example.com");
+        workloads.put("BankAccount.deposit", i -> {
+            savings.deposit(1);
+            return savings.getBalance();
+        });
+        workloads.put("BankAccount.withdraw", i -> {
+            savings.withdraw(1);
+            return savings.getBalance();
+        });
+
+        CurrentAccount current = new CurrentAccount(2, "Spender", 0, "spender@mail.example.com");
+        workloads.put("CurrentAccount.withdraw into overdraft", i -> {
+            current.withdraw(5_000);
+            current.deposit(5_000); // back to zero so the next withdrawal takes the same path
+            return current.getBalance();
+        });
+        workloads.put("CurrentAccount.withdraw over limit (rejected)", i -> {
+            try {
+                current.withdraw(20_000 * Money.CENTS_PER_UNIT);
+                return 0;
+            } catch (InsufficientBalanceException e) {
+                return 1;
+            }
+        });
+
+        // Same engine as the app, but the listener does nothing so no journal or database is involved
+        TransactionEngine engine = new TransactionEngine(BankingApp::findaccount, 1024,
+                (accNo, type, amount, balance) -> {
+                });
+        workloads.put("TransactionEngine.deposit", i -> engine.deposit(order[i & mask], 1));
+        workloads.put("TransactionEngine.transfer", i -> {
+            engine.transfer(order[i & mask], order[(i + 1) & mask] == order[i & mask] ? order[(i + 2) & mask]
+                    : order[(i + 1) & mask], 1);
+            return i;
+        });
+
+        SavingsAccount interest = new SavingsAccount(3, "Earner", 123_456_789, "earner@mail.example.com");
+        workloads.put("SavingsAccount.CalculateInterest (no output)", i -> {
+            interest.CalculateInterest();
+            return 0;
+        });
+        workloads.put("SavingsAccount.interestFor", i -> interest.interestFor(12));
+
+        String[] emails = new String[1024];
+        for (int i = 0; i < emails.length; i++) {
+            emails[i] = i % 8 == 0 ? "customer" + i + "@example" : "customer." + i + "@mail.example.com";
+        }
+        int emailMask = emails.length - 1;
+        workloads.put("new SavingsAccount", i -> new SavingsAccount(i, "Customer", 1000, "a@b.co").getAccountNumber());
+        workloads.put("validated new account (1 in 8 invalid)", i -> {
+            String email = emails[i & emailMask];
+            if (AccountValidator.checkNewAccount("Customer", email, 1000) != AccountValidator.OK) {
+                return -1;
+            }
+            return new CurrentAccount(i, "Customer", 1000, email).getAccountNumber();
+        });
+        workloads.put("requireValidNewAccount (invalid, throws)", i -> {
+            try {
+                AccountValidator.requireValidNewAccount("Customer", "customer@example", 1000);
+                return 0;
+            } catch (InvalidEmailException e) {
+                return 1;
+            }
+        });
+        return workloads;
+    }
+
+    // Primary-key read and direct balance update against the configured database
+    private static void runJdbc(int ops) throws Exception {
+        BankingApp.initializeDatabase();
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            int accNo = JDBC_FIRST_ACCOUNT + i;
+            if (AccountLoader.readOne(accNo) == null) {
+                try {
+                    BankingApp.saveAccountToDB(new SavingsAccount(accNo, "Bench " + i, 1_000_000,
+                            "bench" + i + "@mail.example.com"));
+                } catch (DuplicateAccountException e) {
+                    // created by a concurrent run
+                }
+            }
+        }
+        Bench.run("jdbc: AccountLoader.readOne", ops, i -> {
+            BankAccount account = AccountLoader.readOne(JDBC_FIRST_ACCOUNT + i % count);
+            return account == null ? 0 : account.getBalance();
+        });
+        Bench.run("jdbc: updateBalanceInDB", ops, i -> {
+            BankingApp.updateBalanceInDB(JDBC_FIRST_ACCOUNT + i % count, 1_000_000 + i);
+            return i;
+        });
+
+        // The same update as before statement caching: client-side prepares and a new
+        // statement on every call
+        ConnectionPool perCall = new ConnectionPool(
+                "jdbc:mysql://localhost:3306/bankdb?rewriteBatchedStatements=true",
+                BankingApp.DB_USER, BankingApp.DB_PASSWORD, 1, 1, 30000, 600000, 500, 0, false, 0);
+        try {
+            Bench.run("jdbc: update, prepared per call", ops, i -> {
+                try (java.sql.Connection conn = DbMetrics.INSTANCE.instrument(perCall.getConnection());
+                        java.sql.PreparedStatement pstmt = conn.prepareStatement(AccountDao.UPDATE_BALANCE_SQL)) {
+                    pstmt.setLong(1, 1_000_000 + i);
+                    pstmt.setInt(2, JDBC_FIRST_ACCOUNT + i % count);
+                    return pstmt.executeUpdate();
+                }
+            });
+        } finally {
+            perCall.close();
+        }
+    }
+}
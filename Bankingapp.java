@@ -1,4 +1,8 @@
 import java.util.*;
+import java.io.IOException;
+import java.io.SyncFailedException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
 
 // Custom Exception Classes
@@ -36,16 +40,27 @@ interface LoanService {
     void applyLoan(double amount);
 }
 
-abstract class BankAccount {
+abstract class BankAccount implements LoanService {
     private int accountNumber;
     private String holdername;
-    protected double balance;
+    protected long balance; // in cents
     private String email;
 
-    public BankAccount(int accountNumber, String holdername, double balance, String email)
+    // Row version and balance last known to be in the database (guarded by this object).
+    // The difference between balance and persistedBalance is the change this instance
+    // has not saved yet. A version of -1 means unknown; such balances are written
+    // without a version check.
+    private long version = -1;
+    private long persistedBalance;
+
+    // Snapshot epoch of the last change, so a snapshot delta can pick out the changed accounts
+    int changedIn = AccountSnapshots.changeEpoch;
+
+    public BankAccount(int accountNumber, String holdername, long balance, String email)
             throws InvalidAmountException {
-        if (balance < 0) {
-            throw new InvalidAmountException("Initial balance cannot be negative");
+        int check = AccountValidator.checkInitialBalance(balance);
+        if (check != AccountValidator.OK) {
+            throw new InvalidAmountException(AccountValidator.message(check));
         }
         this.accountNumber = accountNumber;
         this.holdername = holdername;
@@ -53,6 +68,19 @@ abstract class BankAccount {
         this.email = email;
     }
 
+    // Rebuild an account from a persisted row or image. The new-account checks do not
+    // apply: a current account in overdraft is stored with a negative balance.
+    static BankAccount restore(boolean savings, int accountNumber, String holdername, long balance, String email) {
+        try {
+            BankAccount account = savings ? new SavingsAccount(accountNumber, holdername, 0, email)
+                    : new CurrentAccount(accountNumber, holdername, 0, email);
+            account.balance = balance;
+            return account;
+        } catch (InvalidAmountException e) {
+            throw new IllegalStateException(e); // a zero balance is always valid
+        }
+    }
+
     public int getAccountNumber() {
         return accountNumber;
     }
@@ -61,7 +89,8 @@ abstract class BankAccount {
         return holdername;
     }
 
-    public double getBalance() {
+    // Balance in cents
+    public long getBalance() {
         return balance;
     }
 
@@ -69,87 +98,350 @@ abstract class BankAccount {
         return email;
     }
 
-    public void deposit(double amount) throws InvalidAmountException {
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized long getPersistedBalance() {
+        return persistedBalance;
+    }
+
+    // The database row holds this balance at this version
+    synchronized void markPersisted(long balance, long version) {
+        if (version < 0 || version > this.version) {
+            this.persistedBalance = balance;
+            this.version = version;
+            changed();
+        }
+    }
+
+    // A relative UPDATE added this amount to the row and bumped its version
+    synchronized void markCredited(long amount) {
+        if (version >= 0) {
+            persistedBalance = Math.addExact(persistedBalance, amount);
+            version++;
+            changed();
+        }
+    }
+
+    // Another instance changed the row: re-apply the unsaved change on top of the row's
+    // balance. Callers hold the account's lock. Returns the new balance.
+    synchronized long rebase(long rowBalance, long rowVersion) {
+        if (rowVersion > version) {
+            balance = Math.addExact(rowBalance, balance - persistedBalance);
+            persistedBalance = rowBalance;
+            version = rowVersion;
+            changed();
+        }
+        return balance;
+    }
+
+    // Take back a change to the balance that was refused before it was recorded; callers
+    // hold the account's lock
+    synchronized void undo(long change) {
+        balance = Math.subtractExact(balance, change);
+        changed();
+    }
+
+    // Apply a change a relative UPDATE has already written; callers hold the account's lock
+    synchronized void applyCommitted(long amount) {
+        balance = Math.addExact(balance, amount);
+        changed();
+        markCredited(amount);
+    }
+
+    void changed() {
+        changedIn = AccountSnapshots.changeEpoch;
+    }
+
+    // Amounts are in cents
+    public void deposit(long amount) throws InvalidAmountException {
         if (amount <= 0) {
             throw new InvalidAmountException("Deposit amount must be positive");
         }
-        balance += amount;
-        System.out.println("Amount Deposited: " + amount);
+        balance = Math.addExact(balance, amount);
+        changed();
     }
 
-    public void withdraw(double amount) throws InvalidAmountException, InsufficientBalanceException {
+    public void withdraw(long amount) throws InvalidAmountException, InsufficientBalanceException {
         if (amount <= 0) {
             throw new InvalidAmountException("Withdrawal amount must be positive");
         }
         if (amount > balance) {
-            throw new InsufficientBalanceException("Insufficient balance. Available: " + balance);
+            throw new InsufficientBalanceException("Insufficient balance. Available: " + Money.format(balance));
         }
         balance -= amount;
-        System.out.println("Amount Withdrawn: " + amount);
+        changed();
     }
 
     public void showdetails() {
         System.out.println("Account Holder Name: " + holdername);
         System.out.println("Account Number: " + accountNumber);
         System.out.println("Email: " + email);
-        System.out.println("Balance: " + balance);
+        System.out.println("Balance: " + Money.format(balance));
     }
 
     abstract void CalculateInterest();
+
+    // Most that can be taken out of the account right now
+    long available() {
+        return balance;
+    }
+
+    // Yearly loan rate in basis points, and the most this account may owe on loans given
+    // its own funds (the balance without the proceeds of loans still owed)
+    abstract int loanRateBp();
+
+    abstract long maxLoan(long ownFunds);
+
+    // Take a loan over the default term; the principal is credited to this account
+    @Override
+    public void applyLoan(double amount) {
+        try {
+            Loan loan = BankingApp.loans().originate(this, Money.fromAmount(amount),
+                    Integer.getInteger("bank.loan.termMonths", 12));
+            System.out.println("Loan " + loan.id + " approved, monthly installment: " + Money.format(loan.payment));
+        } catch (InvalidAmountException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error saving loan: " + e.getMessage(), e);
+        }
+    }
 }
 
 class SavingsAccount extends BankAccount {
-    private double interestRate = 5.0;
+    private long interestRate = 500; // in basis points, 500 = 5%
 
-    public SavingsAccount(int accNo, String name, double balance, String email) throws InvalidAmountException {
+    public SavingsAccount(int accNo, String name, long balance, String email) throws InvalidAmountException {
         super(accNo, name, balance, email);
     }
 
     @Override
     void CalculateInterest() {
-        double interest = balance * interestRate / 100;
-        System.out.println("Interest: " + interest);
+        long interest = Money.percentOf(balance, interestRate);
+        System.out.println("Interest: " + Money.format(interest));
+    }
+
+    // Interest for one accrual period when the rate is paid out over periodsPerYear periods
+    long interestFor(int periodsPerYear) {
+        long yearly = Money.percentOf(balance, interestRate);
+        return Math.floorDiv(yearly + periodsPerYear / 2, periodsPerYear);
+    }
+
+    // Credit interest that has already been persisted; callers hold the account's lock
+    void postInterest(long amount) {
+        balance = Math.addExact(balance, amount);
+        changed();
+    }
+
+    @Override
+    int loanRateBp() {
+        return 800;
+    }
+
+    // Up to five times the savings
+    @Override
+    long maxLoan(long ownFunds) {
+        return Math.max(0, Math.multiplyExact(ownFunds, 5L));
     }
 }
 
 class CurrentAccount extends BankAccount {
-    private double overdraftLimit = 10000;
+    private long overdraftLimit = 10000 * Money.CENTS_PER_UNIT;
 
-    public CurrentAccount(int accNo, String name, double balance, String email) throws InvalidAmountException {
+    public CurrentAccount(int accNo, String name, long balance, String email) throws InvalidAmountException {
         super(accNo, name, balance, email);
     }
 
     @Override
-    public void withdraw(double amount) throws InvalidAmountException, InsufficientBalanceException {
+    public void withdraw(long amount) throws InvalidAmountException, InsufficientBalanceException {
         if (amount <= 0) {
             throw new InvalidAmountException("Withdrawal amount must be positive");
         }
         if (amount > balance + overdraftLimit) {
             throw new InsufficientBalanceException(
-                    "Overdraft limit exceeded. Available: " + (balance + overdraftLimit));
+                    "Overdraft limit exceeded. Available: " + Money.format(balance + overdraftLimit));
         }
         balance -= amount;
-        System.out.println("Amount Withdrawn: " + amount);
+        changed();
     }
 
     @Override
     void CalculateInterest() {
         System.out.println("No interest rate for Current Account");
     }
+
+    @Override
+    long available() {
+        return balance + overdraftLimit;
+    }
+
+    @Override
+    int loanRateBp() {
+        return 1100;
+    }
+
+    // Up to three times the balance, nothing while overdrawn
+    @Override
+    long maxLoan(long ownFunds) {
+        return Math.max(0, Math.multiplyExact(ownFunds, 3L));
+    }
 }
 
 class BankingApp {
-    static ArrayList<BankAccount> accounts = new ArrayList<>();
-    static Scanner sc = new Scanner(System.in);
+    static AccountRegistry accounts = new AccountRegistry();
+    static TransactionEngine engine = new TransactionEngine(BankingApp::findaccount,
+            Integer.getInteger("bank.engine.stripes", 1024), new TransactionEngine.BalanceListener() {
+                @Override
+                public void balanceChanged(int accountNumber, short type, long amount, long newBalance) {
+                    BankingApp.balanceChanged(accountNumber, type, amount, newBalance);
+                }
 
-    // Database connection details
-    static final String DB_URL = "jdbc:mysql://localhost:3306/bankdb";
+                @Override
+                public void transferred(int fromAccNo, int toAccNo, long amount, long fromBalance,
+                        long toBalance) {
+                    BankingApp.transferred(fromAccNo, toAccNo, amount, fromBalance, toBalance);
+                }
+            });
+    static Scanner sc = new Scanner(System.in);
+    static final long startNanos = System.nanoTime();
+
+    // Matches shown by a prefix search
+    static final int SEARCH_LIMIT = Integer.getInteger("bank.search.limit", 50);
+
+    // Startup loading: "eager" loads every account before the menu starts,
+    // "lazy" starts the menu at once and loads in the background,
+    // "cache" loads nothing up front and keeps a bounded cache of recently used accounts,
+    // "compact" loads every account into the off-heap AccountStore and keeps objects
+    // only for the accounts in the bounded cache
+    static final String LOAD_MODE = System.getProperty("bank.load.mode", "eager");
+    static AccountStore store = LOAD_MODE.equals("compact")
+            ? new AccountStore(Integer.getInteger("bank.store.expectedAccounts", 1 << 20))
+            : null;
+    static AccountLoader loader = store != null
+            ? new AccountLoader(accounts, store::addAll, Integer.getInteger("bank.load.pageSize", 10000))
+            : new AccountLoader(accounts, Integer.getInteger("bank.load.pageSize", 10000));
+    static AccountCache cache = LOAD_MODE.equals("cache") || store != null
+            ? new AccountCache(Long.getLong("bank.cache.maxEntries", 100000L),
+                    Long.getLong("bank.cache.maxBytes", 0L),
+                    store != null ? store::materialize : BankingApp::readThrough)
+            : null;
+
+    // Reports over the whole book; in memory once every account is in the registry, in SQL otherwise
+    static AccountReports reports = new AccountReports(accounts,
+            () -> cache == null && store == null && loader.isComplete());
+
+    // Database connection details. Driver options, added to every shard URL that does not set them:
+    // rewriteBatchedStatements lets the driver send a batch of INSERTs as multi-row statements;
+    // useServerPrepStmts prepares statements on the server once per connection and sends the
+    // parameters in binary; cachePrepStmts keeps them after close for statements the pool's
+    // own cache has evicted
+    static final String DRIVER_OPTIONS = "rewriteBatchedStatements=true&useServerPrepStmts=true&cachePrepStmts=true";
+    static final String DB_URL = "jdbc:mysql://localhost:3306/bankdb?" + DRIVER_OPTIONS;
     static final String DB_USER = "root";
     static final String DB_PASSWORD = "root123";
 
-    // Get database connection
+    // Database shards, each with its own connection pool. -Dbank.shards=<url>,<url>,...
+    // spreads the accounts over several databases by consistent hashing of the account
+    // number; without it everything lives in the single DB_URL database.
+    static final ShardRouter shards = createShards();
+
+    // Write-behind stage for balance updates (set -Dbank.writer.sync=true to write through)
+    static BalanceWriter balanceWriter;
+
+    // History of every balance change (disable with -Dbank.ledger.enabled=false)
+    static Ledger ledger;
+
+    // Audit stream of account events (disable with -Dbank.audit.enabled=false)
+    static AuditLog auditLog;
+
+    // Loans, read from the database the first time they are needed
+    private static LoanBook loanBook;
+
+    // Snapshot images of the accounts for fast restarts (-Dbank.snapshot.enabled=true)
+    static AccountSnapshots snapshots;
+
+    static ShardRouter createShards() {
+        ShardRouter router = new ShardRouter();
+        for (String url : System.getProperty("bank.shards", DB_URL).split(",")) {
+            router.addShard(url.trim(), newPool(url.trim()));
+        }
+        return router;
+    }
+
+    // Pick up shards other instances have added; called when a row is not on the shard it routes to
+    static void refreshShards() {
+        try {
+            ShardMembership.refresh(shards, BankingApp::newPool);
+        } catch (SQLException e) {
+            System.out.println("Error reading shard membership: " + e.getMessage());
+        }
+    }
+
+    // Connection pool (settings can be overridden with -Dbank.pool.<name>=<value>)
+    static ConnectionPool newPool(String url) {
+        return new ConnectionPool(withDriverOptions(url), DB_USER, DB_PASSWORD,
+                Integer.getInteger("bank.pool.minSize", 2),
+                Integer.getInteger("bank.pool.maxSize", 10),
+                Long.getLong("bank.pool.borrowTimeoutMs", 30000L),
+                Long.getLong("bank.pool.idleTimeoutMs", 600000L),
+                Long.getLong("bank.pool.validationIdleMs", 500L),
+                Long.getLong("bank.pool.leakThresholdMs", 60000L),
+                Boolean.getBoolean("bank.pool.leakTrace"),
+                Integer.getInteger("bank.pool.statementCacheSize", 64));
+    }
+
+    // The URL with each of DRIVER_OPTIONS that it does not set itself
+    static String withDriverOptions(String url) {
+        StringBuilder sb = new StringBuilder(url);
+        for (String option : DRIVER_OPTIONS.split("&")) {
+            String key = option.substring(0, option.indexOf('=') + 1);
+            if (!url.contains("?" + key) && !url.contains("&" + key)) {
+                sb.append(sb.indexOf("?") < 0 ? '?' : '&').append(option);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Get a connection to the first shard (schema setup and other work not tied to an account)
     static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        return getConnection(shards.shard(0));
+    }
+
+    // Get a connection to the shard holding the account
+    static Connection getConnection(int accNo) throws SQLException {
+        return getConnection(shards.shardFor(accNo));
+    }
+
+    // Get database connection from the shard's pool
+    static Connection getConnection(ShardRouter.Shard shard) throws SQLException {
+        DbMetrics metrics = DbMetrics.INSTANCE;
+        if (!metrics.isEnabled()) {
+            return shard.pool.getConnection();
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Connection conn = metrics.instrument(shard.pool.getConnection());
+            failed = false;
+            return conn;
+        } finally {
+            metrics.record(DbMetrics.ACQUIRE, start, failed);
+        }
+    }
+
+    // Turn on statement metrics, JMX export and the optional periodic text dump
+    static void startMetrics() {
+        DbMetrics metrics = DbMetrics.INSTANCE;
+        metrics.setEnabled(Boolean.parseBoolean(System.getProperty("bank.metrics.enabled", "true")));
+        if (!metrics.isEnabled()) {
+            return;
+        }
+        metrics.registerMBean();
+        long interval = Long.getLong("bank.metrics.dumpIntervalSec", 0L);
+        if (interval > 0) {
+            metrics.startDump(Paths.get(System.getProperty("bank.metrics.file", "bank-metrics.txt")), interval);
+        }
     }
 
     // Initialize database - creates database and table if they don't exist
@@ -157,7 +449,8 @@ class BankingApp {
         // First, connect to MySQL server without specifying a database
         String serverUrl = "jdbc:mysql://localhost:3306/";
 
-        try (Connection conn = DriverManager.getConnection(serverUrl, DB_USER, DB_PASSWORD);
+        try (Connection conn = DbMetrics.INSTANCE.instrument(
+                DriverManager.getConnection(serverUrl, DB_USER, DB_PASSWORD));
                 Statement stmt = conn.createStatement()) {
 
             // Create database if it doesn't exist
@@ -169,14 +462,21 @@ class BankingApp {
             stmt.executeUpdate("USE bankdb");
 
             // Create table if it doesn't exist
-            String createTableSql = "CREATE TABLE IF NOT EXISTS accounts (" +
-                    "account_number INT PRIMARY KEY, " +
-                    "holder_name VARCHAR(100), " +
-                    "balance DOUBLE, " +
-                    "email VARCHAR(100), " +
-                    "account_type VARCHAR(20))";
-            stmt.executeUpdate(createTableSql);
+            createTables(stmt);
             System.out.println("Table 'accounts' is ready!");
+
+            // Other shards are separate databases that must already exist
+            for (ShardRouter.Shard shard : shards.shards()) {
+                if (shard.id > 0) {
+                    try (Connection shardConn = getConnection(shard);
+                            Statement shardStmt = shardConn.createStatement()) {
+                        createTables(shardStmt);
+                        System.out.println("Tables on " + shard + " are ready!");
+                    }
+                }
+            }
+            // Shards added at runtime, including one still being filled
+            ShardMembership.load(shards, BankingApp::newPool);
             System.out.println("Database initialized successfully!");
 
         } catch (SQLException e) {
@@ -188,18 +488,19 @@ class BankingApp {
         }
     }
 
+    // Create or upgrade the tables of one database
+    static void createTables(Statement stmt) throws SQLException {
+        SchemaMigrations.migrate(stmt);
+        InterestAccrualJob.createTable(stmt);
+        LoanBook.createTable(stmt);
+        LoanRepaymentJob.createTable(stmt);
+    }
+
     // Create table if not exists (kept for backward compatibility)
     static void createTable() {
-        String sql = "CREATE TABLE IF NOT EXISTS accounts (" +
-                "account_number INT PRIMARY KEY, " +
-                "holder_name VARCHAR(100), " +
-                "balance DOUBLE, " +
-                "email VARCHAR(100), " +
-                "account_type VARCHAR(20))";
-
         try (Connection conn = getConnection();
                 Statement stmt = conn.createStatement()) {
-            stmt.executeUpdate(sql);
+            SchemaMigrations.migrate(stmt);
             System.out.println("Database connected successfully!");
         } catch (SQLException e) {
             System.out.println("Database connection failed: " + e.getMessage());
@@ -208,76 +509,530 @@ class BankingApp {
 
     // Load accounts from database
     static void loadAccountsFromDB() {
-        String sql = "SELECT * FROM accounts";
-
-        try (Connection conn = getConnection();
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery(sql)) {
-
-            while (rs.next()) {
-                int accNo = rs.getInt("account_number");
-                String name = rs.getString("holder_name");
-                double balance = rs.getDouble("balance");
-                String email = rs.getString("email");
-                String type = rs.getString("account_type");
-
-                BankAccount account;
-                if (type.equals("Savings")) {
-                    account = new SavingsAccount(accNo, name, balance, email);
-                } else {
-                    account = new CurrentAccount(accNo, name, balance, email);
-                }
-                accounts.add(account);
+        if (cache != null && store == null) {
+            System.out.println("Accounts will be read from the database on demand.");
+            return;
+        }
+        if (loadFromSnapshot()) {
+            return;
+        }
+        if (LOAD_MODE.equals("lazy")) {
+            System.out.println("Loading accounts in the background...");
+            loader.loadInBackground();
+            return;
+        }
+        try {
+            loader.loadAll();
+            System.out.println(loader.progress());
+            if (store != null) {
+                System.out.println("Account store: " + store.stats());
             }
-            System.out.println("Loaded " + accounts.size() + " accounts from database.");
         } catch (SQLException e) {
             System.out.println("Error loading accounts: " + e.getMessage());
-        } catch (InvalidAmountException e) {
-            System.out.println("Error: " + e.getMessage());
         }
     }
 
+    // Load the accounts from the snapshot images and start taking snapshots.
+    // Returns false if the accounts must be read from the database.
+    static boolean loadFromSnapshot() {
+        if (!Boolean.getBoolean("bank.snapshot.enabled")) {
+            return false;
+        }
+        if (store != null) {
+            System.out.println("Snapshots need bank.load.mode eager or lazy, not " + LOAD_MODE + ".");
+            return false;
+        }
+        long interval = Long.getLong("bank.snapshot.intervalSec", 300L);
+        try {
+            snapshots = new AccountSnapshots(Paths.get(System.getProperty("bank.snapshot.dir", "bank-snapshot")),
+                    Integer.getInteger("bank.snapshot.maxDeltas", 8),
+                    Integer.getInteger("bank.snapshot.partMb", 1024),
+                    Long.getLong("bank.snapshot.marginSec", 5L), true);
+        } catch (IOException e) {
+            System.out.println("Error opening snapshot directory: " + e.getMessage());
+            return false;
+        }
+        boolean loaded = false;
+        try {
+            long start = System.nanoTime();
+            loaded = snapshots.load(accounts);
+            if (loaded) {
+                loader.markLoaded(accounts.size(), System.nanoTime() - start);
+                System.out.println(snapshots.loadSummary());
+            }
+        } catch (IOException | SQLException e) {
+            System.out.println("Error loading snapshot, reading accounts from the database: " + e.getMessage());
+            accounts.clear();
+        }
+        // Without an image, take the first one as soon as the accounts are loaded
+        snapshots.start(accounts, loader, loaded ? interval : 0, interval);
+        return loaded;
+    }
+
     // Save account to database
-    static void saveAccountToDB(BankAccount account, String accountType) {
-        String sql = "INSERT INTO accounts (account_number, holder_name, balance, email, account_type) " +
-                "VALUES (?, ?, ?, ?, ?)";
+    static void saveAccountToDB(BankAccount account) throws DuplicateAccountException, SQLException {
+        try {
+            AccountDao.insert(account);
+            invalidateCached(account.getAccountNumber());
+        } catch (SQLIntegrityConstraintViolationException e) {
+            throw new DuplicateAccountException("Account number " + account.getAccountNumber() + " already exists!");
+        }
+    }
 
-        try (Connection conn = getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    // Open the balance journal and write back anything left over from a crash
+    static void startBalanceWriter() {
+        try {
+            balanceWriter = new BalanceWriter(Paths.get(System.getProperty("bank.journal.dir", "bank-journal")),
+                    Integer.getInteger("bank.writer.batchSize", 500),
+                    Long.getLong("bank.writer.flushIntervalMs", 200L),
+                    Boolean.getBoolean("bank.writer.sync"),
+                    Boolean.parseBoolean(System.getProperty("bank.writer.forceOnSubmit", "true")),
+                    Boolean.parseBoolean(System.getProperty("bank.writer.groupCommit", "true")),
+                    Boolean.parseBoolean(System.getProperty("bank.writer.versionCheck", "true"))
+                            ? new AccountVersions() : null);
+            balanceWriter.recover();
+        } catch (IOException e) {
+            System.out.println("Error opening balance journal: " + e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Error writing recovered balances: " + e.getMessage());
+        }
+    }
 
-            pstmt.setInt(1, account.getAccountNumber());
-            pstmt.setString(2, account.getHoldername());
-            pstmt.setDouble(3, account.getBalance());
-            pstmt.setString(4, account.getEmail());
-            pstmt.setString(5, accountType);
+    // Open the transaction ledger
+    static void startLedger() {
+        if (!Boolean.parseBoolean(System.getProperty("bank.ledger.enabled", "true"))) {
+            return;
+        }
+        try {
+            ledger = new Ledger(Paths.get(System.getProperty("bank.ledger.dir", "bank-ledger")),
+                    Integer.getInteger("bank.ledger.segmentMb", 64) * 1024 * 1024);
+        } catch (IOException e) {
+            System.out.println("Error opening ledger: " + e.getMessage());
+        }
+    }
 
-            pstmt.executeUpdate();
-            System.out.println("Account saved to database!");
-        } catch (SQLException e) {
-            System.out.println("Error saving account: " + e.getMessage());
+    static void startAudit() {
+        if (!Boolean.parseBoolean(System.getProperty("bank.audit.enabled", "true"))) {
+            return;
+        }
+        try {
+            auditLog = new AuditLog(Paths.get(System.getProperty("bank.audit.file", "bank-audit.log")),
+                    Integer.getInteger("bank.audit.bufferSize", 65536),
+                    System.getProperty("bank.audit.policy", "block").equals("drop") ? AuditLog.DROP : AuditLog.BLOCK,
+                    Long.getLong("bank.audit.maxMb", 64L) * 1024 * 1024,
+                    Integer.getInteger("bank.audit.files", 5));
+        } catch (IOException e) {
+            System.out.println("Error opening audit log: " + e.getMessage());
         }
     }
 
-    // Update account balance in database
-    static void updateBalanceInDB(int accountNumber, double newBalance) {
-        String sql = "UPDATE accounts SET balance = ? WHERE account_number = ?";
+    static void audit(short event, int accountNumber, long amount, long balance) {
+        AuditLog log = auditLog;
+        if (log != null) {
+            log.record(event, accountNumber, amount, balance);
+        }
+    }
 
-        try (Connection conn = getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    static void auditError(int accountNumber, String message) {
+        AuditLog log = auditLog;
+        if (log != null) {
+            log.record(AuditLog.ERROR, accountNumber, 0, 0, message);
+        }
+    }
+
+    static synchronized LoanBook loans() throws SQLException {
+        if (loanBook == null) {
+            LoanBook book = new LoanBook();
+            book.loadAll(Integer.getInteger("bank.load.pageSize", 10000));
+            loanBook = book;
+        }
+        return loanBook;
+    }
 
-            pstmt.setDouble(1, newBalance);
-            pstmt.setInt(2, accountNumber);
+    // Rebuild balances from the ledger; accounts whose balance differs are corrected in the database
+    static void replayLedger() {
+        if (ledger == null || cache != null) {
+            System.out.println("Ledger replay needs the ledger enabled and all accounts in memory.");
+            return;
+        }
+        try {
+            loader.awaitCompletion();
+            Map<Integer, Long> original = new HashMap<>();
+            long start = System.nanoTime();
+            long records = ledger.replay((seq, time, accNo, type, amount, balanceAfter) -> {
+                BankAccount account = accounts.get(accNo);
+                if (account != null && account.balance != balanceAfter) {
+                    original.putIfAbsent(accNo, account.balance);
+                    account.balance = balanceAfter;
+                    account.changed();
+                }
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            int corrected = 0;
+            for (Map.Entry<Integer, Long> entry : original.entrySet()) {
+                BankAccount account = accounts.get(entry.getKey());
+                if (account.balance != entry.getValue()) {
+                    submitBalance(entry.getKey(), account.balance);
+                    corrected++;
+                }
+            }
+            System.out.printf("Replayed %d ledger records in %.2f s (%.0f records/sec), %d balances corrected.%n",
+                    records, seconds, seconds > 0 ? records / seconds : 0, corrected);
+        } catch (IOException | SQLException e) {
+            System.out.println("Error replaying ledger: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            pstmt.executeUpdate();
+    // Called by the transaction engine for every change, with the account's lock held
+    static void balanceChanged(int accountNumber, short type, long amount, long newBalance) {
+        if (store != null) {
+            store.setBalance(accountNumber, newBalance);
+        }
+        recordInLedger(accountNumber, type, amount, newBalance);
+        audit(type, accountNumber, amount, newBalance);
+        submitBalance(accountNumber, newBalance);
+    }
+
+    // Called by the transaction engine for a transfer, with both accounts' locks held.
+    // The two balances are submitted together, so they reach the database in the same batch.
+    // They are submitted first: a transfer the journal refuses is put back by the engine
+    // before anything else has seen it.
+    static void transferred(int fromAccNo, int toAccNo, long amount, long fromBalance, long toBalance) {
+        submitBalances(new int[] { fromAccNo, toAccNo }, new long[] { fromBalance, toBalance });
+        if (store != null) {
+            store.setBalance(fromAccNo, fromBalance);
+            store.setBalance(toAccNo, toBalance);
+        }
+        recordInLedger(fromAccNo, Ledger.TRANSFER_OUT, amount, fromBalance);
+        recordInLedger(toAccNo, Ledger.TRANSFER_IN, amount, toBalance);
+        audit(Ledger.TRANSFER_OUT, fromAccNo, amount, fromBalance);
+        audit(Ledger.TRANSFER_IN, toAccNo, amount, toBalance);
+    }
+
+    static void recordInLedger(int accountNumber, short type, long amount, long newBalance) {
+        if (ledger == null) {
+            return;
+        }
+        try {
+            ledger.append(accountNumber, type, amount, newBalance);
+        } catch (IOException e) {
+            System.out.println("Error writing ledger: " + e.getMessage());
+        }
+    }
+
+    // Record a balance change; falls back to a direct update if the journal is unavailable
+    static void submitBalance(int accountNumber, long newBalance) {
+        if (balanceWriter == null) {
+            updateBalanceInDB(accountNumber, newBalance);
+            return;
+        }
+        try {
+            balanceWriter.submit(accountNumber, newBalance);
+        } catch (IOException e) {
+            System.out.println("Error writing balance journal: " + e.getMessage());
+            auditError(accountNumber, "Error writing balance journal: " + e.getMessage());
+            updateBalanceInDB(accountNumber, newBalance);
+        }
+    }
+
+    // Record balances that must be persisted together; falls back to direct updates if the
+    // journal is unavailable. A direct update commits on each shard separately, and a failure
+    // between the commits would leave money only on one side, so balances on more than one
+    // shard are refused with an IllegalStateException instead: only the journal lets the
+    // shard that failed be completed later.
+    static void submitBalances(int[] accountNumbers, long[] balances) {
+        boolean oneShard = onOneShard(accountNumbers);
+        if (balanceWriter == null) {
+            if (!oneShard) {
+                throw new IllegalStateException("Transfers between shards need the balance journal");
+            }
+            updateBalancesInDB(accountNumbers, balances);
+            return;
+        }
+        try {
+            balanceWriter.submitAll(accountNumbers, balances);
+        } catch (SyncFailedException e) {
+            // Queued but maybe not on disk: the writer still commits them, retrying a failed shard
+            System.out.println("Error forcing balance journal: " + e.getMessage());
+            for (int accountNumber : accountNumbers) {
+                auditError(accountNumber, "Error forcing balance journal: " + e.getMessage());
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing balance journal: " + e.getMessage());
+            for (int accountNumber : accountNumbers) {
+                auditError(accountNumber, "Error writing balance journal: " + e.getMessage());
+            }
+            if (!oneShard) {
+                throw new IllegalStateException("Error writing balance journal: " + e.getMessage(), e);
+            }
+            updateBalancesInDB(accountNumbers, balances);
+        }
+    }
+
+    static boolean onOneShard(int[] accountNumbers) {
+        ShardRouter.Shard shard = shards.shardFor(accountNumbers[0]);
+        for (int accNo : accountNumbers) {
+            if (shards.shardFor(accNo) != shard) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Load an account for the cache. Balances acknowledged by the write-behind stage
+    // but not committed yet take precedence over the database row.
+    static BankAccount readThrough(int accNo) throws SQLException {
+        while (true) {
+            long generation = balanceWriter == null ? 0 : balanceWriter.getFlushGeneration();
+            BankAccount account = AccountLoader.readOne(accNo);
+            if (account == null || balanceWriter == null) {
+                return account;
+            }
+            Long pending = balanceWriter.pendingBalance(accNo);
+            if (pending != null) {
+                account.balance = pending;
+                // The version this balance was based on left with the evicted object
+                account.markPersisted(pending, -1);
+                return account;
+            }
+            if (balanceWriter.getFlushGeneration() == generation) {
+                return account;
+            }
+            // A flush committed while the row was being read, read it again
+        }
+    }
+
+    // Copy an account's balance and persisted state into the compact store after a
+    // change made outside the transaction engine; callers hold the account's lock
+    static void storeAccount(BankAccount account) {
+        if (store != null) {
+            store.update(account);
+        }
+    }
+
+    // The database row holds this balance at this version
+    static void markPersisted(int accountNumber, long balance, long version) {
+        BankAccount account = residentAccount(accountNumber);
+        if (account != null) {
+            account.markPersisted(balance, version);
+        }
+        if (store != null) {
+            store.markPersisted(accountNumber, balance, version);
+        }
+    }
+
+    // The account object held in memory, without loading it; null if it is not resident
+    static BankAccount residentAccount(int accNo) {
+        return cache != null ? cache.peek(accNo) : accounts.get(accNo);
+    }
+
+    static void invalidateCached(int accNo) {
+        if (cache != null) {
+            cache.invalidate(accNo);
+        }
+    }
+
+    // Flush pending balance updates and release database connections
+    static void shutdown() {
+        if (balanceWriter != null) {
+            try {
+                balanceWriter.close();
+                System.out.println("Balance writer: " + balanceWriter.stats());
+            } catch (IOException | SQLException e) {
+                System.out.println("Error flushing balances: " + e.getMessage());
+            }
+        }
+        if (snapshots != null) {
+            try {
+                loader.awaitCompletion();
+                snapshots.close(accounts);
+                System.out.println("Snapshots: " + snapshots.stats());
+            } catch (IOException | SQLException e) {
+                System.out.println("Error writing account snapshot: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (cache != null) {
+            System.out.println("Account cache: " + cache.stats());
+        }
+        if (store != null) {
+            System.out.println("Account store: " + store.stats());
+        }
+        if (ledger != null) {
+            ledger.close();
+        }
+        if (loanBook != null) {
+            System.out.println("Loans: " + loanBook.stats());
+        }
+        if (auditLog != null) {
+            auditLog.close();
+            System.out.println("Audit log: " + auditLog.stats());
+        }
+        for (ShardRouter.Shard shard : shards.shards()) {
+            System.out.println("Connection pool, " + shard + ": " + shard.pool.stats());
+        }
+        shards.close();
+        if (DbMetrics.INSTANCE.isEnabled()) {
+            System.out.println("Database statements:");
+            System.out.print(DbMetrics.INSTANCE.getReport());
+        }
+    }
+
+    // Update account balance in database
+    static void updateBalanceInDB(int accountNumber, long newBalance) {
+        try {
+            long version = AccountDao.updateBalance(accountNumber, newBalance);
+            markPersisted(accountNumber, newBalance, version);
+            invalidateCached(accountNumber);
         } catch (SQLException e) {
             System.out.println("Error updating balance: " + e.getMessage());
+            auditError(accountNumber, "Error updating balance: " + e.getMessage());
+        }
+    }
+
+    static void updateBalancesInDB(int[] accountNumbers, long[] balances) {
+        try {
+            long[] versions = AccountDao.updateBalances(accountNumbers, balances);
+            for (int i = 0; i < accountNumbers.length; i++) {
+                markPersisted(accountNumbers[i], balances[i], versions[i]);
+                invalidateCached(accountNumbers[i]);
+            }
+        } catch (SQLException e) {
+            System.out.println("Error updating balances: " + e.getMessage());
+            for (int accountNumber : accountNumbers) {
+                auditError(accountNumber, "Error updating balances: " + e.getMessage());
+            }
         }
     }
 
+    // Apply a file of deposits and withdrawals without the menu, then exit
+    static void runBatch(Path input, Path rejects) {
+        int workers = Integer.getInteger("bank.batch.workers", Runtime.getRuntime().availableProcessors());
+        try {
+            new BatchProcessor(engine, workers, rejects).process(input);
+        } catch (IOException e) {
+            System.out.println("Error processing batch file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Batch interrupted.");
+        }
+        shutdown();
+    }
+
+    // Create the accounts listed in a CSV file, then exit
+    static void runOnboarding(Path input, Path outcomesFile) {
+        AccountOnboarding onboarding = null;
+        try (java.io.Writer outcomes = java.nio.file.Files.newBufferedWriter(outcomesFile)) {
+            onboarding = new AccountOnboarding(Integer.getInteger("bank.onboard.txnSize", 1000),
+                    Integer.getInteger("bank.onboard.parallelism", 4), (row, accNo, outcome, message) -> {
+                        if (outcome == AccountOnboarding.CREATED) {
+                            return;
+                        }
+                        synchronized (outcomes) {
+                            try {
+                                outcomes.write(row + "," + accNo + "," + AccountOnboarding.OUTCOME_NAMES[outcome]
+                                        + "," + message + "\n");
+                            } catch (IOException e) {
+                                System.out.println("Error writing outcomes: " + e.getMessage());
+                            }
+                        }
+                    });
+            onboarding.submitFile(input);
+            onboarding.finish();
+            System.out.println("Onboarding: " + onboarding.stats());
+            System.out.println("Rows that were not created are listed in " + outcomesFile);
+        } catch (IOException e) {
+            System.out.println("Error reading onboarding file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Onboarding interrupted.");
+        }
+        shutdown();
+    }
+
+    // Serve requests over TCP instead of the menu; stops on Enter or when the process is terminated
+    static void runServer(int port) {
+        BankServer server = new BankServer(port,
+                Integer.getInteger("bank.server.backlog", 4096),
+                Integer.getInteger("bank.server.maxInFlight", 256),
+                Integer.getInteger("bank.server.maxPendingWrites", 100000),
+                Long.getLong("bank.server.busyTimeoutMs", 1000L));
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.out.println("Could not start server: " + e.getMessage());
+            shutdown();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            System.out.println("Server: " + server.stats());
+            shutdown();
+        }, "bank-shutdown"));
+
+        System.out.println("Listening on port " + server.getPort() + ". Press Enter to stop.");
+        try {
+            sc.nextLine();
+        } catch (NoSuchElementException e) {
+            // No console attached, keep serving until the process is stopped
+            try {
+                new java.util.concurrent.CountDownLatch(1).await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.exit(0);
+    }
+
     public static void main(String[] args) {
+        Path batchFile = null;
+        Path rejectsFile = null;
+        int serverPort = -1;
+        Path onboardFile = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--batch")) {
+                batchFile = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--rejects")) {
+                rejectsFile = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--onboard")) {
+                onboardFile = Paths.get(args[i + 1]);
+            } else if (args[i].equals("--server")) {
+                serverPort = Integer.parseInt(args[i + 1]);
+            }
+        }
+        if (batchFile != null && System.getProperty("bank.writer.forceOnSubmit") == null) {
+            // The flusher forces the journal each interval instead of once per row
+            System.setProperty("bank.writer.forceOnSubmit", "false");
+        }
+
+        startMetrics();
         // Initialize database (creates database and table if they don't exist)
         initializeDatabase();
+        startBalanceWriter();
+        startLedger();
+        startAudit();
         loadAccountsFromDB();
+        if (Boolean.getBoolean("bank.ledger.replay")) {
+            replayLedger();
+        }
+        System.out.printf("Ready for requests after %.0f ms%n", (System.nanoTime() - startNanos) / 1e6);
+        if (batchFile != null) {
+            runBatch(batchFile, rejectsFile != null ? rejectsFile
+                    : batchFile.resolveSibling(batchFile.getFileName() + ".rejects"));
+            return;
+        }
+        if (onboardFile != null) {
+            runOnboarding(onboardFile, onboardFile.resolveSibling(onboardFile.getFileName() + ".outcomes"));
+            return;
+        }
+        if (serverPort >= 0) {
+            runServer(serverPort);
+            return;
+        }
 
         while (true) {
             try {
@@ -288,6 +1043,12 @@ class BankingApp {
                 System.out.println("4. Show Details");
                 System.out.println("5. Apply Interest");
                 System.out.println("6. Exit");
+                System.out.println("7. Search Accounts");
+                System.out.println("8. Accrue Interest (All Savings Accounts)");
+                System.out.println("9. Add Database Shard");
+                System.out.println("10. Loans");
+                System.out.println("11. Reports");
+                System.out.println("12. Transfer");
                 System.out.print("Enter your choice: ");
 
                 int choice = sc.nextInt();
@@ -311,9 +1072,28 @@ class BankingApp {
                         break;
                     case 6:
                         System.out.println("Exiting...");
+                        shutdown();
                         return;
+                    case 7:
+                        searchAccounts();
+                        break;
+                    case 8:
+                        accrueInterest();
+                        break;
+                    case 9:
+                        addShard();
+                        break;
+                    case 10:
+                        loanMenu();
+                        break;
+                    case 11:
+                        reportMenu();
+                        break;
+                    case 12:
+                        transfer();
+                        break;
                     default:
-                        System.out.println("Invalid choice. Please enter a number between 1 and 6.");
+                        System.out.println("Invalid choice. Please enter a number between 1 and 12.");
                 }
             } catch (InputMismatchException e) {
                 System.out.println("Error: Invalid input. Please enter a valid number.");
@@ -351,8 +1131,9 @@ class BankingApp {
             System.out.print("Enter Name: ");
             String name = sc.nextLine().trim();
 
-            if (name.isEmpty()) {
-                System.out.println("Error: Name cannot be empty.");
+            int nameCheck = AccountValidator.checkName(name);
+            if (nameCheck != AccountValidator.OK) {
+                System.out.println("Error: " + AccountValidator.message(nameCheck));
                 return;
             }
 
@@ -360,27 +1141,14 @@ class BankingApp {
             String email = sc.nextLine().trim();
 
             // Validate email format
-            if (!email.matches("^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,}$")) {
-                throw new InvalidEmailException("Invalid email format. Please use format: example@domain.com");
-            }
+            AccountValidator.requireValidEmail(email);
 
             System.out.print("Enter Initial Balance: ");
-            double balance = sc.nextDouble();
+            long balance = Money.fromAmount(sc.nextDouble());
             sc.nextLine(); // Consume newline
 
-            BankAccount newAccount;
-            String accountType;
-            if (type == 1) {
-                newAccount = new SavingsAccount(accNo, name, balance, email);
-                accountType = "Savings";
-                System.out.println("Savings Account created successfully!");
-            } else {
-                newAccount = new CurrentAccount(accNo, name, balance, email);
-                accountType = "Current";
-                System.out.println("Current Account created successfully!");
-            }
-            accounts.add(newAccount);
-            saveAccountToDB(newAccount, accountType);
+            openAccount(type == 1, accNo, name, email, balance);
+            System.out.println((type == 1 ? "Savings" : "Current") + " Account created successfully!");
 
         } catch (InputMismatchException e) {
             System.out.println("Error: Invalid input type. Please enter correct data types.");
@@ -396,13 +1164,79 @@ class BankingApp {
         }
     }
 
+    // Create, register and save a new account; used by the console and the server
+    static BankAccount openAccount(boolean savings, int accNo, String name, String email, long balance)
+            throws InvalidAmountException, InvalidEmailException, DuplicateAccountException {
+        AccountValidator.requireValidNewAccount(name, email, balance);
+        BankAccount newAccount = savings ? new SavingsAccount(accNo, name, balance, email)
+                : new CurrentAccount(accNo, name, balance, email);
+        // add() fails if another client registered the same number first; the primary key
+        // catches numbers that exist in the table but are not in memory
+        if (store != null ? !store.add(newAccount) : cache == null && !accounts.add(newAccount)) {
+            throw new DuplicateAccountException("Account number " + accNo + " already exists!");
+        }
+        shards.beginInsert();
+        try {
+            saveAccountToDB(newAccount);
+            newAccount.markPersisted(balance, 0);
+            if (store != null) {
+                store.markPersisted(accNo, balance, 0);
+            }
+            audit(AuditLog.ACCOUNT_OPENED, accNo, balance, balance);
+        } catch (DuplicateAccountException e) {
+            unregister(accNo);
+            throw e;
+        } catch (SQLException e) {
+            // Not in the table, so it must not stay in memory either
+            unregister(accNo);
+            auditError(accNo, "Error saving account: " + e.getMessage());
+            throw new IllegalStateException("Error saving account: " + e.getMessage(), e);
+        } finally {
+            shards.endInsert();
+        }
+        return newAccount;
+    }
+
+    // Take back an account openAccount registered but could not save
+    static void unregister(int accNo) {
+        if (store != null) {
+            store.remove(accNo);
+        } else if (cache == null) {
+            accounts.remove(accNo);
+        }
+    }
+
     static BankAccount findaccount(int accNo) throws AccountNotFoundException {
-        for (BankAccount account : accounts) {
-            if (account.getAccountNumber() == accNo) {
-                return account;
+        if (store != null) {
+            // Looked up under the account's lock so a stale copy can never reach the cache
+            BankAccount[] account = new BankAccount[1];
+            engine.withAccountLocked(accNo, () -> {
+                try {
+                    account[0] = cache.get(accNo);
+                } catch (SQLException e) {
+                    System.out.println("Error loading account: " + e.getMessage());
+                }
+            });
+            return account[0];
+        }
+        if (cache != null) {
+            try {
+                return cache.get(accNo);
+            } catch (SQLException e) {
+                System.out.println("Error loading account: " + e.getMessage());
+                return null;
             }
         }
-        return null;
+        BankAccount account = accounts.get(accNo);
+        if (account == null && !loader.isComplete()) {
+            // Still loading in the background, read this account directly
+            try {
+                account = loader.loadOne(accNo);
+            } catch (SQLException e) {
+                System.out.println("Error loading account: " + e.getMessage());
+            }
+        }
+        return account;
     }
 
     static void deposit() {
@@ -417,13 +1251,12 @@ class BankingApp {
             }
 
             System.out.print("Enter Amount to Deposit: ");
-            double amount = sc.nextDouble();
+            long amount = Money.fromAmount(sc.nextDouble());
             sc.nextLine(); // Consume newline
 
-            account.deposit(amount);
-            updateBalanceInDB(accNo, account.getBalance());
+            long newBalance = engine.deposit(accNo, amount);
             System.out.println("Deposit successful!");
-            System.out.println("New Balance: " + account.balance);
+            System.out.println("New Balance: " + Money.format(newBalance));
 
         } catch (InputMismatchException e) {
             System.out.println("Error: Invalid input. Please enter valid numbers.");
@@ -449,13 +1282,44 @@ class BankingApp {
             }
 
             System.out.print("Enter Amount to Withdraw: ");
-            double amount = sc.nextDouble();
+            long amount = Money.fromAmount(sc.nextDouble());
             sc.nextLine(); // Consume newline
 
-            account.withdraw(amount);
-            updateBalanceInDB(accNo, account.getBalance());
+            long newBalance = engine.withdraw(accNo, amount);
             System.out.println("Withdrawal successful!");
-            System.out.println("Remaining Balance: " + account.balance);
+            System.out.println("Remaining Balance: " + Money.format(newBalance));
+
+        } catch (InputMismatchException e) {
+            System.out.println("Error: Invalid input. Please enter valid numbers.");
+            sc.nextLine(); // Clear invalid input
+        } catch (AccountNotFoundException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (InvalidAmountException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (InsufficientBalanceException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (Exception e) {
+            System.out.println("An unexpected error occurred: " + e.getMessage());
+        }
+    }
+
+    static void transfer() {
+        try {
+            System.out.print("\nEnter Source Account Number: ");
+            int fromAccNo = sc.nextInt();
+            sc.nextLine(); // Consume newline
+
+            System.out.print("Enter Destination Account Number: ");
+            int toAccNo = sc.nextInt();
+            sc.nextLine(); // Consume newline
+
+            System.out.print("Enter Amount to Transfer: ");
+            long amount = Money.fromAmount(sc.nextDouble());
+            sc.nextLine(); // Consume newline
+
+            long newBalance = engine.transfer(fromAccNo, toAccNo, amount);
+            System.out.println("Transfer successful!");
+            System.out.println("Remaining Balance: " + Money.format(newBalance));
 
         } catch (InputMismatchException e) {
             System.out.println("Error: Invalid input. Please enter valid numbers.");
@@ -517,4 +1381,295 @@ class BankingApp {
             System.out.println("An unexpected error occurred: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    static void accrueInterest() {
+        try {
+            if (cache != null) {
+                System.out.println("Interest accrual needs all accounts in memory; not available with bank.load.mode="
+                        + LOAD_MODE + ".");
+                return;
+            }
+            if (!loader.isComplete()) {
+                System.out.println("Waiting for accounts to finish loading...");
+                loader.awaitCompletion();
+            }
+            System.out.print("\nEnter Run ID (blank for today's date): ");
+            String runId = sc.nextLine().trim();
+            if (runId.isEmpty()) {
+                runId = java.time.LocalDate.now().toString();
+            }
+
+            InterestAccrualJob job = new InterestAccrualJob(runId,
+                    Integer.getInteger("bank.interest.chunkSize", 200),
+                    Integer.getInteger("bank.interest.parallelism", Runtime.getRuntime().availableProcessors()),
+                    Integer.getInteger("bank.interest.periodsPerYear", 1));
+            job.run(accounts.snapshot());
+            System.out.println("Interest accrual completed!");
+
+        } catch (SQLException e) {
+            System.out.println("Interest accrual failed: " + e.getMessage());
+            System.out.println("Run it again with the same Run ID to continue where it stopped.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Interest accrual interrupted.");
+        } catch (Exception e) {
+            System.out.println("An unexpected error occurred: " + e.getMessage());
+        }
+    }
+
+    static void addShard() {
+        try {
+            System.out.print("\nEnter JDBC URL of the new shard (the database must exist): ");
+            String url = sc.nextLine().trim();
+            if (url.isEmpty()) {
+                System.out.println("No URL entered.");
+                return;
+            }
+            System.out.println("Moving accounts; the bank stays open while they move...");
+            new ShardRebalancer(shards, Integer.getInteger("bank.shards.pageSize", 1000)).addShard(url, newPool(url));
+            System.out.println("The shard is recorded in shard_membership and is used on the next start.");
+        } catch (SQLException e) {
+            System.out.println("Adding the shard failed: " + e.getMessage());
+            System.out.println("Add the same URL again to continue where it stopped.");
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    static void loanMenu() {
+        try {
+            System.out.println("\n--- Loans ---");
+            System.out.println("1. Apply for Loan");
+            System.out.println("2. Show Loans and Schedule");
+            System.out.println("3. Run Monthly Repayments");
+            System.out.println("4. Projected Collections");
+            System.out.print("Select option: ");
+            int option = sc.nextInt();
+            sc.nextLine(); // Consume newline
+
+            switch (option) {
+                case 1:
+                    applyForLoan();
+                    break;
+                case 2:
+                    showLoans();
+                    break;
+                case 3:
+                    runRepayments();
+                    break;
+                case 4:
+                    projectCollections();
+                    break;
+                default:
+                    System.out.println("Invalid option. Please select 1 to 4.");
+            }
+        } catch (InputMismatchException e) {
+            System.out.println("Error: Invalid input. Please enter a valid number.");
+            sc.nextLine(); // Clear invalid input
+        } catch (AccountNotFoundException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (InvalidAmountException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Loan operation failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Loan repayments interrupted.");
+        } catch (Exception e) {
+            System.out.println("An unexpected error occurred: " + e.getMessage());
+        }
+    }
+
+    static void applyForLoan() throws AccountNotFoundException, InvalidAmountException, SQLException {
+        System.out.print("\nEnter Account Number: ");
+        int accNo = sc.nextInt();
+        sc.nextLine(); // Consume newline
+
+        BankAccount account = findaccount(accNo);
+        if (account == null) {
+            throw new AccountNotFoundException("Account number " + accNo + " not found!");
+        }
+
+        System.out.print("Enter Loan Amount: ");
+        long amount = Money.fromAmount(sc.nextDouble());
+        System.out.print("Enter Term in Months: ");
+        int term = sc.nextInt();
+        sc.nextLine(); // Consume newline
+
+        Loan loan = loans().originate(account, amount, term);
+        System.out.println("Loan approved!");
+        System.out.println(loan);
+        System.out.println("New Balance: " + Money.format(account.getBalance()));
+    }
+
+    static void showLoans() throws AccountNotFoundException, SQLException {
+        System.out.print("\nEnter Account Number: ");
+        int accNo = sc.nextInt();
+        sc.nextLine(); // Consume newline
+
+        List<Loan> found = loans().forAccount(accNo);
+        if (found.isEmpty()) {
+            throw new AccountNotFoundException("No loans found for account " + accNo + "!");
+        }
+        for (Loan loan : found) {
+            System.out.println("\n" + loan);
+            if (loan.isActive()) {
+                System.out.println(" No.      Payment     Interest    Principal  Outstanding");
+                for (AmortizationSchedule.Installment row : loan.schedule()) {
+                    System.out.printf("%4d %12s %12s %12s %12s%n", row.number, Money.format(row.payment),
+                            Money.format(row.interest), Money.format(row.principal),
+                            Money.format(row.outstandingAfter));
+                }
+            }
+        }
+    }
+
+    static void runRepayments() throws SQLException, InterruptedException {
+        System.out.print("\nEnter Run ID (blank for this month): ");
+        String runId = sc.nextLine().trim();
+        if (runId.isEmpty()) {
+            runId = java.time.YearMonth.now().toString();
+        }
+        LoanRepaymentJob job = new LoanRepaymentJob(runId,
+                Integer.getInteger("bank.loan.chunkSize", 500),
+                Integer.getInteger("bank.loan.parallelism", Runtime.getRuntime().availableProcessors()));
+        try {
+            job.run(loans().snapshot());
+            System.out.println("Loan repayments completed!");
+        } catch (SQLException e) {
+            System.out.println("Loan repayments failed: " + e.getMessage());
+            System.out.println("Run them again with the same Run ID to continue where they stopped.");
+        }
+    }
+
+    static void projectCollections() throws SQLException {
+        System.out.print("\nEnter Number of Months: ");
+        int months = sc.nextInt();
+        sc.nextLine(); // Consume newline
+        if (months < 1 || months > LoanBook.MAX_TERM_MONTHS) {
+            System.out.println("Error: Number of months must be between 1 and " + LoanBook.MAX_TERM_MONTHS + ".");
+            return;
+        }
+
+        LoanBook book = loans();
+        long[] collected = book.projectedCollections(months);
+        long total = 0;
+        for (int month = 0; month < months; month++) {
+            total += collected[month];
+            System.out.printf("Month %3d: %s%n", month + 1, Money.format(collected[month]));
+        }
+        System.out.println("Total: " + Money.format(total) + " (" + book.stats() + ")");
+    }
+
+    static void searchAccounts() {
+        try {
+            System.out.println("\n--- Search Accounts ---");
+            System.out.println("1. By Email");
+            System.out.println("2. By Holder Name");
+            System.out.println("3. By Email Prefix");
+            System.out.println("4. By Holder Name Prefix");
+            System.out.print("Select search type: ");
+            int type = sc.nextInt();
+            sc.nextLine(); // Consume newline
+
+            List<BankAccount> found;
+            if (type == 1) {
+                System.out.print("Enter Email: ");
+                String email = sc.nextLine().trim();
+                found = store != null ? store.findByEmail(email)
+                        : cache != null ? AccountLoader.readWhere("email", email) : accounts.findByEmail(email);
+            } else if (type == 2) {
+                System.out.print("Enter Name: ");
+                String name = sc.nextLine().trim();
+                found = store != null ? store.findByHolderName(name)
+                        : cache != null ? AccountLoader.readWhere("holder_name", name) : accounts.findByHolderName(name);
+            } else if (type == 3 || type == 4) {
+                System.out.print(type == 3 ? "Enter Email Prefix: " : "Enter Name Prefix: ");
+                String prefix = sc.nextLine().trim();
+                int shown = reports.searchPrefix(type == 3 ? "email" : "holder_name", prefix, SEARCH_LIMIT,
+                        account -> {
+                            System.out.println("\n--- Account Details ---");
+                            account.showdetails();
+                        });
+                if (shown == 0) {
+                    throw new AccountNotFoundException("No matching accounts found!");
+                }
+                if (shown == SEARCH_LIMIT) {
+                    System.out.println("\nShowing the first " + SEARCH_LIMIT + " matches.");
+                }
+                return;
+            } else {
+                System.out.println("Invalid search type. Please select 1 to 4.");
+                return;
+            }
+
+            if (found.isEmpty()) {
+                throw new AccountNotFoundException("No matching accounts found!");
+            }
+            for (BankAccount account : found) {
+                if (cache != null) {
+                    // Show the cached copy, it may hold a newer balance than the database row
+                    BankAccount current = findaccount(account.getAccountNumber());
+                    account = current != null ? current : account;
+                }
+                System.out.println("\n--- Account Details ---");
+                account.showdetails();
+            }
+
+        } catch (InputMismatchException e) {
+            System.out.println("Error: Invalid input. Please enter a valid number.");
+            sc.nextLine(); // Clear invalid input
+        } catch (AccountNotFoundException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (Exception e) {
+            System.out.println("An unexpected error occurred: " + e.getMessage());
+        }
+    }
+
+    static void reportMenu() {
+        try {
+            System.out.println("\n--- Reports ---");
+            System.out.println("1. Current Accounts in Overdraft");
+            System.out.println("2. Top Balances");
+            System.out.println("3. Totals by Account Type");
+            System.out.print("Select report: ");
+            int choice = sc.nextInt();
+            sc.nextLine(); // Consume newline
+
+            long start = System.nanoTime();
+            switch (choice) {
+                case 1:
+                    long found = reports.overdrawn(account -> System.out.println(account.getAccountNumber() + "  "
+                            + account.getHoldername() + "  " + Money.format(account.getBalance())));
+                    System.out.println(found + " account(s) in overdraft.");
+                    break;
+                case 2:
+                    System.out.print("How many: ");
+                    int n = sc.nextInt();
+                    sc.nextLine(); // Consume newline
+                    if (n <= 0) {
+                        System.out.println("Please enter a positive number.");
+                        return;
+                    }
+                    int rank = 0;
+                    for (BankAccount account : reports.topBalances(n)) {
+                        System.out.println(++rank + ". " + account.getAccountNumber() + "  "
+                                + account.getHoldername() + "  " + Money.format(account.getBalance()));
+                    }
+                    break;
+                case 3:
+                    System.out.print(reports.totals());
+                    break;
+                default:
+                    System.out.println("Invalid report. Please select 1 to 3.");
+                    return;
+            }
+            System.out.printf("(%.1f ms)%n", (System.nanoTime() - start) / 1e6);
+        } catch (InputMismatchException e) {
+            System.out.println("Error: Invalid input. Please enter a valid number.");
+            sc.nextLine(); // Clear invalid input
+        } catch (SQLException e) {
+            System.out.println("Error running report: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Non-interactive processing of a file of deposit/withdraw instructions.
+// The file is read through a FileChannel and parsed straight from the byte buffer,
+// without building a String per line. Two layouts are accepted:
+//   CSV:          D,1001,250.00      (type, account number, amount)
+//   Fixed-width:  D      1001250.00  (type in column 1, account number in columns 2-11,
+//                                     amount from column 12)
+// Type is D (deposit) or W (withdraw); blank lines and lines starting with # are skipped.
+// Rows are partitioned by account number across worker threads, so rows for one
+// account are applied in file order. Rejected rows go to a rejects file with the reason.
+// If a worker dies (an Error escapes it), parsing stops and process() throws; the
+// other workers still apply the rows already queued for them.
+class BatchProcessor {
+    private static final int CHUNK_ROWS = 1024;
+    private static final int READ_BUFFER = 1 << 20;
+
+    private final TransactionEngine engine;
+    private final int workerCount;
+    private final Path rejectsFile;
+
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private long rows;
+    private Writer rejects;
+    private List<BlockingQueue<Chunk>> queues;
+    private Thread[] workers;
+    private volatile Throwable workerFailure;
+
+    // A group of parsed rows for one worker
+    private static final class Chunk {
+        final byte[] types = new byte[CHUNK_ROWS];
+        final int[] accNos = new int[CHUNK_ROWS];
+        final long[] amounts = new long[CHUNK_ROWS];
+        final long[] lines = new long[CHUNK_ROWS];
+        int size;
+    }
+
+    private static final Chunk END = new Chunk();
+
+    public BatchProcessor(TransactionEngine engine, int workerCount, Path rejectsFile) {
+        this.engine = engine;
+        this.workerCount = Math.max(1, workerCount);
+        this.rejectsFile = rejectsFile;
+    }
+
+    public void process(Path input) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        rejects = Files.newBufferedWriter(rejectsFile, StandardCharsets.UTF_8);
+
+        queues = new ArrayList<>(workerCount);
+        workers = new Thread[workerCount];
+        workerFailure = null;
+        Chunk[] filling = new Chunk[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(16);
+            queues.add(queue);
+            filling[i] = new Chunk();
+            workers[i] = new Thread(() -> work(queue), "batch-worker-" + i);
+            workers[i].start();
+        }
+
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER);
+            byte[] bytes = buf.array();
+            long lineNo = 0;
+            while (channel.read(buf) != -1 || buf.position() > 0) {
+                int limit = buf.position();
+                int lineStart = 0;
+                boolean eof = limit < bytes.length && channel.position() >= channel.size();
+                for (int i = 0; i < limit; i++) {
+                    if (bytes[i] == '\n') {
+                        parseLine(bytes, lineStart, i, ++lineNo, filling);
+                        lineStart = i + 1;
+                    }
+                }
+                if (lineStart == 0 && limit == bytes.length) {
+                    throw new IOException("Line " + (lineNo + 1) + " is longer than " + READ_BUFFER + " bytes");
+                }
+                if (eof && lineStart < limit) {
+                    parseLine(bytes, lineStart, limit, ++lineNo, filling); // last line without newline
+                    lineStart = limit;
+                }
+                // Keep the unfinished line at the start of the buffer
+                System.arraycopy(bytes, lineStart, bytes, 0, limit - lineStart);
+                buf.position(limit - lineStart);
+                if (eof && buf.position() == 0) {
+                    break;
+                }
+            }
+        } finally {
+            // A worker that has died takes nothing more; the others finish their queues
+            for (int i = 0; i < workerCount; i++) {
+                if (filling[i].size == 0 || deliver(i, filling[i])) {
+                    deliver(i, END);
+                }
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            rejects.close();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Processed %d rows in %.2f s (%.0f rows/sec): %d applied, %d rejected%n",
+                rows, seconds, seconds > 0 ? rows / seconds : 0, applied.sum(), rejected.sum());
+        if (rejected.sum() > 0) {
+            System.out.println("Rejected rows written to " + rejectsFile);
+        }
+        if (workerFailure != null) {
+            throw workerFailed();
+        }
+    }
+
+    // Queue a chunk for a worker, waiting while its queue is full; false if the worker has stopped
+    private boolean deliver(int worker, Chunk chunk) throws InterruptedException {
+        while (!queues.get(worker).offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            if (!workers[worker].isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private IOException workerFailed() {
+        Throwable failure = workerFailure;
+        return new IOException("A batch worker failed (" + failure + "); rows queued for it were not applied",
+                failure);
+    }
+
+    private void parseLine(byte[] b, int start, int end, long lineNo, Chunk[] filling)
+            throws IOException, InterruptedException {
+        if (end > start && b[end - 1] == '\r') {
+            end--;
+        }
+        int s = skipSpaces(b, start, end);
+        if (s == end || b[s] == '#') {
+            return;
+        }
+        byte type = upper(b[s]);
+        if (lineNo == 1 && type == 'T') {
+            return; // header line, e.g. "type,account_number,amount"
+        }
+        rows++;
+
+        int accNo;
+        long amount;
+        try {
+            if (type != 'D' && type != 'W') {
+                throw new NumberFormatException("Unknown type");
+            }
+            int comma1 = indexOf(b, start, end, (byte) ',');
+            if (comma1 >= 0) {
+                int comma2 = indexOf(b, comma1 + 1, end, (byte) ',');
+                if (comma2 < 0) {
+                    throw new NumberFormatException("Expected 3 fields");
+                }
+                accNo = parseInt(b, comma1 + 1, comma2);
+                amount = parseCents(b, comma2 + 1, end);
+            } else {
+                if (end - start < 12) {
+                    throw new NumberFormatException("Line too short");
+                }
+                accNo = parseInt(b, start + 1, start + 11);
+                amount = parseCents(b, start + 11, end);
+            }
+        } catch (NumberFormatException e) {
+            reject(lineNo + ",,,," + "Malformed line (" + e.getMessage() + "): "
+                    + new String(b, start, end - start, StandardCharsets.UTF_8));
+            return;
+        }
+
+        int worker = partition(accNo);
+        Chunk chunk = filling[worker];
+        int i = chunk.size++;
+        chunk.types[i] = type;
+        chunk.accNos[i] = accNo;
+        chunk.amounts[i] = amount;
+        chunk.lines[i] = lineNo;
+        if (chunk.size == CHUNK_ROWS) {
+            if (workerFailure != null || !deliver(worker, chunk)) {
+                throw workerFailed();
+            }
+            filling[worker] = new Chunk();
+        }
+    }
+
+    private int partition(int accNo) {
+        int h = accNo * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), workerCount);
+    }
+
+    private void work(BlockingQueue<Chunk> queue) {
+        try {
+            while (true) {
+                Chunk chunk = queue.take();
+                if (chunk == END) {
+                    return;
+                }
+                for (int i = 0; i < chunk.size; i++) {
+                    apply(chunk.types[i], chunk.accNos[i], chunk.amounts[i], chunk.lines[i]);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            // Stops this worker; the parser sees it and stops handing out rows
+            synchronized (this) {
+                if (workerFailure == null) {
+                    workerFailure = e;
+                }
+            }
+        }
+    }
+
+    private void apply(byte type, int accNo, long amount, long lineNo) {
+        try {
+            if (type == 'D') {
+                engine.deposit(accNo, amount);
+            } else {
+                engine.withdraw(accNo, amount);
+            }
+            applied.increment();
+        } catch (InvalidAmountException | AccountNotFoundException | InsufficientBalanceException e) {
+            reject(lineNo + "," + (char) type + "," + accNo + "," + Money.format(amount) + "," + e.getMessage());
+        } catch (RuntimeException e) {
+            reject(lineNo + "," + (char) type + "," + accNo + "," + Money.format(amount) + ",Unexpected error: " + e);
+        }
+    }
+
+    private void reject(String line) {
+        rejected.increment();
+        synchronized (this) {
+            try {
+                rejects.write(line);
+                rejects.write('\n');
+            } catch (IOException e) {
+                System.out.println("Error writing rejects file: " + e.getMessage());
+            }
+        }
+    }
+
+    private static byte upper(byte c) {
+        return c >= 'a' && c <= 'z' ? (byte) (c - 32) : c;
+    }
+
+    private static int skipSpaces(byte[] b, int from, int end) {
+        while (from < end && (b[from] == ' ' || b[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] b, int from, int end) {
+        while (end > from && (b[end - 1] == ' ' || b[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int indexOf(byte[] b, int from, int end, byte c) {
+        for (int i = from; i < end; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int parseInt(byte[] b, int from, int end) {
+        from = skipSpaces(b, from, end);
+        end = trimEnd(b, from, end);
+        boolean negative = from < end && b[from] == '-';
+        if (negative) {
+            from++;
+        }
+        if (from == end) {
+            throw new NumberFormatException("Missing account number");
+        }
+        long value = 0;
+        for (int i = from; i < end; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("Invalid account number");
+            }
+            value = value * 10 + d;
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw new NumberFormatException("Account number out of range");
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Account number out of range");
+        }
+        return (int) value;
+    }
+
+    // Parse a decimal amount with at most two fraction digits into cents, without rounding
+    private static long parseCents(byte[] b, int from, int end) {
+        from = skipSpaces(b, from, end);
+        end = trimEnd(b, from, end);
+        boolean negative = from < end && b[from] == '-';
+        if (negative) {
+            from++;
+        }
+        if (from == end) {
+            throw new NumberFormatException("Missing amount");
+        }
+        long units = 0;
+        long cents = 0;
+        int fractionDigits = -1;
+        for (int i = from; i < end; i++) {
+            byte c = b[i];
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+                continue;
+            }
+            int d = c - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("Invalid amount");
+            }
+            if (fractionDigits < 0) {
+                if (units > (Long.MAX_VALUE / Money.CENTS_PER_UNIT - 9) / 10) {
+                    throw new NumberFormatException("Amount out of range");
+                }
+                units = units * 10 + d;
+            } else if (++fractionDigits <= 2) {
+                cents = cents * 10 + d;
+            } else {
+                throw new NumberFormatException("More than two decimal places");
+            }
+        }
+        if (fractionDigits == 1) {
+            cents *= 10;
+        }
+        long total = units * Money.CENTS_PER_UNIT + cents;
+        return negative ? -total : total;
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Small benchmark harness for the *Benchmark classes; runs them with plain javac/java.
+// BankingBenchmark's workloads are also built as a JMH suite (jmh/, mvn -Pjmh package).
+// Each benchmark runs warmup rounds, then measured rounds on the calling thread, and
+// reports the median and best time per operation and the bytes allocated per operation
+// (HotSpot's per-thread allocation counter, the same number JMH's -prof gc reports).
+// Results can be saved as a baseline file and later runs compared against it.
+final class Bench {
+    interface Op {
+        // One operation; the result is consumed so the JIT cannot drop the work
+        long run(int i) throws Exception;
+    }
+
+    static volatile long sink;
+
+    // Captured once, so a benchmark may silence System.out for code that prints
+    private static final PrintStream out = System.out;
+
+    static int warmupRounds = Integer.getInteger("bench.warmup", 5);
+    static int measureRounds = Integer.getInteger("bench.rounds", 10);
+
+    // name -> { median ns/op, bytes/op } in the order the benchmarks ran
+    static final Map<String, double[]> results = new LinkedHashMap<>();
+
+    private Bench() {
+    }
+
+    // Returns the median nanoseconds per operation
+    static double run(String name, int opsPerRound, Op op) throws Exception {
+        for (int r = 0; r < warmupRounds; r++) {
+            round(opsPerRound, op);
+        }
+        double[] nanosPerOp = new double[measureRounds];
+        long allocated = allocatedBytes();
+        for (int r = 0; r < measureRounds; r++) {
+            nanosPerOp[r] = (double) round(opsPerRound, op) / opsPerRound;
+        }
+        allocated = allocatedBytes() - allocated;
+        Arrays.sort(nanosPerOp);
+        double median = nanosPerOp[measureRounds / 2];
+        double bytesPerOp = allocated < 0 ? -1 : (double) allocated / opsPerRound / measureRounds;
+        out.printf("%-48s %12.1f ns/op %12.1f ns/op (best) %14.0f ops/s %10s B/op%n", name, median,
+                nanosPerOp[0], 1e9 / median, bytesPerOp < 0 ? "n/a" : String.format("%.1f", bytesPerOp));
+        results.put(name, new double[] { median, bytesPerOp });
+        return median;
+    }
+
+    private static long round(int ops, Op op) throws Exception {
+        long acc = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            acc += op.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        sink = acc;
+        return elapsed;
+    }
+
+    // Write the results as "name<TAB>ns/op<TAB>B/op" lines, with a header describing the machine
+    static void saveResults(Path file) throws IOException {
+        saveResults(file, "warmup=" + warmupRounds + " rounds=" + measureRounds);
+    }
+
+    // Same, naming the harness and settings that measured the results in the header
+    static void saveResults(Path file, String method) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version") + ", "
+                + System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", "
+                + Runtime.getRuntime().availableProcessors() + " CPUs, " + method);
+        lines.add("# benchmark\tns/op\tB/op");
+        for (Map.Entry<String, double[]> result : results.entrySet()) {
+            lines.add(String.format(Locale.ROOT, "%s\t%.1f\t%.1f", result.getKey(), result.getValue()[0],
+                    result.getValue()[1]));
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        out.println("Results saved to " + file);
+    }
+
+    // Compare the results with a saved baseline. A benchmark regresses when it is slower than
+    // the baseline by more than the tolerance (0.25 = 25%), or allocates more than
+    // tolerance and at least 8 bytes more per op. Returns the number of regressions.
+    static int compareWithBaseline(Path file, double tolerance) throws IOException {
+        Map<String, double[]> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] f = line.split("\t");
+            if (line.startsWith("#") || f.length < 3) {
+                continue;
+            }
+            baseline.put(f[0], new double[] { Double.parseDouble(f[1]), Double.parseDouble(f[2]) });
+        }
+        out.println();
+        out.println("Compared with " + file + " (tolerance " + Math.round(tolerance * 100) + "%):");
+        int regressions = 0;
+        for (Map.Entry<String, double[]> result : results.entrySet()) {
+            double[] base = baseline.get(result.getKey());
+            if (base == null) {
+                out.printf("  %-48s new%n", result.getKey());
+                continue;
+            }
+            double[] now = result.getValue();
+            boolean slower = now[0] > base[0] * (1 + tolerance);
+            boolean allocates = base[1] >= 0 && now[1] > base[1] * (1 + tolerance) && now[1] - base[1] >= 8;
+            if (slower || allocates) {
+                regressions++;
+            }
+            out.printf("  %-48s %+7.1f%% time %+9.1f B/op%s%n", result.getKey(), (now[0] / base[0] - 1) * 100,
+                    now[1] - base[1], slower || allocates ? "   REGRESSION" : "");
+        }
+        out.println(regressions == 0 ? "No regressions." : regressions + " regression(s).");
+        return regressions;
+    }
+
+    // Bytes allocated so far by this thread, or -1 if the JVM does not report it
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
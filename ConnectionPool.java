@@ -0,0 +1,524 @@
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Simple JDBC connection pool.
+// Keeps physical connections open between calls so each persistence method
+// no longer pays for a new handshake. Connections handed out are proxies whose
+// close() returns the physical connection to the pool.
+// Each physical connection also keeps its most recently used prepared statements open
+// (statementCacheSize per connection), so the same SQL is prepared once per connection
+// instead of once per call. Closing a cached statement clears its parameters and
+// batch and leaves it open for the next borrower. Statements still open when the
+// connection is returned are reset the same way (or closed, if they are not cached).
+// An idle connection is validated before it is handed out, unless it was returned less
+// than validationIdleMillis ago: a connection that just finished a call is alive, and
+// skipping the check saves a round trip on every borrow of a busy pool.
+class ConnectionPool {
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long validationIdleMillis;
+    private final long leakThresholdMillis;
+    private final boolean leakTrace;
+    private final int statementCacheSize;
+
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private final Set<PooledConnection> active = new HashSet<>();
+    private int total; // physical connections open or being opened
+    private boolean closed;
+    private final ScheduledExecutorService housekeeper;
+
+    // Metrics
+    private long borrows;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long timeouts;
+    private long created;
+    private long evicted;
+    private long validationFailures;
+    private long leaksDetected;
+    private long statementHits;
+    private long statementMisses;
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+            long borrowTimeoutMillis, long idleTimeoutMillis, long validationIdleMillis, long leakThresholdMillis,
+            boolean leakTrace, int statementCacheSize) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationIdleMillis = validationIdleMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.leakTrace = leakTrace;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+
+        housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMillis, 30000) / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Borrow a connection, waiting up to the borrow timeout if the pool is exhausted
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+
+        while (true) {
+            PooledConnection candidate = null;
+            boolean create = false;
+            boolean validate = false;
+
+            synchronized (this) {
+                while (!closed && idle.isEmpty() && total >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts++;
+                        throw new SQLTransientConnectionException("Connection pool exhausted: no connection available after "
+                                + borrowTimeoutMillis + " ms (max size " + maxSize + ")");
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection", e);
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                if (!idle.isEmpty()) {
+                    candidate = idle.pollFirst();
+                    validate = System.currentTimeMillis() - candidate.lastUsed >= validationIdleMillis;
+                } else {
+                    total++; // reserve a slot, the connection is opened outside the lock
+                    create = true;
+                }
+            }
+
+            if (create) {
+                try {
+                    candidate = new PooledConnection(openPhysical());
+                } catch (SQLException e) {
+                    synchronized (this) {
+                        total--;
+                        notifyAll();
+                    }
+                    throw e;
+                }
+            } else if (validate && !isValid(candidate)) {
+                discard(candidate);
+                synchronized (this) {
+                    validationFailures++;
+                }
+                continue;
+            }
+
+            return checkout(candidate, System.nanoTime() - start);
+        }
+    }
+
+    private Connection openPhysical() throws SQLException {
+        Connection conn = DriverManager.getConnection(url, user, password);
+        synchronized (this) {
+            created++;
+        }
+        return conn;
+    }
+
+    private boolean isValid(PooledConnection pc) {
+        try {
+            return pc.physical.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private synchronized Connection checkout(PooledConnection pc, long waitNanos) {
+        borrows++;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        pc.borrowedAt = System.currentTimeMillis();
+        // The borrow time alone detects a leak; the stack trace costs an allocation and a walk per borrow
+        pc.borrower = leakTrace && leakThresholdMillis > 0 ? new Exception("Connection borrowed here") : null;
+        pc.leakReported = false;
+        active.add(pc);
+        return pc.newHandle();
+    }
+
+    // Called when a borrowed proxy is closed
+    private void release(PooledConnection pc) {
+        releaseStatements(pc);
+        boolean reusable;
+        try {
+            if (!pc.physical.getAutoCommit()) {
+                pc.physical.rollback();
+                pc.physical.setAutoCommit(true);
+            }
+            reusable = !pc.physical.isClosed();
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        synchronized (this) {
+            active.remove(pc);
+            if (reusable && !closed) {
+                pc.lastUsed = System.currentTimeMillis();
+                idle.addFirst(pc); // most recently used first, so extra connections age out
+                notifyAll();
+                return;
+            }
+        }
+        discard(pc);
+    }
+
+    // Statements the borrower left open: close their result sets and clear parameters and
+    // batches of cached ones, close the others (including cached ones evicted while in use)
+    private void releaseStatements(PooledConnection pc) {
+        Iterator<CachedStatement> it = pc.statements.values().iterator();
+        while (it.hasNext()) {
+            CachedStatement cached = it.next();
+            if (cached.inUse) {
+                cached.reset();
+                if (cached.evicted) {
+                    it.remove(); // the reset failed and closed it
+                }
+            }
+        }
+        for (CachedStatement cached : pc.evictedInUse) {
+            if (cached.inUse) {
+                cached.reset();
+            }
+        }
+        pc.evictedInUse.clear();
+        for (PreparedStatement stmt : pc.uncached) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                // Closed with the connection at the latest
+            }
+        }
+        pc.uncached.clear();
+    }
+
+    private void discard(PooledConnection pc) {
+        pc.statements.clear(); // closed with the connection
+        pc.evictedInUse.clear();
+        pc.uncached.clear();
+        try {
+            pc.physical.close();
+        } catch (SQLException e) {
+            // Connection is already unusable
+        }
+        synchronized (this) {
+            total--;
+            notifyAll();
+        }
+    }
+
+    // Periodic maintenance: evict idle connections, report leaks, keep minimum size
+    private void housekeep() {
+        List<PooledConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && total - toClose.size() > minSize) {
+                PooledConnection pc = it.next();
+                if (now - pc.lastUsed > idleTimeoutMillis) {
+                    it.remove();
+                    toClose.add(pc);
+                    evicted++;
+                }
+            }
+            if (leakThresholdMillis > 0) {
+                for (PooledConnection pc : active) {
+                    if (!pc.leakReported && now - pc.borrowedAt > leakThresholdMillis) {
+                        pc.leakReported = true;
+                        leaksDetected++;
+                        System.out.println("Possible connection leak: connection held for "
+                                + (now - pc.borrowedAt) + " ms"
+                                + (pc.borrower == null ? " (run with -Dbank.pool.leakTrace=true to see where)" : ""));
+                        if (pc.borrower != null) {
+                            pc.borrower.printStackTrace(System.out);
+                        }
+                    }
+                }
+            }
+        }
+        for (PooledConnection pc : toClose) {
+            discard(pc);
+        }
+        fillToMinimum();
+    }
+
+    private void fillToMinimum() {
+        while (true) {
+            synchronized (this) {
+                if (closed || total >= minSize) {
+                    return;
+                }
+                total++;
+            }
+            try {
+                PooledConnection pc = new PooledConnection(openPhysical());
+                synchronized (this) {
+                    pc.lastUsed = System.currentTimeMillis();
+                    idle.addLast(pc);
+                    notifyAll();
+                }
+            } catch (SQLException e) {
+                synchronized (this) {
+                    total--;
+                }
+                return; // Database not reachable yet, try again on the next run
+            }
+        }
+    }
+
+    // Close all idle connections and stop handing out new ones
+    public void close() {
+        List<PooledConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        housekeeper.shutdownNow();
+        for (PooledConnection pc : toClose) {
+            discard(pc);
+        }
+    }
+
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public synchronized String stats() {
+        double avgWaitMs = borrows == 0 ? 0 : totalWaitNanos / 1e6 / borrows;
+        return String.format("active=%d idle=%d total=%d borrows=%d avgWait=%.3fms maxWait=%.3fms "
+                + "timeouts=%d created=%d evicted=%d validationFailures=%d leaks=%d "
+                + "statementHits=%d statementMisses=%d",
+                active.size(), idle.size(), total, borrows, avgWaitMs, maxWaitNanos / 1e6,
+                timeouts, created, evicted, validationFailures, leaksDetected, statementHits, statementMisses);
+    }
+
+    // A prepared statement for the SQL, from the connection's cache when there is a free one.
+    // Only the borrowing thread uses the connection, so the cache needs no locking.
+    private PreparedStatement prepare(PooledConnection pc, String sql) throws SQLException {
+        if (statementCacheSize == 0) {
+            return pc.physical.prepareStatement(sql);
+        }
+        CachedStatement cached = pc.statements.get(sql);
+        if (cached != null && cached.evicted) {
+            pc.statements.remove(sql); // closed after a failed reset
+            cached = null;
+        }
+        if (cached != null && cached.inUse) {
+            // The same SQL twice at once, not cached; closed on release if the borrower does not
+            PreparedStatement stmt = pc.physical.prepareStatement(sql);
+            pc.uncached.add(stmt);
+            return stmt;
+        }
+        synchronized (this) {
+            if (cached != null) {
+                statementHits++;
+            } else {
+                statementMisses++;
+            }
+        }
+        if (cached == null) {
+            cached = new CachedStatement(pc.physical.prepareStatement(sql));
+            pc.statements.put(sql, cached);
+        }
+        cached.inUse = true;
+        return cached.newHandle();
+    }
+
+    // A physical connection owned by the pool
+    private class PooledConnection {
+        final Connection physical;
+        long lastUsed = System.currentTimeMillis();
+        long borrowedAt;
+        Exception borrower;
+        boolean leakReported;
+        // Evicted from the cache while borrowed; closed by the borrower or on release
+        final List<CachedStatement> evictedInUse = new ArrayList<>();
+        // Opened outside the cache during the current borrow
+        final List<PreparedStatement> uncached = new ArrayList<>();
+        // Prepared statements by SQL, least recently used first
+        final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                if (!eldest.getValue().inUse) {
+                    eldest.getValue().closeQuietly();
+                } else {
+                    eldest.getValue().evicted = true; // closed when the borrower is done with it
+                    evictedInUse.add(eldest.getValue());
+                }
+                return true;
+            }
+        };
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        // Each borrow gets its own proxy so a stale handle cannot close someone else's checkout
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new Handle(this));
+        }
+    }
+
+    private class Handle implements InvocationHandler {
+        private final PooledConnection pc;
+        private boolean released;
+
+        Handle(PooledConnection pc) {
+            this.pc = pc;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        release(pc);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || pc.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pc.physical + "]";
+                default:
+                    if (released) {
+                        throw new SQLException("Connection has been returned to the pool");
+                    }
+                    if (method.getName().equals("prepareStatement") && args.length == 1) {
+                        return prepare(pc, (String) args[0]);
+                    }
+                    try {
+                        return method.invoke(pc.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+
+    // A physical prepared statement kept open in a connection's cache
+    private static class CachedStatement {
+        final PreparedStatement physical;
+        boolean inUse;
+        boolean evicted;
+        int checkouts; // a handle from an earlier checkout no longer controls the statement
+
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        PreparedStatement newHandle() {
+            checkouts++;
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, new StatementHandle(this, checkouts));
+        }
+
+        // Ready the statement for the next caller, keeping the driver's parameter buffers
+        void reset() {
+            try {
+                if (evicted) {
+                    physical.close();
+                } else {
+                    ResultSet rs = physical.getResultSet();
+                    if (rs != null) {
+                        rs.close();
+                    }
+                    physical.clearParameters();
+                    physical.clearBatch();
+                }
+            } catch (SQLException e) {
+                evicted = true;
+                closeQuietly();
+            }
+            inUse = false;
+        }
+
+        void closeQuietly() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                // Statement is already unusable
+            }
+        }
+    }
+
+    private static class StatementHandle implements InvocationHandler {
+        private final CachedStatement cached;
+        private final int checkout;
+        private boolean closed;
+
+        StatementHandle(CachedStatement cached, int checkout) {
+            this.cached = cached;
+            this.checkout = checkout;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            boolean current = !closed && cached.inUse && cached.checkouts == checkout;
+            switch (method.getName()) {
+                case "close":
+                    if (current) {
+                        cached.reset();
+                    }
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return !current || cached.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    if (!current) {
+                        throw new SQLException("Statement is closed");
+                    }
+                    try {
+                        return method.invoke(cached.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
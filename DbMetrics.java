@@ -0,0 +1,240 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+// Statement-level JDBC instrumentation.
+// Connections returned by instrument() time connection acquisition, statement
+// prepare and every execute call, keyed by the SQL text. Each key keeps a latency
+// histogram and an error count. The report is available through JMX
+// (bank:type=DbMetrics), on demand via getReport(), and optionally as a text file
+// rewritten periodically.
+class DbMetrics implements DbMetricsMBean {
+    static final String ACQUIRE = "connection.acquire";
+    private static final int MAX_KEY_LENGTH = 120;
+
+    static final DbMetrics INSTANCE = new DbMetrics();
+
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+    // SQL text -> metric key, so the hot path does not rebuild keys for the same SQL
+    private final ConcurrentHashMap<String, String> prepareKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> executeKeys = new ConcurrentHashMap<>();
+    private volatile boolean enabled = true;
+
+    static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private DbMetrics() {
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Record one call; startNanos comes from System.nanoTime() before the call
+    public void record(String key, long startNanos, boolean failed) {
+        Stats s = stats.get(key);
+        if (s == null) {
+            s = stats.computeIfAbsent(key, k -> new Stats());
+        }
+        s.latency.record(System.nanoTime() - startNanos);
+        if (failed) {
+            s.errors.increment();
+        }
+    }
+
+    // Wrap a connection so its statements are timed
+    public Connection instrument(Connection conn) {
+        if (!enabled) {
+            return conn;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new ConnectionHandler(conn));
+    }
+
+    private static String keyFor(ConcurrentHashMap<String, String> cache, String prefix, String sql) {
+        String key = cache.get(sql);
+        if (key == null) {
+            key = keyFor(prefix, sql);
+            if (cache.size() < 10000) {
+                cache.put(sql, key);
+            }
+        }
+        return key;
+    }
+
+    private static String keyFor(String prefix, Object sql) {
+        String text = String.valueOf(sql).replaceAll("\\s+", " ").trim();
+        if (text.length() > MAX_KEY_LENGTH) {
+            text = text.substring(0, MAX_KEY_LENGTH) + "...";
+        }
+        return prefix + text;
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+        private final Connection target;
+
+        ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            boolean prepare = name.equals("prepareStatement") || name.equals("prepareCall");
+            if (!prepare && !name.equals("createStatement")) {
+                return call(target, method, args);
+            }
+
+            String sql = prepare ? (String) args[0] : null;
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Statement stmt = (Statement) call(target, method, args);
+                failed = false;
+                Class<?> type = method.getReturnType();
+                return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                        new StatementHandler(stmt, sql));
+            } finally {
+                if (prepare) {
+                    record(keyFor(prepareKeys, "prepare: ", sql), start, failed);
+                }
+            }
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final Statement target;
+        private final String preparedKey;
+        private final String preparedBatchKey;
+        private String batchKey; // plain statements: SQL of the first addBatch call
+
+        StatementHandler(Statement target, String sql) {
+            this.target = target;
+            this.preparedKey = sql == null ? null : keyFor(executeKeys, "execute: ", sql);
+            this.preparedBatchKey = sql == null ? null : "batch " + preparedKey;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("addBatch") && preparedKey == null && args != null && batchKey == null) {
+                batchKey = keyFor("execute batch: ", args[0]);
+            }
+            if (!name.startsWith("execute")) {
+                return call(target, method, args);
+            }
+
+            String key;
+            if (preparedKey != null) {
+                key = name.equals("executeBatch") ? preparedBatchKey : preparedKey;
+            } else if (args != null && args.length > 0) {
+                key = keyFor(executeKeys, "execute: ", (String) args[0]);
+            } else {
+                key = batchKey != null ? batchKey : "execute batch";
+                batchKey = null;
+            }
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Object result = call(target, method, args);
+                failed = false;
+                return result;
+            } finally {
+                record(key, start, failed);
+            }
+        }
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Register with the platform MBean server
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("bank:type=DbMetrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            System.out.println("Could not register JMX metrics: " + e.getMessage());
+        }
+    }
+
+    // Rewrite the report file every intervalSeconds in a background thread
+    public void startDump(Path file, long intervalSeconds) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleWithFixedDelay(() -> {
+            try {
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.write(tmp, getReport().getBytes());
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.out.println("Error writing metrics: " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-10s %-8s %-8s %-10s %-10s %-10s %-10s %-10s  %s%n",
+                "calls", "errors", "err%", "mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "max(us)", "statement"));
+        List<String> keys = new ArrayList<>(stats.keySet());
+        Collections.sort(keys);
+        for (String key : keys) {
+            Stats s = stats.get(key);
+            long calls = s.latency.getCount();
+            long errors = s.errors.sum();
+            sb.append(String.format("%-10d %-8d %-8.2f %-10.1f %-10.1f %-10.1f %-10.1f %-10.1f  %s%n",
+                    calls, errors, calls == 0 ? 0 : 100.0 * errors / calls,
+                    s.latency.getMean() / 1e3, s.latency.getPercentile(50) / 1e3,
+                    s.latency.getPercentile(99) / 1e3, s.latency.getPercentile(99.9) / 1e3,
+                    s.latency.getMax() / 1e3, key));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public long getTotalCalls() {
+        long total = 0;
+        for (Stats s : stats.values()) {
+            total += s.latency.getCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalErrors() {
+        long total = 0;
+        for (Stats s : stats.values()) {
+            total += s.errors.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public void reset() {
+        stats.clear();
+    }
+}
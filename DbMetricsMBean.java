@@ -0,0 +1,10 @@
+// JMX view of the JDBC statement metrics, registered as bank:type=DbMetrics
+public interface DbMetricsMBean {
+    String getReport();
+
+    long getTotalCalls();
+
+    long getTotalErrors();
+
+    void reset();
+}
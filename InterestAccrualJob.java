@@ -0,0 +1,271 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// End-of-day interest accrual over every savings account.
+// Accounts are processed in chunks of consecutive account numbers, several chunks
+// in parallel. Pending balance updates are flushed once, before the first chunk. For
+// each chunk the job locks the chunk's accounts, then credits the interest with one
+// batched relative UPDATE and records the chunk in interest_runs in the same
+// transaction. If one of the accounts has changed since the flush, its balance is
+// still in the balance writer: the locks are released, the writer is flushed and the
+// chunk is tried again, so no flush runs while account locks are held. A run that fails
+// midway can be started again with the same run id and skips completed chunks.
+// With several shards the chunks are cut per shard and each shard keeps the
+// checkpoints of its own chunks.
+class InterestAccrualJob {
+    private static final String CREATE_RUNS_SQL = "CREATE TABLE IF NOT EXISTS interest_runs (" +
+            "run_id VARCHAR(32) NOT NULL, " +
+            "chunk_start INT NOT NULL, " +
+            "chunk_end INT NOT NULL, " +
+            "accounts INT NOT NULL, " +
+            "interest BIGINT NOT NULL, " +
+            "PRIMARY KEY (run_id, chunk_start))";
+    private static final String CREDIT_SQL =
+            "UPDATE accounts SET balance = balance + ?, version = version + 1 WHERE account_number = ?";
+    private static final String CHECKPOINT_SQL =
+            "INSERT INTO interest_runs (run_id, chunk_start, chunk_end, accounts, interest) VALUES (?, ?, ?, ?, ?)";
+
+    // Flushes a chunk may need before its accounts have no balance waiting in the writer
+    private static final int MAX_FLUSHES = 10;
+
+    private final String runId;
+    private final int chunkSize;
+    private final int parallelism;
+    private final int periodsPerYear;
+
+    private final AtomicLong accountsCredited = new AtomicLong();
+    private final AtomicLong interestPosted = new AtomicLong();
+    private final AtomicInteger chunksDone = new AtomicInteger();
+
+    public InterestAccrualJob(String runId, int chunkSize, int parallelism, int periodsPerYear) {
+        this.runId = runId;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.parallelism = Math.max(1, parallelism);
+        this.periodsPerYear = Math.max(1, periodsPerYear);
+    }
+
+    static void createTable(Statement stmt) throws SQLException {
+        stmt.executeUpdate(CREATE_RUNS_SQL);
+    }
+
+    // Run the accrual over the given accounts; only savings accounts are credited
+    public void run(BankAccount[] accounts) throws SQLException, InterruptedException {
+        ShardRouter router = BankingApp.shards;
+        if (router.isRebalancing()) {
+            throw new SQLException("A shard is being added; run the interest accrual once it has finished");
+        }
+        long start = System.nanoTime();
+        // Once per run and outside any account lock: the credit is relative to the balances in the database
+        flushBalances();
+        List<ShardRouter.Shard> shards = router.shards();
+        List<List<int[]>> completed = new ArrayList<>();
+        int completedChunks = 0;
+        for (ShardRouter.Shard shard : shards) {
+            completed.add(completedRanges(shard));
+            completedChunks += completed.get(shard.id).size();
+        }
+
+        // Sort the savings accounts and drop those already covered by a completed chunk
+        SavingsAccount[] savings = Arrays.stream(accounts)
+                .parallel()
+                .filter(a -> a instanceof SavingsAccount)
+                .filter(a -> !covered(completed.get(router.shardFor(a.getAccountNumber()).id), a.getAccountNumber()))
+                .sorted(Comparator.comparingInt(BankAccount::getAccountNumber))
+                .toArray(SavingsAccount[]::new);
+        if (completedChunks > 0) {
+            System.out.println("Resuming interest run " + runId + ": " + completedChunks
+                    + " chunks already done, " + savings.length + " accounts left.");
+        }
+
+        List<List<SavingsAccount>> byShard = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (SavingsAccount account : savings) {
+            byShard.get(router.shardFor(account.getAccountNumber()).id).add(account);
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        List<Future<?>> results = new ArrayList<>();
+        for (ShardRouter.Shard shard : shards) {
+            SavingsAccount[] shardAccounts = byShard.get(shard.id).toArray(new SavingsAccount[0]);
+            for (int from = 0; from < shardAccounts.length; from += chunkSize) {
+                SavingsAccount[] chunk = Arrays.copyOfRange(shardAccounts, from,
+                        Math.min(from + chunkSize, shardAccounts.length));
+                results.add(workers.submit(() -> {
+                    processChunk(shard, chunk);
+                    return null;
+                }));
+            }
+        }
+        workers.shutdown();
+
+        SQLException failure = null;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                            : new SQLException("Interest chunk failed: " + e.getCause(), e.getCause());
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Interest run %s: %d chunks, %d accounts credited, %s interest posted in %.2f s (%.0f accounts/sec)%n",
+                runId, chunksDone.get(), accountsCredited.get(), Money.format(interestPosted.get()), seconds,
+                seconds > 0 ? accountsCredited.get() / seconds : 0);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void processChunk(ShardRouter.Shard shard, SavingsAccount[] chunk) throws Exception {
+        int[] accNos = new int[chunk.length];
+        for (int i = 0; i < chunk.length; i++) {
+            accNos[i] = chunk[i].getAccountNumber();
+        }
+
+        BalanceWriter writer = BankingApp.balanceWriter;
+        for (int flushes = 0; ; flushes++) {
+            Exception[] error = new Exception[1];
+            boolean[] posted = new boolean[1];
+            // Hold the chunk's locks so no deposit or withdrawal can interleave with the posting
+            BankingApp.engine.withAccountsLocked(accNos, () -> {
+                if (writer != null && writer.hasPending(accNos)) {
+                    return; // the database does not hold the latest balance yet
+                }
+                posted[0] = true;
+                try {
+                    postChunk(shard, chunk);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            if (posted[0]) {
+                return;
+            }
+            if (flushes == MAX_FLUSHES) {
+                throw new SQLException("Accounts " + accNos[0] + " to " + accNos[accNos.length - 1]
+                        + " kept changing during the interest run; run it again to resume");
+            }
+            flushBalances();
+        }
+    }
+
+    private static void flushBalances() throws SQLException {
+        if (BankingApp.balanceWriter == null) {
+            return;
+        }
+        try {
+            BankingApp.balanceWriter.flush();
+        } catch (java.io.IOException e) {
+            throw new SQLException("Error flushing balances: " + e.getMessage(), e);
+        }
+    }
+
+    // Called with the chunk's accounts locked and none of their balances waiting in the writer
+    private void postChunk(ShardRouter.Shard shard, SavingsAccount[] chunk) throws Exception {
+        long[] interest = new long[chunk.length];
+        long total = 0;
+        int credited = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            interest[i] = chunk[i].interestFor(periodsPerYear);
+            if (interest[i] > 0) {
+                total += interest[i];
+                credited++;
+            }
+        }
+
+        try (Connection conn = BankingApp.getConnection(shard)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement credit = conn.prepareStatement(CREDIT_SQL);
+                    PreparedStatement checkpoint = conn.prepareStatement(CHECKPOINT_SQL)) {
+                for (int i = 0; i < chunk.length; i++) {
+                    if (interest[i] > 0) {
+                        credit.setLong(1, interest[i]);
+                        credit.setInt(2, chunk[i].getAccountNumber());
+                        credit.addBatch();
+                    }
+                }
+                credit.executeBatch();
+
+                checkpoint.setString(1, runId);
+                checkpoint.setInt(2, chunk[0].getAccountNumber());
+                checkpoint.setInt(3, chunk[chunk.length - 1].getAccountNumber());
+                checkpoint.setInt(4, credited);
+                checkpoint.setLong(5, total);
+                checkpoint.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+
+        // Committed, now apply the same amounts in memory
+        for (int i = 0; i < chunk.length; i++) {
+            if (interest[i] > 0) {
+                chunk[i].postInterest(interest[i]);
+                chunk[i].markCredited(interest[i]);
+                BankingApp.recordInLedger(chunk[i].getAccountNumber(), Ledger.INTEREST, interest[i],
+                        chunk[i].getBalance());
+                BankingApp.audit(Ledger.INTEREST, chunk[i].getAccountNumber(), interest[i], chunk[i].getBalance());
+            }
+        }
+        accountsCredited.addAndGet(credited);
+        interestPosted.addAndGet(total);
+        chunksDone.incrementAndGet();
+    }
+
+    private List<int[]> completedRanges(ShardRouter.Shard shard) throws SQLException {
+        List<int[]> ranges = new ArrayList<>();
+        try (Connection conn = BankingApp.getConnection(shard);
+                PreparedStatement pstmt = conn.prepareStatement(
+                        "SELECT chunk_start, chunk_end FROM interest_runs WHERE run_id = ?")) {
+            pstmt.setString(1, runId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ranges.add(new int[] { rs.getInt(1), rs.getInt(2) });
+                }
+            }
+        }
+        ranges.sort(Comparator.comparingInt(r -> r[0]));
+
+        // Chunks of a resumed run can span earlier ones, merge them into disjoint ranges
+        List<int[]> merged = new ArrayList<>();
+        for (int[] range : ranges) {
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    // The ranges are sorted and disjoint, so a binary search on the start is enough
+    private static boolean covered(List<int[]> ranges, int accNo) {
+        int lo = 0;
+        int hi = ranges.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int[] range = ranges.get(mid);
+            if (accNo < range[0]) {
+                hi = mid - 1;
+            } else if (accNo > range[1]) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
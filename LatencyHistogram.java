@@ -0,0 +1,85 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free latency histogram with log-linear buckets (like HdrHistogram with
+// about 3% precision). Values are nanoseconds. Each power of two is split into
+// 32 sub-buckets, so recording is one array increment and percentiles are read
+// by walking the counts.
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray totals = new AtomicLongArray(3); // count, sum, max
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        totals.incrementAndGet(0);
+        totals.addAndGet(1, nanos);
+        long max;
+        while (nanos > (max = totals.get(2)) && !totals.compareAndSet(2, max, nanos)) {
+            // retry until the max is updated or someone recorded a larger value
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> exponent) - SUB_COUNT;
+        return SUB_COUNT + exponent * SUB_COUNT + sub;
+    }
+
+    // Highest value that falls into the bucket
+    private static long valueOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = (index - SUB_COUNT) / SUB_COUNT;
+        int sub = (index - SUB_COUNT) % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub) << exponent) + (1L << exponent) - 1;
+    }
+
+    public long getCount() {
+        return totals.get(0);
+    }
+
+    public long getMax() {
+        return totals.get(2);
+    }
+
+    public double getMean() {
+        long count = totals.get(0);
+        return count == 0 ? 0 : (double) totals.get(1) / count;
+    }
+
+    // Value at the given percentile (0-100), in nanoseconds
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(valueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            totals.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+// Append-only transaction ledger.
+// Every balance change is written as a fixed-width binary record into memory-mapped
+// segment files. A segment is pre-sized; when it is full the ledger rolls over to a
+// new file named after the first sequence number it holds. Each record ends with a
+// CRC so a record torn by a crash is detected and skipped.
+// Appends do not take a lock: a thread reserves the next slot of the current segment
+// with one atomic increment of the segment's write offset, and the slot gives the
+// record's sequence number, so concurrent appends write disjoint slots. Only a thread
+// that finds the segment full takes the monitor, to map the next one. Records of one account are appended under
+// that account's stripe lock, so they still follow the account's order of changes.
+// A crash can therefore leave unfinished slots in front of records that were finished
+// later. Opening the ledger zeroes such slots in the last two segments (a crash can catch
+// appends on both sides of a rollover) and continues after the highest valid record, so
+// nothing finished is overwritten. Replay skips every slot that does not hold a valid
+// record, in every segment, and goes on with the records after it; the sequence numbers
+// of the lost slots are never reused.
+class Ledger {
+    static final short DEPOSIT = 1;
+    static final short WITHDRAWAL = 2;
+    static final short TRANSFER_IN = 3;
+    static final short TRANSFER_OUT = 4;
+    static final short INTEREST = 5;
+    static final short LOAN_DISBURSEMENT = 6;
+    static final short LOAN_REPAYMENT = 7;
+
+    // Record layout: sequence, timestamp, amount, balance after, account number, type, reserved, crc
+    static final int RECORD_SIZE = 48;
+    private static final int OFF_SEQ = 0;
+    private static final int OFF_TIME = 8;
+    private static final int OFF_AMOUNT = 16;
+    private static final int OFF_BALANCE = 24;
+    private static final int OFF_ACCOUNT = 32;
+    private static final int OFF_TYPE = 36;
+    private static final int OFF_CRC = 44;
+
+    private static final String SEGMENT_PREFIX = "ledger-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    interface RecordHandler {
+        void record(long sequence, long timestamp, int accountNumber, short type, long amount, long balanceAfter);
+    }
+
+    // A mapped segment file; slot i holds the record with sequence number first + i
+    private static final class Segment {
+        final MappedByteBuffer buf;
+        final long first;
+        final int slots;
+        final AtomicInteger reserved; // slots handed out, may overshoot slots when full
+
+        Segment(MappedByteBuffer buf, long first, int used) {
+            this.buf = buf;
+            this.first = first;
+            this.slots = buf.capacity() / RECORD_SIZE;
+            this.reserved = new AtomicInteger(used);
+        }
+
+        long end() {
+            return first + slots;
+        }
+    }
+
+    // Each appending thread builds its record here before copying it into the segment
+    private static final class Staging {
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final CRC32 crc = new CRC32();
+    }
+
+    private static final ThreadLocal<Staging> STAGING = ThreadLocal.withInitial(Staging::new);
+
+    private final Path dir;
+    private final int segmentSize;
+    private volatile Segment segment;
+    private Segment previous; // may still be receiving records reserved before the rollover
+
+    public Ledger(Path dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize - segmentSize % RECORD_SIZE;
+        if (this.segmentSize < RECORD_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        Files.createDirectories(dir);
+
+        List<Path> segments = segments();
+        if (segments.isEmpty()) {
+            segment = openSegment(1);
+        } else {
+            // Continue after the highest valid record of the newest segment
+            if (segments.size() > 1) {
+                Path before = segments.get(segments.size() - 2);
+                repair(map(before, (int) Files.size(before)));
+            }
+            Path last = segments.get(segments.size() - 1);
+            MappedByteBuffer buf = map(last, Math.max(this.segmentSize, (int) Files.size(last)));
+            segment = new Segment(buf, firstSequence(last), repair(buf));
+        }
+    }
+
+    // Zero every slot that holds neither a valid record nor nothing at all, so a torn record
+    // cannot be mistaken for data later; returns the number of slots up to the highest valid record
+    private static int repair(MappedByteBuffer buf) {
+        ByteBuffer view = buf.duplicate();
+        CRC32 check = new CRC32();
+        byte[] zeros = new byte[RECORD_SIZE];
+        int used = 0;
+        boolean zeroed = false;
+        for (int slot = 0; (slot + 1) * RECORD_SIZE <= buf.capacity(); slot++) {
+            int p = slot * RECORD_SIZE;
+            if (isValid(buf, view, check, p)) {
+                used = slot + 1;
+            } else if (!isEmpty(buf, p)) {
+                buf.put(p, zeros, 0, RECORD_SIZE);
+                zeroed = true;
+            }
+        }
+        if (zeroed) {
+            buf.force();
+        }
+        return used;
+    }
+
+    private static boolean isEmpty(MappedByteBuffer buf, int p) {
+        for (int i = 0; i < RECORD_SIZE; i += 4) {
+            if (buf.getInt(p + i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Append one record; returns its sequence number. Does not allocate after a thread's first append.
+    public long append(int accountNumber, short type, long amount, long balanceAfter) throws IOException {
+        Segment target = segment;
+        int slot = target.reserved.getAndIncrement();
+        while (slot >= target.slots) {
+            target = next(target);
+            slot = target.reserved.getAndIncrement();
+        }
+        long seq = target.first + slot;
+
+        Staging staging = STAGING.get();
+        ByteBuffer record = staging.record;
+        record.putLong(OFF_SEQ, seq);
+        record.putLong(OFF_TIME, System.currentTimeMillis());
+        record.putLong(OFF_AMOUNT, amount);
+        record.putLong(OFF_BALANCE, balanceAfter);
+        record.putInt(OFF_ACCOUNT, accountNumber);
+        record.putShort(OFF_TYPE, type);
+        CRC32 crc = staging.crc;
+        crc.reset();
+        crc.update(record.array(), 0, OFF_CRC);
+        record.putInt(OFF_CRC, (int) crc.getValue());
+        // Absolute bulk put: the buffer's position is not shared state
+        target.buf.put(slot * RECORD_SIZE, record.array(), 0, RECORD_SIZE);
+        return seq;
+    }
+
+    // Slow path: the segment is full; map the next one unless another thread already has
+    private synchronized Segment next(Segment full) throws IOException {
+        if (segment == full) {
+            full.buf.force();
+            previous = full;
+            segment = openSegment(full.end());
+        }
+        return segment;
+    }
+
+    private static boolean isValid(MappedByteBuffer buf, ByteBuffer view, CRC32 check, int p) {
+        if (buf.getLong(p + OFF_SEQ) == 0) {
+            return false;
+        }
+        check.reset();
+        view.limit(p + OFF_CRC).position(p);
+        check.update(view);
+        return buf.getInt(p + OFF_CRC) == (int) check.getValue();
+    }
+
+    // Force written records to disk
+    public synchronized void sync() {
+        if (previous != null) {
+            previous.buf.force();
+        }
+        segment.buf.force();
+    }
+
+    // Last sequence number handed out; its record may still be being written
+    public long lastSequence() {
+        Segment current = segment;
+        return current.first + Math.min(current.reserved.get(), current.slots) - 1;
+    }
+
+    // Read every valid record in order, returns the number of records read. Empty and
+    // invalid slots are skipped wherever they are: after a crash they are the gaps zeroed
+    // on open, while the ledger is in use they are records still being written.
+    public long replay(RecordHandler handler) throws IOException {
+        List<Path> segments;
+        synchronized (this) {
+            sync();
+            segments = segments();
+        }
+        // Replay uses its own CRC and buffer view so it can run while other threads append
+        CRC32 check = new CRC32();
+        long count = 0;
+        for (Path path : segments) {
+            MappedByteBuffer buf = map(path, (int) Files.size(path));
+            ByteBuffer view = buf.duplicate();
+            for (int p = 0; p + RECORD_SIZE <= buf.capacity(); p += RECORD_SIZE) {
+                if (!isValid(buf, view, check, p)) {
+                    continue; // a gap, the unused end of the segment, or a record not yet finished
+                }
+                handler.record(buf.getLong(p + OFF_SEQ), buf.getLong(p + OFF_TIME), buf.getInt(p + OFF_ACCOUNT),
+                        buf.getShort(p + OFF_TYPE), buf.getLong(p + OFF_AMOUNT), buf.getLong(p + OFF_BALANCE));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Segment openSegment(long firstSequence) throws IOException {
+        Path path = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        return new Segment(map(path, segmentSize), firstSequence, 0);
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return buf;
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                result.add(path);
+            }
+        }
+        result.sort(Comparator.comparingLong(Ledger::firstSequence));
+        return result;
+    }
+
+    private static long firstSequence(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    public synchronized void close() {
+        sync();
+    }
+}
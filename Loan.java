@@ -0,0 +1,78 @@
+// A loan linked to an account, repaid in equal monthly installments (annuity).
+// Amounts are in cents, the yearly rate in basis points. Interest for a month is
+// charged on the outstanding amount; a missed payment adds that month's interest
+// to the outstanding amount and moves the remaining installments one month back.
+// The last installment pays whatever is left, so rounding never leaves a remainder.
+class Loan {
+    static final byte ACTIVE = 0;
+    static final byte PAID = 1;
+
+    final long id;
+    final int accountNumber;
+    final long principal;
+    final int rateBp;
+    final int termMonths;
+    final long payment;
+
+    // Repayment state, changed under the linked account's lock
+    long outstanding;
+    int paymentsMade;
+    int paymentsMissed;
+    byte status;
+
+    Loan(long id, int accountNumber, long principal, int rateBp, int termMonths, long payment) {
+        this.id = id;
+        this.accountNumber = accountNumber;
+        this.principal = principal;
+        this.rateBp = rateBp;
+        this.termMonths = termMonths;
+        this.payment = payment;
+        this.outstanding = principal;
+    }
+
+    // Loan ids carry the account number, so the loans of an account sort together
+    static long idFor(int accountNumber, int sequence) {
+        return (long) accountNumber << 20 | sequence;
+    }
+
+    // Fixed monthly installment, rounded to the cent; the last installment settles the difference
+    static long monthlyPayment(long principal, int rateBp, int termMonths) {
+        if (rateBp == 0) {
+            return (principal + termMonths - 1) / termMonths;
+        }
+        double r = rateBp / 120000.0;
+        return Math.max(1, Math.round(principal * r / (1 - Math.pow(1 + r, -termMonths))));
+    }
+
+    // Interest for one month on an outstanding amount, rounded half up
+    static long monthlyInterest(long outstanding, int rateBp) {
+        return Math.floorDiv(Math.multiplyExact(outstanding, (long) rateBp) + 60000, 120000);
+    }
+
+    // Installment due when the given amount is outstanding and paymentsMade installments are paid
+    long dueAt(long outstanding, int paymentsMade) {
+        long total = Math.addExact(outstanding, monthlyInterest(outstanding, rateBp));
+        return paymentsMade >= termMonths - 1 || total <= payment ? total : payment;
+    }
+
+    long dueNow() {
+        return dueAt(outstanding, paymentsMade);
+    }
+
+    boolean isActive() {
+        return status == ACTIVE;
+    }
+
+    // Remaining installments from the current state, computed as they are iterated
+    AmortizationSchedule schedule() {
+        return new AmortizationSchedule(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Loan %d (account %d): principal %s at %.2f%% over %d months, installment %s, "
+                + "outstanding %s, %d paid, %d missed%s", id, accountNumber, Money.format(principal),
+                rateBp / 100.0, termMonths, Money.format(payment), Money.format(outstanding), paymentsMade,
+                paymentsMissed, status == PAID ? ", paid off" : "");
+    }
+}
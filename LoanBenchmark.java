@@ -0,0 +1,114 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Loan math and a portfolio of 1M active loans in memory: installment and schedule
+// computation, the portfolio projection (sequential and parallel) and one month of
+// repayments planned and applied in parallel chunks under the account locks, as the
+// repayment job does minus the database round trips.
+// Run: java -Xmx1g LoanBenchmark [loans]
+class LoanBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int ops = Integer.getInteger("bench.ops", 1_000_000);
+        int chunkSize = Integer.getInteger("bank.loan.chunkSize", 500);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+
+        Loan mortgage = new Loan(1, 1, 250_000 * Money.CENTS_PER_UNIT, 650, 360,
+                Loan.monthlyPayment(250_000 * Money.CENTS_PER_UNIT, 650, 360));
+        Bench.run("Loan.monthlyPayment", ops, i -> Loan.monthlyPayment(100_000 + i, 800, 12 + (i & 255)));
+        Bench.run("Loan.dueAt", ops, i -> mortgage.dueAt(mortgage.principal - i, i % 360));
+        Bench.run("AmortizationSchedule iterate (360 months)", ops / 1000, i -> {
+            long paid = 0;
+            for (AmortizationSchedule.Installment row : mortgage.schedule()) {
+                paid += row.payment;
+            }
+            return paid;
+        });
+        long[] months = new long[360];
+        Bench.run("AmortizationSchedule.addCollections (360 months)", ops / 1000, i -> {
+            AmortizationSchedule.addCollections(mortgage, months);
+            return months[0];
+        });
+
+        // Four loans per account, on savings and current accounts
+        int accountCount = Math.max(1, count / 4);
+        for (int i = 0; i < accountCount; i++) {
+            BankingApp.accounts.add(i % 2 == 0
+                    ? new SavingsAccount(i, "Customer " + i, 2_000_000, "c" + i + "@mail.example.com")
+                    : new CurrentAccount(i, "Customer " + i, 2_000_000, "c" + i + "@mail.example.com"));
+        }
+        Random random = new Random(42);
+        LoanBook book = new LoanBook();
+        for (int i = 0; i < count; i++) {
+            int accNo = i % accountCount;
+            long principal = (1_000 + random.nextInt(50_000)) * Money.CENTS_PER_UNIT;
+            int term = 12 * (1 + random.nextInt(30));
+            int rateBp = 300 + random.nextInt(1500);
+            book.add(new Loan(Loan.idFor(accNo, i / accountCount + 1), accNo, principal, rateBp, term,
+                    Loan.monthlyPayment(principal, rateBp, term)));
+        }
+        Loan[] loans = book.snapshot();
+        Arrays.sort(loans, Comparator.comparingLong(loan -> loan.id));
+        System.out.printf("%n%d loans on %d accounts%n", loans.length, accountCount);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long[] collected = new long[12];
+            for (Loan loan : loans) {
+                AmortizationSchedule.addCollections(loan, collected);
+            }
+            report("projection, 12 months, sequential", start, loans.length);
+
+            start = System.nanoTime();
+            book.projectedCollections(12);
+            report("projection, 12 months, parallel", start, loans.length);
+        }
+
+        // Repayment months; as balances run down some accounts cannot cover their installments
+        for (int month = 0; month < 3; month++) {
+            long start = System.nanoTime();
+            ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+            List<Future<LoanRepaymentJob.Plan>> results = new ArrayList<>();
+            for (int from = 0; from < loans.length; from += chunkSize) {
+                Loan[] chunk = Arrays.copyOfRange(loans, from, Math.min(from + chunkSize, loans.length));
+                results.add(workers.submit(() -> repay(chunk)));
+            }
+            workers.shutdown();
+            long payments = 0;
+            long missed = 0;
+            for (Future<LoanRepaymentJob.Plan> result : results) {
+                payments += result.get().payments;
+                missed += result.get().missed;
+            }
+            report("repayment month " + (month + 1) + " (" + payments + " paid, " + missed + " missed)", start,
+                    loans.length);
+        }
+        System.exit(0);
+    }
+
+    private static LoanRepaymentJob.Plan repay(Loan[] chunk) throws Exception {
+        int[] accNos = new int[chunk.length];
+        for (int i = 0; i < chunk.length; i++) {
+            accNos[i] = chunk[i].accountNumber;
+        }
+        Object[] result = new Object[1];
+        BankingApp.engine.withAccountsLocked(accNos, () -> {
+            try {
+                LoanRepaymentJob.Plan plan = LoanRepaymentJob.plan(chunk);
+                LoanRepaymentJob.apply(plan);
+                result[0] = plan;
+            } catch (AccountNotFoundException e) {
+                result[0] = e;
+            }
+        });
+        if (result[0] instanceof Exception) {
+            throw (Exception) result[0];
+        }
+        return (LoanRepaymentJob.Plan) result[0];
+    }
+
+    private static void report(String name, long start, int loans) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-52s %8.0f ms %12.0f loans/s%n", name, seconds * 1e3, loans / seconds);
+    }
+}
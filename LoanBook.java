@@ -0,0 +1,243 @@
+import java.sql.*;
+import java.util.*;
+
+// All loans, kept in memory once loaded and persisted in the loans table of the shard
+// that holds the linked account. A new loan is saved and its principal credited to the
+// account in one transaction (a relative UPDATE, like the interest job), with the
+// account's lock held and no balance of it waiting in the writer. The writer is flushed
+// before the lock is taken, and again (with the lock released) if a balance slipped in.
+class LoanBook {
+    private static final String CREATE_LOANS_SQL = "CREATE TABLE IF NOT EXISTS loans (" +
+            "loan_id BIGINT PRIMARY KEY, " +
+            "account_number INT NOT NULL, " +
+            "principal BIGINT NOT NULL, " +
+            "rate_bp INT NOT NULL, " +
+            "term_months INT NOT NULL, " +
+            "payment BIGINT NOT NULL, " +
+            "outstanding BIGINT NOT NULL, " +
+            "payments_made INT NOT NULL DEFAULT 0, " +
+            "payments_missed INT NOT NULL DEFAULT 0, " +
+            "status TINYINT NOT NULL DEFAULT 0, " +
+            "INDEX idx_loans_account (account_number))";
+    static final String SELECT_COLUMNS = "SELECT loan_id, account_number, principal, rate_bp, term_months, " +
+            "payment, outstanding, payments_made, payments_missed, status FROM loans";
+    private static final String PAGE_SQL = SELECT_COLUMNS + " WHERE loan_id > ? ORDER BY loan_id LIMIT ?";
+    private static final String INSERT_SQL = "INSERT INTO loans (loan_id, account_number, principal, rate_bp, " +
+            "term_months, payment, outstanding) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String CREDIT_SQL =
+            "UPDATE accounts SET balance = balance + ?, version = version + 1 WHERE account_number = ?";
+
+    static final int MAX_TERM_MONTHS = 360;
+
+    // Flushes an application may need before the account has no balance waiting in the writer
+    private static final int MAX_FLUSHES = 10;
+
+    private final List<Loan> loans = new ArrayList<>();
+    private final Map<Integer, List<Loan>> byAccount = new HashMap<>();
+
+    static void createTable(Statement stmt) throws SQLException {
+        stmt.executeUpdate(CREATE_LOANS_SQL);
+    }
+
+    static Loan readLoan(ResultSet rs) throws SQLException {
+        Loan loan = new Loan(rs.getLong("loan_id"), rs.getInt("account_number"), rs.getLong("principal"),
+                rs.getInt("rate_bp"), rs.getInt("term_months"), rs.getLong("payment"));
+        loan.outstanding = rs.getLong("outstanding");
+        loan.paymentsMade = rs.getInt("payments_made");
+        loan.paymentsMissed = rs.getInt("payments_missed");
+        loan.status = rs.getByte("status");
+        return loan;
+    }
+
+    // Read every shard's loans with keyset pages on loan_id
+    public void loadAll(int pageSize) throws SQLException {
+        for (ShardRouter.Shard shard : BankingApp.shards.shards()) {
+            long after = Long.MIN_VALUE;
+            while (true) {
+                int rows = 0;
+                try (Connection conn = BankingApp.getConnection(shard);
+                        PreparedStatement pstmt = conn.prepareStatement(PAGE_SQL)) {
+                    pstmt.setFetchSize(pageSize);
+                    pstmt.setLong(1, after);
+                    pstmt.setInt(2, pageSize);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            Loan loan = readLoan(rs);
+                            add(loan);
+                            after = loan.id;
+                            rows++;
+                        }
+                    }
+                }
+                if (rows < pageSize) {
+                    break;
+                }
+            }
+        }
+    }
+
+    synchronized void add(Loan loan) {
+        loans.add(loan);
+        byAccount.computeIfAbsent(loan.accountNumber, k -> new ArrayList<>(1)).add(loan);
+    }
+
+    synchronized List<Loan> forAccount(int accountNumber) {
+        return new ArrayList<>(byAccount.getOrDefault(accountNumber, Collections.emptyList()));
+    }
+
+    synchronized Loan[] snapshot() {
+        return loans.toArray(new Loan[0]);
+    }
+
+    synchronized int size() {
+        return loans.size();
+    }
+
+    // Open a loan on the account and credit the principal to it
+    public Loan originate(BankAccount account, long principal, int termMonths)
+            throws InvalidAmountException, SQLException {
+        if (principal <= 0) {
+            throw new InvalidAmountException("Loan amount must be positive");
+        }
+        if (termMonths < 1 || termMonths > MAX_TERM_MONTHS) {
+            throw new InvalidAmountException("Loan term must be between 1 and " + MAX_TERM_MONTHS + " months");
+        }
+        if (BankingApp.shards.isRebalancing()) {
+            throw new SQLException("A shard is being added; apply for the loan once it has finished");
+        }
+
+        Object[] result = new Object[1];
+        int accNo = account.getAccountNumber();
+        int[] accNos = { accNo };
+        BalanceWriter writer = BankingApp.balanceWriter;
+        // The credit is relative to the row's balance, so pending updates go first, outside the lock
+        flushBalances();
+        for (int flushes = 0; ; flushes++) {
+            BankingApp.engine.withAccountLocked(accNo, () -> {
+                if (writer != null && writer.hasPending(accNos)) {
+                    return; // the database does not hold the latest balance yet
+                }
+                try {
+                    result[0] = originateLocked(account, principal, termMonths);
+                } catch (Exception e) {
+                    result[0] = e;
+                }
+            });
+            if (result[0] != null) {
+                break;
+            }
+            if (flushes == MAX_FLUSHES) {
+                throw new SQLException("Account " + accNo + " kept changing; apply for the loan again");
+            }
+            flushBalances();
+        }
+        if (result[0] instanceof InvalidAmountException) {
+            throw (InvalidAmountException) result[0];
+        }
+        if (result[0] instanceof SQLException) {
+            throw (SQLException) result[0];
+        }
+        if (result[0] instanceof Exception) {
+            throw new SQLException("Error saving loan: " + result[0], (Exception) result[0]);
+        }
+        return (Loan) result[0];
+    }
+
+    private static void flushBalances() throws SQLException {
+        if (BankingApp.balanceWriter == null) {
+            return;
+        }
+        try {
+            BankingApp.balanceWriter.flush();
+        } catch (java.io.IOException e) {
+            throw new SQLException("Error flushing balances: " + e.getMessage(), e);
+        }
+    }
+
+    // Called with the account locked and none of its balances waiting in the writer
+    private Loan originateLocked(BankAccount account, long principal, int termMonths) throws Exception {
+        int accNo = account.getAccountNumber();
+        if (BankingApp.cache != null) {
+            // With a bounded cache the object may have been replaced since the caller found it
+            account = BankingApp.findaccount(accNo);
+        }
+        List<Loan> existing = forAccount(accNo);
+        long owed = 0;
+        for (Loan loan : existing) {
+            owed += loan.isActive() ? loan.outstanding : 0;
+        }
+        long limit = loanLimit(account, owed);
+        if (principal > limit) {
+            throw new InvalidAmountException("Loan amount exceeds the limit for this account. Available: "
+                    + Money.format(Math.max(0, limit)));
+        }
+
+        int rateBp = account.loanRateBp();
+        Loan loan = new Loan(Loan.idFor(accNo, existing.size() + 1), accNo, principal, rateBp, termMonths,
+                Loan.monthlyPayment(principal, rateBp, termMonths));
+
+        try (Connection conn = BankingApp.getConnection(accNo)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement(INSERT_SQL);
+                    PreparedStatement credit = conn.prepareStatement(CREDIT_SQL)) {
+                insert.setLong(1, loan.id);
+                insert.setInt(2, accNo);
+                insert.setLong(3, principal);
+                insert.setInt(4, rateBp);
+                insert.setInt(5, termMonths);
+                insert.setLong(6, loan.payment);
+                insert.setLong(7, principal);
+                insert.executeUpdate();
+                credit.setLong(1, principal);
+                credit.setInt(2, accNo);
+                credit.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+
+        account.applyCommitted(principal);
+        BankingApp.storeAccount(account);
+        add(loan);
+        BankingApp.recordInLedger(accNo, Ledger.LOAN_DISBURSEMENT, principal, account.getBalance());
+        BankingApp.audit(Ledger.LOAN_DISBURSEMENT, accNo, principal, account.getBalance());
+        return loan;
+    }
+
+    // How much more the account may borrow while it owes this much. The limit is taken on
+    // the balance without the amount owed: the principal of a loan is credited to the same
+    // balance and must not raise the limit for the next one.
+    static long loanLimit(BankAccount account, long owed) {
+        return account.maxLoan(Math.subtractExact(account.getBalance(), owed)) - owed;
+    }
+
+    // Installments expected in each of the next months if every payment is made,
+    // computed loan by loan in parallel without building the schedules
+    public long[] projectedCollections(int months) {
+        Loan[] all = snapshot();
+        return Arrays.stream(all)
+                .parallel()
+                .filter(Loan::isActive)
+                .collect(() -> new long[months],
+                        (collected, loan) -> AmortizationSchedule.addCollections(loan, collected),
+                        (a, b) -> {
+                            for (int i = 0; i < a.length; i++) {
+                                a[i] += b[i];
+                            }
+                        });
+    }
+
+    public synchronized String stats() {
+        long active = 0;
+        long outstanding = 0;
+        for (Loan loan : loans) {
+            if (loan.isActive()) {
+                active++;
+                outstanding += loan.outstanding;
+            }
+        }
+        return String.format("loans=%d active=%d outstanding=%s", loans.size(), active, Money.format(outstanding));
+    }
+}
@@ -0,0 +1,44 @@
+// Checks that loan limits are taken on the account's own funds. Each approved loan
+// credits its principal to the balance; chained loans at the largest amount allowed
+// must never bring the total owed above the cap set by the balance before the first
+// loan. Runs without the database: the principal is credited with a plain deposit.
+// Run: java LoanCheck     (exit code 1 if a check fails)
+class LoanCheck {
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        checkChain("savings", new SavingsAccount(1, "Saver", 10_000, "saver@mail.example.com"), 50_000);
+        checkChain("current", new CurrentAccount(2, "Spender", 10_000, "spender@mail.example.com"), 30_000);
+
+        // The example from the review: balance 100, a loan of 400, then nothing above the cap of 500
+        SavingsAccount account = new SavingsAccount(3, "Second", 10_000, "second@mail.example.com");
+        account.deposit(40_000);
+        long limit = LoanBook.loanLimit(account, 40_000);
+        check("second loan limited to the rest of the cap (" + Money.format(limit) + ")", limit == 10_000);
+
+        System.out.println(failures == 0 ? "All loan checks passed." : failures + " loan check(s) failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // Take the largest loan allowed ten times over and compare the total owed with the cap
+    private static void checkChain(String name, BankAccount account, long cap) throws InvalidAmountException {
+        long owed = 0;
+        for (int i = 0; i < 10; i++) {
+            long limit = LoanBook.loanLimit(account, owed);
+            if (limit <= 0) {
+                break;
+            }
+            account.deposit(limit); // the principal is credited to the account
+            owed += limit;
+        }
+        check(name + ": chained loans owe " + Money.format(owed) + ", cap " + Money.format(cap), owed == cap);
+        check(name + ": no further loan once the cap is reached", LoanBook.loanLimit(account, owed) <= 0);
+    }
+
+    private static void check(String name, boolean ok) {
+        System.out.println((ok ? "OK   " : "FAIL ") + name);
+        if (!ok) {
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Monthly loan repayment over every active loan.
+// Loans are cut into chunks of consecutive loan ids per shard (the loans of one
+// account sort together), several chunks in parallel. Pending balance updates are
+// flushed once, before the first chunk. For each chunk the job locks the linked
+// accounts (flushing outside the locks and trying again if one of them has a balance
+// waiting in the balance writer) and plans the month: an installment is collected if
+// the account can cover it (overdraft included for current accounts), otherwise the
+// payment is missed and the month's interest is added to the loan. The debits, the loan rows and a loan_runs checkpoint are written
+// with batched statements in one transaction. A run that fails midway can be started
+// again with the same run id and skips completed chunks.
+class LoanRepaymentJob {
+    private static final String CREATE_RUNS_SQL = "CREATE TABLE IF NOT EXISTS loan_runs (" +
+            "run_id VARCHAR(32) NOT NULL, " +
+            "chunk_start BIGINT NOT NULL, " +
+            "chunk_end BIGINT NOT NULL, " +
+            "payments INT NOT NULL, " +
+            "collected BIGINT NOT NULL, " +
+            "PRIMARY KEY (run_id, chunk_start))";
+    private static final String DEBIT_SQL =
+            "UPDATE accounts SET balance = balance - ?, version = version + 1 WHERE account_number = ?";
+    private static final String LOAN_SQL = "UPDATE loans SET outstanding = ?, payments_made = ?, " +
+            "payments_missed = ?, status = ? WHERE loan_id = ?";
+    private static final String CHECKPOINT_SQL =
+            "INSERT INTO loan_runs (run_id, chunk_start, chunk_end, payments, collected) VALUES (?, ?, ?, ?, ?)";
+
+    // Flushes a chunk may need before its accounts have no balance waiting in the writer
+    private static final int MAX_FLUSHES = 10;
+
+    private final String runId;
+    private final int chunkSize;
+    private final int parallelism;
+
+    private final AtomicLong paymentsCollected = new AtomicLong();
+    private final AtomicLong amountCollected = new AtomicLong();
+    private final AtomicLong paymentsMissed = new AtomicLong();
+    private final AtomicLong loansPaidOff = new AtomicLong();
+    private final AtomicInteger chunksDone = new AtomicInteger();
+
+    public LoanRepaymentJob(String runId, int chunkSize, int parallelism) {
+        this.runId = runId;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    static void createTable(Statement stmt) throws SQLException {
+        stmt.executeUpdate(CREATE_RUNS_SQL);
+    }
+
+    // The new state of a chunk's loans, computed before anything is written
+    static final class Plan {
+        final Loan[] loans;
+        final BankAccount[] accounts;
+        final long[] due; // collected amount, 0 if the payment is missed
+        final long[] outstanding;
+        int payments;
+        int missed;
+        long collected;
+
+        Plan(Loan[] loans) {
+            this.loans = loans;
+            this.accounts = new BankAccount[loans.length];
+            this.due = new long[loans.length];
+            this.outstanding = new long[loans.length];
+        }
+    }
+
+    // Decide each loan's payment for the month; callers hold the accounts' locks
+    static Plan plan(Loan[] chunk) throws AccountNotFoundException {
+        Plan plan = new Plan(chunk);
+        Map<BankAccount, Long> available = new HashMap<>();
+        for (int i = 0; i < chunk.length; i++) {
+            Loan loan = chunk[i];
+            BankAccount account = BankingApp.findaccount(loan.accountNumber);
+            if (account == null) {
+                throw new AccountNotFoundException("Account " + loan.accountNumber + " of loan " + loan.id
+                        + " not found!");
+            }
+            plan.accounts[i] = account;
+            long interest = Loan.monthlyInterest(loan.outstanding, loan.rateBp);
+            long due = loan.dueNow();
+            long left = available.computeIfAbsent(account, BankAccount::available);
+            if (due <= left) {
+                available.put(account, left - due);
+                plan.due[i] = due;
+                plan.outstanding[i] = loan.outstanding + interest - due;
+                plan.payments++;
+                plan.collected += due;
+            } else {
+                plan.outstanding[i] = loan.outstanding + interest;
+                plan.missed++;
+            }
+        }
+        return plan;
+    }
+
+    // The plan has been committed, apply it to the accounts and loans in memory
+    static void apply(Plan plan) {
+        for (int i = 0; i < plan.loans.length; i++) {
+            Loan loan = plan.loans[i];
+            loan.outstanding = plan.outstanding[i];
+            if (plan.due[i] > 0) {
+                loan.paymentsMade++;
+                if (loan.outstanding == 0) {
+                    loan.status = Loan.PAID;
+                }
+                BankAccount account = plan.accounts[i];
+                account.applyCommitted(-plan.due[i]);
+                BankingApp.storeAccount(account);
+                BankingApp.recordInLedger(loan.accountNumber, Ledger.LOAN_REPAYMENT, plan.due[i], account.getBalance());
+                BankingApp.audit(Ledger.LOAN_REPAYMENT, loan.accountNumber, plan.due[i], account.getBalance());
+            } else {
+                loan.paymentsMissed++;
+            }
+        }
+    }
+
+    public void run(Loan[] loans) throws SQLException, InterruptedException {
+        ShardRouter router = BankingApp.shards;
+        if (router.isRebalancing()) {
+            throw new SQLException("A shard is being added; run the loan repayments once it has finished");
+        }
+        long start = System.nanoTime();
+        // Once per run and outside any account lock: the debit is relative to the balances in the database
+        flushBalances();
+        List<ShardRouter.Shard> shards = router.shards();
+        List<List<long[]>> completed = new ArrayList<>();
+        int completedChunks = 0;
+        for (ShardRouter.Shard shard : shards) {
+            completed.add(completedRanges(shard));
+            completedChunks += completed.get(shard.id).size();
+        }
+
+        // Active loans by shard, sorted by id, without those covered by a completed chunk
+        List<List<Loan>> byShard = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            byShard.add(new ArrayList<>());
+        }
+        Loan[] sorted = Arrays.stream(loans)
+                .parallel()
+                .filter(Loan::isActive)
+                .sorted(Comparator.comparingLong(loan -> loan.id))
+                .toArray(Loan[]::new);
+        int left = 0;
+        for (Loan loan : sorted) {
+            int shard = router.shardFor(loan.accountNumber).id;
+            if (!covered(completed.get(shard), loan.id)) {
+                byShard.get(shard).add(loan);
+                left++;
+            }
+        }
+        if (completedChunks > 0) {
+            System.out.println("Resuming repayment run " + runId + ": " + completedChunks
+                    + " chunks already done, " + left + " loans left.");
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        List<Future<?>> results = new ArrayList<>();
+        for (ShardRouter.Shard shard : shards) {
+            Loan[] shardLoans = byShard.get(shard.id).toArray(new Loan[0]);
+            for (int from = 0; from < shardLoans.length; from += chunkSize) {
+                Loan[] chunk = Arrays.copyOfRange(shardLoans, from, Math.min(from + chunkSize, shardLoans.length));
+                results.add(workers.submit(() -> {
+                    processChunk(shard, chunk);
+                    return null;
+                }));
+            }
+        }
+        workers.shutdown();
+
+        SQLException failure = null;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                            : new SQLException("Repayment chunk failed: " + e.getCause(), e.getCause());
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long loansDone = paymentsCollected.get() + paymentsMissed.get();
+        System.out.printf("Repayment run %s: %d chunks, %d payments collected (%s), %d missed, %d loans paid off "
+                + "in %.2f s (%.0f loans/sec)%n", runId, chunksDone.get(), paymentsCollected.get(),
+                Money.format(amountCollected.get()), paymentsMissed.get(), loansPaidOff.get(), seconds,
+                seconds > 0 ? loansDone / seconds : 0);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void processChunk(ShardRouter.Shard shard, Loan[] chunk) throws Exception {
+        int[] accNos = new int[chunk.length];
+        for (int i = 0; i < chunk.length; i++) {
+            accNos[i] = chunk[i].accountNumber;
+        }
+
+        BalanceWriter writer = BankingApp.balanceWriter;
+        for (int flushes = 0; ; flushes++) {
+            Exception[] error = new Exception[1];
+            boolean[] posted = new boolean[1];
+            // Hold the accounts' locks so no deposit or withdrawal can interleave with the debits
+            BankingApp.engine.withAccountsLocked(accNos, () -> {
+                if (writer != null && writer.hasPending(accNos)) {
+                    return; // the database does not hold the latest balance yet
+                }
+                posted[0] = true;
+                try {
+                    postChunk(shard, chunk);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            if (posted[0]) {
+                return;
+            }
+            if (flushes == MAX_FLUSHES) {
+                throw new SQLException("Loans " + chunk[0].id + " to " + chunk[chunk.length - 1].id
+                        + " kept changing during the repayment run; run it again to resume");
+            }
+            flushBalances();
+        }
+    }
+
+    private static void flushBalances() throws SQLException {
+        if (BankingApp.balanceWriter == null) {
+            return;
+        }
+        try {
+            BankingApp.balanceWriter.flush();
+        } catch (java.io.IOException e) {
+            throw new SQLException("Error flushing balances: " + e.getMessage(), e);
+        }
+    }
+
+    // Called with the accounts locked and none of their balances waiting in the writer
+    private void postChunk(ShardRouter.Shard shard, Loan[] chunk) throws Exception {
+        Plan plan = plan(chunk);
+
+        try (Connection conn = BankingApp.getConnection(shard)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement debit = conn.prepareStatement(DEBIT_SQL);
+                    PreparedStatement update = conn.prepareStatement(LOAN_SQL);
+                    PreparedStatement checkpoint = conn.prepareStatement(CHECKPOINT_SQL)) {
+                for (int i = 0; i < chunk.length; i++) {
+                    boolean paid = plan.due[i] > 0;
+                    if (paid) {
+                        // One row per installment, so the row version moves as in memory
+                        debit.setLong(1, plan.due[i]);
+                        debit.setInt(2, chunk[i].accountNumber);
+                        debit.addBatch();
+                    }
+                    update.setLong(1, plan.outstanding[i]);
+                    update.setInt(2, chunk[i].paymentsMade + (paid ? 1 : 0));
+                    update.setInt(3, chunk[i].paymentsMissed + (paid ? 0 : 1));
+                    update.setByte(4, paid && plan.outstanding[i] == 0 ? Loan.PAID : Loan.ACTIVE);
+                    update.setLong(5, chunk[i].id);
+                    update.addBatch();
+                }
+                debit.executeBatch();
+                update.executeBatch();
+
+                checkpoint.setString(1, runId);
+                checkpoint.setLong(2, chunk[0].id);
+                checkpoint.setLong(3, chunk[chunk.length - 1].id);
+                checkpoint.setInt(4, plan.payments);
+                checkpoint.setLong(5, plan.collected);
+                checkpoint.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+
+        apply(plan);
+        int paidOff = 0;
+        for (Loan loan : chunk) {
+            paidOff += loan.isActive() ? 0 : 1;
+        }
+        paymentsCollected.addAndGet(plan.payments);
+        amountCollected.addAndGet(plan.collected);
+        paymentsMissed.addAndGet(plan.missed);
+        loansPaidOff.addAndGet(paidOff);
+        chunksDone.incrementAndGet();
+    }
+
+    private List<long[]> completedRanges(ShardRouter.Shard shard) throws SQLException {
+        List<long[]> ranges = new ArrayList<>();
+        try (Connection conn = BankingApp.getConnection(shard);
+                PreparedStatement pstmt = conn.prepareStatement(
+                        "SELECT chunk_start, chunk_end FROM loan_runs WHERE run_id = ?")) {
+            pstmt.setString(1, runId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ranges.add(new long[] { rs.getLong(1), rs.getLong(2) });
+                }
+            }
+        }
+        ranges.sort(Comparator.comparingLong(r -> r[0]));
+
+        // Chunks of a resumed run can span earlier ones, merge them into disjoint ranges
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    // The ranges are sorted and disjoint, so a binary search on the start is enough
+    private static boolean covered(List<long[]> ranges, long loanId) {
+        int lo = 0;
+        int hi = ranges.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long[] range = ranges.get(mid);
+            if (loanId < range[0]) {
+                hi = mid - 1;
+            } else if (loanId > range[1]) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
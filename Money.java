@@ -0,0 +1,32 @@
+// Helpers for money amounts stored as a long number of cents.
+// Balances and amounts are kept in minor units so arithmetic is exact and
+// needs no BigDecimal; conversion to and from decimal only happens at the edges
+// (console input/output).
+final class Money {
+    static final long CENTS_PER_UNIT = 100;
+
+    private Money() {
+    }
+
+    // Convert a decimal amount typed by the user to cents, rounding to the nearest cent
+    static long fromAmount(double amount) throws InvalidAmountException {
+        if (Double.isNaN(amount) || Double.isInfinite(amount) || Math.abs(amount) >= Long.MAX_VALUE / CENTS_PER_UNIT) {
+            throw new InvalidAmountException("Amount is out of range");
+        }
+        return Math.round(amount * CENTS_PER_UNIT);
+    }
+
+    // Percentage of an amount given in basis points (1/100 of a percent), rounded half up
+    static long percentOf(long cents, long basisPoints) {
+        long product = Math.multiplyExact(cents, basisPoints);
+        return Math.floorDiv(product + 5000, 10000);
+    }
+
+    // Format cents as a plain decimal string, e.g. 123456 -> "1234.56"
+    static String format(long cents) {
+        long units = cents / CENTS_PER_UNIT;
+        long rest = Math.abs(cents % CENTS_PER_UNIT);
+        String sign = cents < 0 && units == 0 ? "-" : "";
+        return sign + units + (rest < 10 ? ".0" : ".") + rest;
+    }
+}
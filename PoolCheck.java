@@ -0,0 +1,222 @@
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+// Checks ConnectionPool against a fake JDBC driver, without the database. The driver
+// hands out proxy connections and statements that record the calls the pool makes:
+// - a connection held past the leak threshold is reported by the housekeeper
+// - returning a connection rolls back an open transaction, restores auto-commit and
+//   resets the statements left open, which the next borrower gets back from the cache
+// - a connection idle for the validation window is validated on borrow and replaced
+//   if it is dead; one returned just before is handed out without the check
+// Run: java PoolCheck     (exit code 1 if a check fails)
+class PoolCheck {
+    private static final String URL = "jdbc:poolcheck:";
+
+    private static final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    private static volatile boolean valid = true;
+    private static int opened;
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        DriverManager.registerDriver(new FakeDriver());
+        checkLeakDetection();
+        checkReleaseReset();
+        checkValidation();
+        System.out.println(failures == 0 ? "All pool checks passed." : failures + " pool check(s) failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // The housekeeper runs every second at most; hold a connection past the threshold and wait for it
+    private static void checkLeakDetection() throws Exception {
+        ConnectionPool pool = pool(0, 2_000, 200);
+        try {
+            Connection conn = pool.getConnection();
+            Thread.sleep(2_500);
+            check("connection held past the threshold reported as a leak", pool.stats().contains(" leaks=1 "));
+            conn.close();
+            check("returned connection no longer active", pool.getActiveCount() == 0 && pool.getIdleCount() == 1);
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static void checkReleaseReset() throws SQLException {
+        ConnectionPool pool = pool(0, 60_000, 0);
+        try {
+            Connection conn = pool.getConnection();
+            conn.setAutoCommit(false);
+            PreparedStatement stmt = conn.prepareStatement("UPDATE accounts SET balance = ?");
+            stmt.setLong(1, 100);
+            stmt.addBatch();
+            stmt.executeQuery();
+            calls.clear();
+            conn.close(); // the statement is left open
+            check("open transaction rolled back on release", calls.contains("rollback"));
+            check("auto-commit restored on release", calls.contains("setAutoCommit true"));
+            check("result set closed on release", calls.contains("resultSet.close"));
+            check("parameters and batch cleared on release",
+                    calls.contains("clearParameters") && calls.contains("clearBatch"));
+            check("cached statement not closed on release", !calls.contains("statement.close"));
+            check("returned connection rejects further use", rejects(conn));
+
+            Connection again = pool.getConnection();
+            again.prepareStatement("UPDATE accounts SET balance = ?").close();
+            again.close();
+            check("next borrower gets the cached statement", pool.stats().contains("statementHits=1 statementMisses=1"));
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static void checkValidation() throws Exception {
+        ConnectionPool pool = pool(200, 60_000, 0);
+        try {
+            pool.getConnection().close();
+            calls.clear();
+            pool.getConnection().close();
+            check("connection returned within the window not validated", !calls.contains("isValid"));
+
+            Thread.sleep(300);
+            valid = false; // the idle connection died
+            int before = opened;
+            calls.clear();
+            Connection conn = pool.getConnection();
+            valid = true;
+            check("connection idle past the window validated on borrow", calls.contains("isValid"));
+            check("dead connection replaced by a new one",
+                    opened == before + 1 && pool.stats().contains("validationFailures=1"));
+            conn.close();
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static ConnectionPool pool(long validationIdleMillis, long idleTimeoutMillis, long leakThresholdMillis) {
+        return new ConnectionPool(URL, "user", "password", 0, 2, 1_000, idleTimeoutMillis, validationIdleMillis,
+                leakThresholdMillis, false, 4);
+    }
+
+    private static boolean rejects(Connection conn) {
+        try {
+            conn.prepareStatement("SELECT 1");
+            return false;
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    private static void check(String name, boolean ok) {
+        System.out.println((ok ? "OK   " : "FAIL ") + name);
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    private static Connection connection() {
+        boolean[] autoCommit = { true };
+        boolean[] closed = { false };
+        return (Connection) Proxy.newProxyInstance(PoolCheck.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isValid":
+                            calls.add("isValid");
+                            return valid;
+                        case "getAutoCommit":
+                            return autoCommit[0];
+                        case "setAutoCommit":
+                            autoCommit[0] = (Boolean) args[0];
+                            calls.add("setAutoCommit " + args[0]);
+                            return null;
+                        case "rollback":
+                            calls.add("rollback");
+                            return null;
+                        case "isClosed":
+                            return closed[0];
+                        case "close":
+                            closed[0] = true;
+                            return null;
+                        case "prepareStatement":
+                            return statement();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static PreparedStatement statement() {
+        ResultSet rs = (ResultSet) Proxy.newProxyInstance(PoolCheck.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("close")) {
+                        calls.add("resultSet.close");
+                    }
+                    return null;
+                });
+        boolean[] executed = { false };
+        return (PreparedStatement) Proxy.newProxyInstance(PoolCheck.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "executeQuery":
+                            executed[0] = true;
+                            return rs;
+                        case "getResultSet":
+                            return executed[0] ? rs : null;
+                        case "clearParameters":
+                        case "clearBatch":
+                            calls.add(method.getName());
+                            return null;
+                        case "close":
+                            calls.add("statement.close");
+                            return null;
+                        case "setLong":
+                        case "addBatch":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    // Answers only URLs starting with URL, so it never shadows a real driver
+    private static class FakeDriver implements Driver {
+        @Override
+        public Connection connect(String url, Properties info) {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            opened++;
+            return connection();
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith(URL);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() {
+            return Logger.getLogger("PoolCheck");
+        }
+    }
+}
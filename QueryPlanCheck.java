@@ -0,0 +1,117 @@
+import java.sql.*;
+import java.util.*;
+
+// Checks that the hot queries on the accounts table use the intended indexes.
+// Builds a scratch database on the local server with the migrated schema, fills it
+// with test accounts, runs EXPLAIN on each query as the application prepares it and
+// compares the chosen index (and, for primary-key reads, the partitions touched).
+// The scratch database is dropped afterwards unless -Dbank.plancheck.keep=true.
+// Run: java QueryPlanCheck [accounts]     (exit code 1 if a plan does not match)
+class QueryPlanCheck {
+    private static final String SERVER_URL = "jdbc:mysql://localhost:3306/?" + BankingApp.DRIVER_OPTIONS;
+
+    // A query, its parameters, the index it must use and, if set, the only partitions it may read
+    private static final class Check {
+        final String name;
+        final String sql;
+        final Object[] params;
+        final String key;
+        final String partitions;
+
+        Check(String name, String sql, String key, String partitions, Object... params) {
+            this.name = name;
+            this.sql = sql;
+            this.key = key;
+            this.partitions = partitions;
+            this.params = params;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        String db = System.getProperty("bank.plancheck.db", "bankdb_plancheck");
+        int failures = 0;
+        try (Connection conn = DriverManager.getConnection(SERVER_URL, BankingApp.DB_USER, BankingApp.DB_PASSWORD);
+                Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP DATABASE IF EXISTS " + db);
+            stmt.executeUpdate("CREATE DATABASE " + db);
+            stmt.executeUpdate("USE " + db);
+            try {
+                SchemaMigrations.migrate(stmt);
+                fill(conn, count);
+                stmt.executeUpdate("ANALYZE TABLE accounts");
+
+                int accNo = count / 2;
+                long watermarkMicros = System.currentTimeMillis() * 1000;
+                List<Check> checks = Arrays.asList(
+                        new Check("read by account number", AccountLoader.BY_NUMBER_SQL, "PRIMARY", "p0", accNo),
+                        new Check("keyset page", AccountLoader.PAGE_SQL, "PRIMARY", null, accNo, 1000),
+                        new Check("search by email", AccountLoader.SELECT_COLUMNS + " WHERE email = ?",
+                                "idx_accounts_email", null, "plan" + accNo + "@mail.example.com"),
+                        new Check("search by holder name", AccountLoader.SELECT_COLUMNS + " WHERE holder_name = ?",
+                                "idx_accounts_holder_name", null, "Holder " + accNo),
+                        new Check("snapshot catch-up", AccountSnapshots.CHANGED_SINCE_SQL, "idx_accounts_updated_at",
+                                null, java.math.BigDecimal.valueOf(watermarkMicros, 6)),
+                        new Check("balance update", AccountDao.UPDATE_BALANCE_SQL, "PRIMARY", "p0", 1, accNo));
+                for (Check check : checks) {
+                    if (!verify(conn, check)) {
+                        failures++;
+                    }
+                }
+            } finally {
+                if (!Boolean.getBoolean("bank.plancheck.keep")) {
+                    stmt.executeUpdate("DROP DATABASE IF EXISTS " + db);
+                }
+            }
+        }
+        System.out.println(failures == 0 ? "All query plans use the intended indexes."
+                : failures + " query plan(s) do not use the intended index.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // Test accounts with distinct names and emails, all savings
+    private static void fill(Connection conn, int count) throws SQLException {
+        conn.setAutoCommit(false);
+        try (PreparedStatement insert = conn.prepareStatement(AccountDao.INSERT_SQL)) {
+            for (int i = 0; i < count; i++) {
+                insert.setInt(1, i);
+                insert.setString(2, "Holder " + i);
+                insert.setLong(3, 100_000);
+                insert.setString(4, "plan" + i + "@mail.example.com");
+                insert.setByte(5, AccountDao.SAVINGS);
+                insert.addBatch();
+                if (i % 1000 == 999) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private static boolean verify(Connection conn, Check check) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("EXPLAIN " + check.sql)) {
+            for (int i = 0; i < check.params.length; i++) {
+                pstmt.setObject(i + 1, check.params[i]);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    System.out.println("FAIL " + check.name + ": no plan");
+                    return false;
+                }
+                String key = rs.getString("key");
+                String partitions = rs.getString("partitions");
+                boolean ok = check.key.equals(key) && (check.partitions == null || check.partitions.equals(partitions));
+                System.out.printf("%s %s: key=%s partitions=%s type=%s rows=%s%n", ok ? "OK  " : "FAIL", check.name,
+                        key, partitions, rs.getString("type"), rs.getString("rows"));
+                if (!ok) {
+                    System.out.println("     expected key=" + check.key
+                            + (check.partitions == null ? "" : " partitions=" + check.partitions));
+                }
+                return ok;
+            }
+        }
+    }
+}
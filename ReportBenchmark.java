@@ -0,0 +1,64 @@
+// Latency of the in-memory reports (AccountReports) on a large book: overdraft list,
+// top balances, totals by type and prefix search on email and holder name. Every
+// tenth current account is overdrawn. Each report is checked against a latency
+// target (median per call, -Dbench.target.scanMs and -Dbench.target.prefixMs) and
+// the run exits with 1 if one is missed.
+// Run: java -Xms4g -Xmx4g ReportBenchmark [accounts]
+class ReportBenchmark {
+    private static final int NAMES = 50_000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        double scanTargetMs = Double.parseDouble(System.getProperty("bench.target.scanMs", "2000"));
+        double prefixTargetMs = Double.parseDouble(System.getProperty("bench.target.prefixMs", "1"));
+        // Scans over the whole book take long enough that a few rounds suffice
+        Bench.warmupRounds = Integer.getInteger("bench.warmup", 2);
+        Bench.measureRounds = Integer.getInteger("bench.rounds", 5);
+
+        long start = System.nanoTime();
+        java.util.List<BankAccount> page = new java.util.ArrayList<>(10000);
+        for (int i = 0; i < count; i++) {
+            String name = "Customer " + (i % NAMES);
+            String email = "customer" + i + "@mail.example.com";
+            BankAccount account = i % 2 == 0 ? new SavingsAccount(i, name, 1_000_000 + i % 997, email)
+                    : new CurrentAccount(i, name, 1_000_000, email);
+            if (i % 20 == 1) {
+                account.balance = -50_000;
+            }
+            page.add(account);
+            if (page.size() == 10000) {
+                BankingApp.accounts.addAll(page);
+                page.clear();
+            }
+        }
+        BankingApp.accounts.addAll(page);
+        BankingApp.loader.markLoaded(count, System.nanoTime() - start);
+        System.out.printf("%d accounts indexed in %.2f s%n", count, (System.nanoTime() - start) / 1e9);
+
+        AccountReports reports = BankingApp.reports;
+        long[] seen = new long[1];
+        double[] scans = {
+            Bench.run("report: overdrawn current accounts", 1, i -> reports.overdrawn(account -> seen[0]++)),
+            Bench.run("report: top 100 balances", 1, i -> reports.topBalances(100).size()),
+            Bench.run("report: totals by type", 1, i -> reports.totals().accounts[0]),
+        };
+        int ops = Integer.getInteger("bench.ops", 10_000);
+        double[] prefixes = {
+            Bench.run("search: email prefix (50)", ops,
+                    i -> reports.searchPrefix("email", "customer" + (i % 1000 + 1), 50, account -> seen[0]++)),
+            Bench.run("search: holder name prefix (50)", ops,
+                    i -> reports.searchPrefix("holder_name", "customer " + (i % 5000), 50, account -> seen[0]++)),
+        };
+
+        int missed = 0;
+        for (double nanos : scans) {
+            missed += nanos / 1e6 > scanTargetMs ? 1 : 0;
+        }
+        for (double nanos : prefixes) {
+            missed += nanos / 1e6 > prefixTargetMs ? 1 : 0;
+        }
+        System.out.printf("targets: scans <= %.0f ms, prefix searches <= %.1f ms: %s%n", scanTargetMs,
+                prefixTargetMs, missed == 0 ? "met" : missed + " missed");
+        System.exit(missed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,114 @@
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+
+// Checks that overdrawn current accounts survive the trip through a database row and
+// show up in the reports. A current account at -500.00 is mapped from a row the way
+// AccountLoader reads it, then the reports run in memory over it. With
+// -Dbank.reportcheck.jdbc=true the same row is also inserted into the configured
+// database (account 990100000) and the SQL pushdown of the reports is checked.
+// Run: java ReportCheck     (exit code 1 if a check fails)
+class ReportCheck {
+    private static final int JDBC_ACCOUNT = 990_100_000;
+    private static final long OVERDRAWN = -50_000;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        BankAccount restored = AccountLoader.readAccount(row(1, "Overdrawn Holder", OVERDRAWN,
+                "overdrawn@mail.example.com", AccountDao.CURRENT, 3));
+        check("row mapped to a current account", restored instanceof CurrentAccount);
+        check("negative balance kept", restored.getBalance() == OVERDRAWN);
+        check("row version kept", restored.getVersion() == 3);
+
+        AccountRegistry registry = new AccountRegistry();
+        registry.add(restored);
+        registry.add(new SavingsAccount(2, "Saver", 100_000, "saver@mail.example.com"));
+        registry.add(new CurrentAccount(3, "Even", 0, "even@mail.example.com"));
+        AccountReports reports = new AccountReports(registry, () -> true);
+        checkReports("in memory", reports, restored.getAccountNumber(), "overdrawn@");
+
+        if (Boolean.getBoolean("bank.reportcheck.jdbc")) {
+            runJdbc();
+        }
+        System.out.println(failures == 0 ? "All report checks passed." : failures + " report check(s) failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // The overdrawn account is listed, ranked and totalled, and found by email prefix
+    private static void checkReports(String where, AccountReports reports, int accNo, String emailPrefix)
+            throws SQLException {
+        List<BankAccount> overdrawn = new ArrayList<>();
+        reports.overdrawn(overdrawn::add);
+        check(where + ": overdraft report lists the account", contains(overdrawn, accNo, OVERDRAWN));
+
+        List<BankAccount> top = reports.topBalances(100_000);
+        check(where + ": top balances include the account", contains(top, accNo, OVERDRAWN));
+
+        AccountReports.Totals totals = reports.totals();
+        check(where + ": totals include the overdraft", totals.overdrafts[AccountDao.CURRENT] <= OVERDRAWN);
+
+        List<BankAccount> found = new ArrayList<>();
+        reports.searchPrefix("email", emailPrefix, 10, found::add);
+        check(where + ": email prefix search finds the account", contains(found, accNo, OVERDRAWN));
+    }
+
+    // Insert the overdrawn row, read it back and run the reports as SQL
+    private static void runJdbc() throws Exception {
+        BankingApp.initializeDatabase();
+        deleteRow();
+        try {
+            AccountDao.insert(BankAccount.restore(false, JDBC_ACCOUNT, "Report Check", OVERDRAWN,
+                    "reportcheck@mail.example.com"));
+            BankAccount read = AccountLoader.readOne(JDBC_ACCOUNT);
+            check("jdbc: readOne returns the overdrawn account", read != null && read.getBalance() == OVERDRAWN);
+            checkReports("jdbc", new AccountReports(BankingApp.accounts, () -> false), JDBC_ACCOUNT,
+                    "reportcheck@");
+        } finally {
+            deleteRow();
+        }
+    }
+
+    private static void deleteRow() throws SQLException {
+        try (Connection conn = BankingApp.getConnection(JDBC_ACCOUNT);
+                PreparedStatement pstmt = conn.prepareStatement("DELETE FROM accounts WHERE account_number = ?")) {
+            pstmt.setInt(1, JDBC_ACCOUNT);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static boolean contains(List<BankAccount> accounts, int accNo, long balance) {
+        for (BankAccount account : accounts) {
+            if (account.getAccountNumber() == accNo && account.getBalance() == balance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void check(String name, boolean ok) {
+        System.out.println((ok ? "OK   " : "FAIL ") + name);
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    // A result set positioned on one accounts row, answering the getters readAccount uses
+    private static ResultSet row(int accNo, String name, long balance, String email, byte type, long version) {
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("account_number", accNo);
+        columns.put("holder_name", name);
+        columns.put("balance", balance);
+        columns.put("email", email);
+        columns.put("account_type", type);
+        columns.put("version", version);
+        return (ResultSet) Proxy.newProxyInstance(ReportCheck.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+                    if (method.getName().startsWith("get") && args != null && args[0] instanceof String
+                            && columns.containsKey(args[0])) {
+                        return columns.get(args[0]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,140 @@
+import java.sql.*;
+import java.util.*;
+
+// Versioned changes to the accounts table. Each database records the versions it has
+// applied in schema_migrations, and on startup the missing ones run in order. Every
+// step first checks whether its change is already there (MySQL DDL cannot be rolled
+// back), so a migration interrupted halfway finishes on the next start, and a table
+// created by setup_database.sql, which already has the latest layout, only gets the
+// versions recorded.
+class SchemaMigrations {
+    private static final String CREATE_MIGRATIONS_SQL = "CREATE TABLE IF NOT EXISTS schema_migrations (" +
+            "version INT PRIMARY KEY, " +
+            "description VARCHAR(200) NOT NULL, " +
+            "applied_at TIMESTAMP(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6))";
+
+    // Width of each account_number range partition (-Dbank.schema.partitionWidth)
+    // (at least 1000000, MySQL allows 8192 partitions)
+    static final int PARTITION_WIDTH = Math.max(1_000_000,
+            Integer.getInteger("bank.schema.partitionWidth", 100_000_000));
+
+    interface Step {
+        void apply(Statement stmt) throws SQLException;
+    }
+
+    static final class Migration {
+        final int version;
+        final String description;
+        final Step step;
+
+        Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+
+    // In version order; append new migrations, never change an applied one
+    static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "accounts table with cents, version and updated_at", AccountDao::createTable),
+            new Migration(2, "indexes on email and holder_name", SchemaMigrations::addSearchIndexes),
+            new Migration(3, "account_type as TINYINT (0 savings, 1 current)", SchemaMigrations::encodeAccountType),
+            new Migration(4, "created_at timestamp", SchemaMigrations::addCreatedAt),
+            new Migration(5, "partition by account_number range", SchemaMigrations::partitionByNumber));
+
+    // Apply the migrations this database has not had yet; returns how many ran
+    static int migrate(Statement stmt) throws SQLException {
+        stmt.executeUpdate(CREATE_MIGRATIONS_SQL);
+        Set<Integer> applied = new HashSet<>();
+        try (ResultSet rs = stmt.executeQuery("SELECT version FROM schema_migrations")) {
+            while (rs.next()) {
+                applied.add(rs.getInt(1));
+            }
+        }
+        int ran = 0;
+        for (Migration migration : MIGRATIONS) {
+            if (applied.contains(migration.version)) {
+                continue;
+            }
+            System.out.println("Applying schema migration " + migration.version + ": " + migration.description);
+            migration.step.apply(stmt);
+            try (PreparedStatement pstmt = stmt.getConnection().prepareStatement(
+                    "INSERT INTO schema_migrations (version, description) VALUES (?, ?)")) {
+                pstmt.setInt(1, migration.version);
+                pstmt.setString(2, migration.description);
+                pstmt.executeUpdate();
+            }
+            ran++;
+        }
+        return ran;
+    }
+
+    // Highest version recorded in this database, 0 if none
+    static int currentVersion(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_migrations")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    // Lookups by email and holder name (search menu, cache mode) without a full scan
+    static void addSearchIndexes(Statement stmt) throws SQLException {
+        if (!hasIndex(stmt, "idx_accounts_email")) {
+            stmt.executeUpdate("ALTER TABLE accounts ADD INDEX idx_accounts_email (email)");
+        }
+        if (!hasIndex(stmt, "idx_accounts_holder_name")) {
+            stmt.executeUpdate("ALTER TABLE accounts ADD INDEX idx_accounts_holder_name (holder_name)");
+        }
+    }
+
+    // Replace the 'Savings'/'Current' strings with AccountDao.SAVINGS/CURRENT
+    static void encodeAccountType(Statement stmt) throws SQLException {
+        String type = AccountDao.columnType(stmt, "account_type");
+        if (type == null || type.equals("tinyint")) {
+            return;
+        }
+        if (AccountDao.columnType(stmt, "account_kind") == null) {
+            stmt.executeUpdate("ALTER TABLE accounts ADD COLUMN account_kind TINYINT NOT NULL DEFAULT 0");
+        }
+        stmt.executeUpdate("UPDATE accounts SET account_kind = IF(account_type = 'Savings', " +
+                AccountDao.SAVINGS + ", " + AccountDao.CURRENT + ")");
+        stmt.executeUpdate("ALTER TABLE accounts DROP COLUMN account_type, " +
+                "CHANGE COLUMN account_kind account_type TINYINT NOT NULL DEFAULT 0");
+    }
+
+    // Creation time next to updated_at, for incremental sync and reports
+    static void addCreatedAt(Statement stmt) throws SQLException {
+        if (AccountDao.columnType(stmt, "created_at") == null) {
+            stmt.executeUpdate("ALTER TABLE accounts ADD COLUMN created_at TIMESTAMP(6) NOT NULL " +
+                    "DEFAULT CURRENT_TIMESTAMP(6)");
+        }
+    }
+
+    // Range partitions of PARTITION_WIDTH account numbers, so keyset pages and
+    // primary-key reads touch one partition and old ranges can be maintained alone
+    static void partitionByNumber(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM information_schema.PARTITIONS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'accounts' AND PARTITION_NAME IS NOT NULL")) {
+            rs.next();
+            if (rs.getInt(1) > 0) {
+                return;
+            }
+        }
+        stmt.executeUpdate("ALTER TABLE accounts " + partitionClause());
+    }
+
+    static String partitionClause() {
+        StringBuilder sb = new StringBuilder("PARTITION BY RANGE (account_number) (");
+        for (long bound = PARTITION_WIDTH, p = 0; bound <= Integer.MAX_VALUE; bound += PARTITION_WIDTH, p++) {
+            sb.append("PARTITION p").append(p).append(" VALUES LESS THAN (").append(bound).append("), ");
+        }
+        return sb.append("PARTITION pmax VALUES LESS THAN MAXVALUE)").toString();
+    }
+
+    static boolean hasIndex(Statement stmt, String index) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM information_schema.STATISTICS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'accounts' AND INDEX_NAME = '" + index + "'")) {
+            return rs.next();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.sql.*;
+import java.util.*;
+import java.util.function.Function;
+
+// Durable shard membership, kept in two tables on the first shard.
+// shard_membership lists every shard added at runtime and whether it is still being
+// filled; shard_moves lists the accounts already switched to a shard being filled.
+// ShardRebalancer records a shard before moving anything, records each account after
+// its copy commits and before the old row is deleted, and marks the shard active
+// before the move state is dropped. At startup the shards found here are added to the
+// ones in -Dbank.shards, and an unfinished move is reopened with the accounts already
+// moved, so after a restart every account still routes to the shard that holds its row.
+class ShardMembership {
+    static final byte ACTIVE = 0;
+    static final byte ADDING = 1;
+
+    private static final String CREATE_MEMBERSHIP_SQL = "CREATE TABLE IF NOT EXISTS shard_membership (" +
+            "shard_name VARCHAR(255) PRIMARY KEY, " +
+            "url VARCHAR(1024) NOT NULL, " +
+            "state TINYINT NOT NULL, " +
+            "added_at TIMESTAMP(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6))";
+    private static final String CREATE_MOVES_SQL = "CREATE TABLE IF NOT EXISTS shard_moves (" +
+            "account_number INT PRIMARY KEY, " +
+            "shard_name VARCHAR(255) NOT NULL)";
+    private static final String SELECT_SQL = "SELECT shard_name, url, state FROM shard_membership ORDER BY added_at";
+    private static final String MOVES_SQL = "SELECT account_number FROM shard_moves WHERE shard_name = ?";
+    private static final String BEGIN_SQL = "INSERT INTO shard_membership (shard_name, url, state) VALUES (?, ?, " +
+            ADDING + ") ON DUPLICATE KEY UPDATE url = VALUES(url)";
+    private static final String MOVE_SQL = "INSERT INTO shard_moves (account_number, shard_name) VALUES (?, ?) " +
+            "ON DUPLICATE KEY UPDATE shard_name = VALUES(shard_name)";
+    private static final String FINISH_SQL = "UPDATE shard_membership SET state = " + ACTIVE + " WHERE shard_name = ?";
+    private static final String CLEAR_MOVES_SQL = "DELETE FROM shard_moves WHERE shard_name = ?";
+
+    private ShardMembership() {
+    }
+
+    // Create the tables on the first shard and add the shards recorded there to the router
+    static void load(ShardRouter router, Function<String, ConnectionPool> pools) throws SQLException {
+        try (Connection conn = BankingApp.getConnection(router.shard(0));
+                Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(CREATE_MEMBERSHIP_SQL);
+            stmt.executeUpdate(CREATE_MOVES_SQL);
+        }
+        apply(router, pools, true);
+    }
+
+    // Add shards another instance has finished adding since this one started; returns how many
+    static int refresh(ShardRouter router, Function<String, ConnectionPool> pools) throws SQLException {
+        return apply(router, pools, false);
+    }
+
+    private static int apply(ShardRouter router, Function<String, ConnectionPool> pools, boolean startup)
+            throws SQLException {
+        Map<String, String> active = new LinkedHashMap<>();
+        String addingName = null;
+        String addingUrl = null;
+        try (Connection conn = BankingApp.getConnection(router.shard(0));
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery(SELECT_SQL)) {
+            while (rs.next()) {
+                if (rs.getByte("state") == ACTIVE) {
+                    active.put(rs.getString("shard_name"), rs.getString("url"));
+                } else {
+                    addingName = rs.getString("shard_name");
+                    addingUrl = rs.getString("url");
+                }
+            }
+        }
+        int added = 0;
+        for (Map.Entry<String, String> shard : active.entrySet()) {
+            if (!router.hasShard(shard.getKey()) && !router.isAdding(shard.getKey())) {
+                router.addShard(shard.getValue(), pools.apply(shard.getValue()));
+                System.out.println("Added shard " + shard.getKey() + " from shard_membership.");
+                added++;
+            }
+        }
+        // Another running instance owns a move in progress; only a restart takes it over
+        if (startup && addingName != null && !router.hasShard(addingName)) {
+            router.beginRebalance(addingUrl, pools.apply(addingUrl));
+            int moved = 0;
+            try (Connection conn = BankingApp.getConnection(router.shard(0));
+                    PreparedStatement pstmt = conn.prepareStatement(MOVES_SQL)) {
+                pstmt.setString(1, addingName);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        router.markMoved(rs.getInt(1));
+                        moved++;
+                    }
+                }
+            }
+            System.out.println("Shard " + addingName + " was being added (" + moved
+                    + " accounts moved); add it again to finish.");
+        } else if (startup && addingName != null) {
+            System.out.println("Warning: " + addingName + " is still being filled; remove it from "
+                    + "bank.shards and restart, then add it again to finish.");
+        }
+        return added;
+    }
+
+    // Record the shard before any account moves to it
+    static void beginAdding(ShardRouter.Shard shard, String url) throws SQLException {
+        try (Connection conn = BankingApp.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(BEGIN_SQL)) {
+            pstmt.setString(1, shard.name);
+            pstmt.setString(2, url);
+            pstmt.executeUpdate();
+        }
+    }
+
+    // Record accounts whose copy on the shard has committed; their old rows may go afterwards
+    static void recordMoves(ShardRouter.Shard shard, List<Integer> accNos) throws SQLException {
+        try (Connection conn = BankingApp.getConnection();
+                PreparedStatement pstmt = conn.prepareStatement(MOVE_SQL)) {
+            for (int accNo : accNos) {
+                pstmt.setInt(1, accNo);
+                pstmt.setString(2, shard.name);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+
+    // Every account that belongs to the shard is on it; routing no longer needs the moves
+    static void finishAdding(ShardRouter.Shard shard) throws SQLException {
+        try (Connection conn = BankingApp.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement finish = conn.prepareStatement(FINISH_SQL);
+                    PreparedStatement clear = conn.prepareStatement(CLEAR_MOVES_SQL)) {
+                finish.setString(1, shard.name);
+                finish.executeUpdate();
+                clear.setString(1, shard.name);
+                clear.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+import java.sql.*;
+import java.util.*;
+
+// Adds a shard while the application keeps running.
+// Each existing shard is scanned with keyset pages; the accounts of a page that now
+// belong to the new shard are locked and, once none of them has a balance waiting in the
+// writer, the rows are copied to the new shard and then deleted from the old one. The
+// writer is flushed outside the locks, before each pass and whenever a page still has
+// pending balances. Routing switches account
+// by account as soon as its copy has committed. A second pass with account creation
+// paused picks up accounts created on an old shard during the first pass.
+// An account's loans move with it, in the same transactions.
+// If a step fails the router stays in rebalancing mode; adding the same shard again resumes.
+// The new shard and each account switched to it are recorded in ShardMembership before
+// any old row is deleted, so a restart (or a second start) routes every account to the
+// shard that holds it and can resume the move.
+class ShardRebalancer {
+    private static final String PAGE_SQL =
+            "SELECT account_number FROM accounts WHERE account_number > ? ORDER BY account_number LIMIT ?";
+    private static final String COPY_SQL = "INSERT INTO accounts " +
+            "(account_number, holder_name, balance, email, account_type, version) VALUES (?, ?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE holder_name = VALUES(holder_name), balance = VALUES(balance), " +
+            "email = VALUES(email), account_type = VALUES(account_type), version = VALUES(version)";
+    private static final String DELETE_SQL = "DELETE FROM accounts WHERE account_number = ?";
+    private static final String COPY_LOAN_SQL = "INSERT INTO loans (loan_id, account_number, principal, rate_bp, " +
+            "term_months, payment, outstanding, payments_made, payments_missed, status) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE outstanding = VALUES(outstanding), payments_made = VALUES(payments_made), " +
+            "payments_missed = VALUES(payments_missed), status = VALUES(status)";
+    private static final String DELETE_LOANS_SQL = "DELETE FROM loans WHERE account_number = ?";
+
+    // Flushes a page may need before its accounts have no balance waiting in the writer
+    private static final int MAX_FLUSHES = 10;
+
+    private final ShardRouter router;
+    private final int pageSize;
+    private long scanned;
+    private long moved;
+
+    public ShardRebalancer(ShardRouter router, int pageSize) {
+        this.router = router;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    public void addShard(String url, ConnectionPool pool) throws SQLException {
+        long start = System.nanoTime();
+        ShardRouter.Shard target = router.beginRebalance(url, pool);
+        if (target.pool != pool) {
+            pool.close(); // resuming, the shard already has a pool
+        }
+        ShardMembership.beginAdding(target, url);
+        try (Connection conn = BankingApp.getConnection(target);
+                Statement stmt = conn.createStatement()) {
+            BankingApp.createTables(stmt);
+        }
+
+        List<ShardRouter.Shard> sources = router.shards();
+        sources.remove(target);
+        for (ShardRouter.Shard source : sources) {
+            moveAccounts(source, target);
+        }
+        router.blockInserts();
+        try {
+            for (ShardRouter.Shard source : sources) {
+                moveAccounts(source, target);
+            }
+            ShardMembership.finishAdding(target);
+            router.finishRebalance();
+        } finally {
+            router.unblockInserts();
+        }
+        System.out.printf("Added %s: %d accounts scanned, %d moved in %.2f s%n",
+                target, scanned, moved, (System.nanoTime() - start) / 1e9);
+    }
+
+    private void moveAccounts(ShardRouter.Shard source, ShardRouter.Shard target) throws SQLException {
+        flushBalances(); // outside any account lock, so pages rarely find a pending balance
+        int after = Integer.MIN_VALUE;
+        while (true) {
+            List<Integer> leaving = new ArrayList<>();
+            int rows = 0;
+            try (Connection conn = BankingApp.getConnection(source);
+                    PreparedStatement pstmt = conn.prepareStatement(PAGE_SQL)) {
+                pstmt.setInt(1, after);
+                pstmt.setInt(2, pageSize);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        after = rs.getInt(1);
+                        rows++;
+                        if (router.targetShardFor(after) == target) {
+                            leaving.add(after);
+                        }
+                    }
+                }
+            }
+            scanned += rows;
+            if (!leaving.isEmpty()) {
+                movePage(source, target, leaving.stream().mapToInt(Integer::intValue).toArray());
+            }
+            if (rows < pageSize) {
+                return;
+            }
+        }
+    }
+
+    private void movePage(ShardRouter.Shard source, ShardRouter.Shard target, int[] accNos) throws SQLException {
+        BalanceWriter writer = BankingApp.balanceWriter;
+        for (int flushes = 0; ; flushes++) {
+            SQLException[] error = new SQLException[1];
+            boolean[] copied = new boolean[1];
+            // With the accounts locked nothing can change their balances while the rows move
+            BankingApp.engine.withAccountsLocked(accNos, () -> {
+                if (writer != null && writer.hasPending(accNos)) {
+                    return; // the database does not hold the latest balance yet
+                }
+                copied[0] = true;
+                try {
+                    copyAndDelete(source, target, accNos);
+                } catch (SQLException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            if (copied[0]) {
+                return;
+            }
+            if (flushes == MAX_FLUSHES) {
+                throw new SQLException("Accounts " + accNos[0] + " to " + accNos[accNos.length - 1]
+                        + " kept changing while moving to " + target + "; add the shard again to resume");
+            }
+            flushBalances();
+        }
+    }
+
+    private static void flushBalances() throws SQLException {
+        if (BankingApp.balanceWriter == null) {
+            return;
+        }
+        try {
+            BankingApp.balanceWriter.flush();
+        } catch (java.io.IOException e) {
+            throw new SQLException("Error flushing balances: " + e.getMessage(), e);
+        }
+    }
+
+    // Called with the accounts locked and none of their balances waiting in the writer
+    private void copyAndDelete(ShardRouter.Shard source, ShardRouter.Shard target, int[] accNos)
+            throws SQLException {
+        try (Connection from = BankingApp.getConnection(source);
+                Connection to = BankingApp.getConnection(target)) {
+            // Rows already switched to the new shard by an earlier, failed attempt are only deleted
+            List<Integer> copy = new ArrayList<>();
+            List<Integer> remove = new ArrayList<>();
+            for (int accNo : accNos) {
+                if (router.shardFor(accNo) != target) {
+                    copy.add(accNo);
+                } else {
+                    remove.add(accNo);
+                }
+            }
+            if (!copy.isEmpty()) {
+                // Only the rows the SELECT returns are copied, switched and deleted; an account
+                // deleted since the page was read keeps its routing
+                Set<Integer> copied = new LinkedHashSet<>();
+                to.setAutoCommit(false);
+                try (PreparedStatement select = from.prepareStatement(
+                        selectSql(AccountLoader.SELECT_COLUMNS, copy.size()));
+                        PreparedStatement insert = to.prepareStatement(COPY_SQL);
+                        PreparedStatement selectLoans = from.prepareStatement(
+                                selectSql(LoanBook.SELECT_COLUMNS, copy.size()));
+                        PreparedStatement insertLoan = to.prepareStatement(COPY_LOAN_SQL)) {
+                    for (int i = 0; i < copy.size(); i++) {
+                        select.setInt(i + 1, copy.get(i));
+                    }
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            copied.add(rs.getInt("account_number"));
+                            insert.setInt(1, rs.getInt("account_number"));
+                            insert.setString(2, rs.getString("holder_name"));
+                            insert.setLong(3, rs.getLong("balance"));
+                            insert.setString(4, rs.getString("email"));
+                            insert.setByte(5, rs.getByte("account_type"));
+                            insert.setLong(6, rs.getLong("version"));
+                            insert.addBatch();
+                        }
+                    }
+                    insert.executeBatch();
+
+                    for (int i = 0; i < copy.size(); i++) {
+                        selectLoans.setInt(i + 1, copy.get(i));
+                    }
+                    try (ResultSet rs = selectLoans.executeQuery()) {
+                        while (rs.next()) {
+                            if (!copied.contains(rs.getInt("account_number"))) {
+                                continue; // its account is not moving
+                            }
+                            insertLoan.setLong(1, rs.getLong("loan_id"));
+                            insertLoan.setInt(2, rs.getInt("account_number"));
+                            insertLoan.setLong(3, rs.getLong("principal"));
+                            insertLoan.setInt(4, rs.getInt("rate_bp"));
+                            insertLoan.setInt(5, rs.getInt("term_months"));
+                            insertLoan.setLong(6, rs.getLong("payment"));
+                            insertLoan.setLong(7, rs.getLong("outstanding"));
+                            insertLoan.setInt(8, rs.getInt("payments_made"));
+                            insertLoan.setInt(9, rs.getInt("payments_missed"));
+                            insertLoan.setByte(10, rs.getByte("status"));
+                            insertLoan.addBatch();
+                        }
+                    }
+                    insertLoan.executeBatch();
+                    to.commit();
+                } catch (SQLException e) {
+                    to.rollback();
+                    throw e;
+                }
+                if (!copied.isEmpty()) {
+                    // Durable before the old rows go: a restart must route these accounts to the target
+                    ShardMembership.recordMoves(target, new ArrayList<>(copied));
+                    for (int accNo : copied) {
+                        router.markMoved(accNo);
+                    }
+                    remove.addAll(copied);
+                }
+            }
+            if (remove.isEmpty()) {
+                return;
+            }
+
+            from.setAutoCommit(false);
+            try (PreparedStatement delete = from.prepareStatement(DELETE_SQL);
+                    PreparedStatement deleteLoans = from.prepareStatement(DELETE_LOANS_SQL)) {
+                for (int accNo : remove) {
+                    delete.setInt(1, accNo);
+                    delete.addBatch();
+                    deleteLoans.setInt(1, accNo);
+                    deleteLoans.addBatch();
+                }
+                delete.executeBatch();
+                deleteLoans.executeBatch();
+                from.commit();
+            } catch (SQLException e) {
+                from.rollback();
+                throw e;
+            }
+            moved += remove.size();
+        }
+    }
+
+    private static String selectSql(String select, int size) {
+        StringBuilder sb = new StringBuilder(select + " WHERE account_number IN (");
+        for (int i = 0; i < size; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,205 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Routes account numbers to database shards by consistent hashing.
+// Every shard owns VIRTUAL_NODES points on a 32-bit hash ring (placed by hashing the
+// shard's name, its JDBC URL without parameters), and an account belongs to the first
+// point at or after its own hash.
+// Adding a shard only moves the accounts that fall on the new shard's points.
+// While a new shard is being filled (see ShardRebalancer) an account keeps its old
+// shard until it has been copied, so reads and writes never see a half-moved account.
+// Shards added at runtime and the progress of a move are persisted by ShardMembership.
+class ShardRouter {
+    static final int VIRTUAL_NODES = 256;
+
+    static final class Shard {
+        final int id;
+        final String name;
+        final ConnectionPool pool;
+
+        Shard(int id, String name, ConnectionPool pool) {
+            this.id = id;
+            this.name = name;
+            this.pool = pool;
+        }
+
+        @Override
+        public String toString() {
+            return "shard " + id + " (" + name + ")";
+        }
+    }
+
+    // Sorted ring points and the shard owning each point
+    private static final class Ring {
+        final int[] points;
+        final Shard[] owners;
+
+        Ring(List<Shard> shards) {
+            int n = shards.size() * VIRTUAL_NODES;
+            long[] packed = new long[n];
+            int i = 0;
+            for (Shard shard : shards) {
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    int point = mix(mix(shard.name.hashCode()) + v * 0x9E3779B9);
+                    packed[i++] = ((long) point << 32) | shard.id; // sorts by point
+                }
+            }
+            Arrays.sort(packed);
+            points = new int[n];
+            owners = new Shard[n];
+            for (i = 0; i < n; i++) {
+                points[i] = (int) (packed[i] >> 32);
+                owners[i] = shards.get((int) packed[i]); // ids are list positions
+            }
+        }
+
+        Shard owner(int accNo) {
+            int h = mix(accNo);
+            int i = Arrays.binarySearch(points, h);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == points.length ? 0 : i];
+        }
+    }
+
+    private final List<Shard> shards = new ArrayList<>();
+    private volatile Ring ring;
+    private volatile Ring previous; // ring before the shard being added, null when not rebalancing
+    private volatile Set<Integer> moved;
+    private Shard adding;
+
+    // Account inserts hold the read lock; the last pass of a rebalance takes the write lock
+    // so no account can be created on an old shard after that pass has looked at it
+    private final ReentrantReadWriteLock inserts = new ReentrantReadWriteLock();
+
+    // Murmur3 finalizer; spreads consecutive account numbers over the ring
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // Shard name for a JDBC URL; connection parameters do not move accounts
+    static String shardName(String url) {
+        int q = url.indexOf('?');
+        return q < 0 ? url : url.substring(0, q);
+    }
+
+    // Add a shard that already holds its accounts: at startup, or one another instance
+    // has finished adding
+    public synchronized Shard addShard(String url, ConnectionPool pool) {
+        Shard shard = new Shard(shards.size(), shardName(url), pool);
+        shards.add(shard);
+        ring = new Ring(shards);
+        return shard;
+    }
+
+    public Shard shardFor(int accNo) {
+        Ring prev = previous;
+        Shard owner = ring.owner(accNo);
+        if (prev == null) {
+            return owner;
+        }
+        Shard old = prev.owner(accNo);
+        if (old == owner) {
+            return owner;
+        }
+        Set<Integer> done = moved;
+        return done != null && done.contains(accNo) ? owner : old;
+    }
+
+    // Owner once the current rebalance completes
+    Shard targetShardFor(int accNo) {
+        return ring.owner(accNo);
+    }
+
+    public synchronized List<Shard> shards() {
+        return new ArrayList<>(shards);
+    }
+
+    public synchronized Shard shard(int id) {
+        return shards.get(id);
+    }
+
+    public int size() {
+        return ring.points.length / VIRTUAL_NODES;
+    }
+
+    // Start routing to a new shard; accounts move one by one as markMoved is called.
+    // A rebalance that failed stays open and is resumed by adding the same shard again.
+    synchronized Shard beginRebalance(String url, ConnectionPool pool) {
+        String name = shardName(url);
+        if (adding != null) {
+            if (!adding.name.equals(name)) {
+                throw new IllegalStateException("Still adding " + adding + "; add it again to resume");
+            }
+            return adding;
+        }
+        for (Shard shard : shards) {
+            if (shard.name.equals(name)) {
+                throw new IllegalArgumentException(name + " is already " + shard);
+            }
+        }
+        moved = ConcurrentHashMap.newKeySet();
+        previous = ring;
+        adding = new Shard(shards.size(), name, pool);
+        shards.add(adding);
+        ring = new Ring(shards);
+        return adding;
+    }
+
+    public synchronized boolean isRebalancing() {
+        return adding != null;
+    }
+
+    // A shard with this name is routed to (and not still being filled)
+    synchronized boolean hasShard(String name) {
+        for (Shard shard : shards) {
+            if (shard != adding && shard.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized boolean isAdding(String name) {
+        return adding != null && adding.name.equals(name);
+    }
+
+    void markMoved(int accNo) {
+        moved.add(accNo);
+    }
+
+    synchronized void finishRebalance() {
+        previous = null;
+        moved = null;
+        adding = null;
+    }
+
+    void beginInsert() {
+        inserts.readLock().lock();
+    }
+
+    void endInsert() {
+        inserts.readLock().unlock();
+    }
+
+    void blockInserts() {
+        inserts.writeLock().lock();
+    }
+
+    void unblockInserts() {
+        inserts.writeLock().unlock();
+    }
+
+    public synchronized void close() {
+        for (Shard shard : shards) {
+            shard.pool.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Dictionary encoding for the account store: every distinct string is kept once,
+// as UTF-8 outside the Java heap, and rows refer to it by an int id. Besides the
+// string data there are three off-heap arrays: the position of each string, the
+// hash of its case-folded form (for case-insensitive search) and an open-addressing
+// table from string to id used while interning.
+// Not thread-safe on its own; the account store's lock guards it.
+class StringDictionary {
+    private static final int DATA_PAGE_BYTES = 1 << 20;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final List<ByteBuffer> data = new ArrayList<>();
+    private ByteBuffer positions = allocate(1024 * 8); // per id: page << 32 | offset
+    private ByteBuffer folded = allocate(1024 * 4); // per id: hash of the case-folded string
+    private ByteBuffer table; // per slot: id + 1, 0 = empty
+    private int mask;
+    private int resizeAt;
+    private int size;
+    private int pageUsed = DATA_PAGE_BYTES;
+
+    StringDictionary() {
+        allocateTable(1024);
+    }
+
+    static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    // Copy a buffer into a larger one
+    static ByteBuffer grow(ByteBuffer old, int bytes) {
+        ByteBuffer grown = allocate(bytes);
+        ByteBuffer src = old.duplicate();
+        src.clear();
+        grown.put(src);
+        grown.clear();
+        return grown;
+    }
+
+    private void allocateTable(int slots) {
+        table = allocate(slots * 4);
+        mask = slots - 1;
+        resizeAt = (int) (slots * LOAD_FACTOR);
+    }
+
+    // The id of the string, adding it if it is new; -1 for null
+    int intern(String s) {
+        if (s == null) {
+            return -1;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long for the dictionary: " + bytes.length + " bytes");
+        }
+        int hash = hash(bytes);
+        int slot = hash & mask;
+        int entry;
+        while ((entry = table.getInt(slot * 4)) != 0) {
+            if (equalsAt(entry - 1, bytes)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = size++;
+        append(id, bytes);
+        folded.putInt(id * 4, foldedHash(s));
+        table.putInt(slot * 4, id + 1);
+        if (size > resizeAt) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void append(int id, byte[] bytes) {
+        if (pageUsed + 2 + bytes.length > DATA_PAGE_BYTES) {
+            data.add(allocate(DATA_PAGE_BYTES));
+            pageUsed = 0;
+        }
+        ByteBuffer page = data.get(data.size() - 1);
+        page.putShort(pageUsed, (short) bytes.length);
+        page.position(pageUsed + 2);
+        page.put(bytes);
+        if ((long) (id + 1) * 8 > positions.capacity()) {
+            positions = grow(positions, positions.capacity() * 2);
+            folded = grow(folded, folded.capacity() * 2);
+        }
+        positions.putLong(id * 8, (long) (data.size() - 1) << 32 | pageUsed);
+        pageUsed += 2 + bytes.length;
+    }
+
+    private void rehash() {
+        allocateTable((mask + 1) * 2);
+        for (int id = 0; id < size; id++) {
+            int slot = hash(bytesOf(id)) & mask;
+            while (table.getInt(slot * 4) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table.putInt(slot * 4, id + 1);
+        }
+    }
+
+    private boolean equalsAt(int id, byte[] bytes) {
+        long position = positions.getLong(id * 8);
+        ByteBuffer page = data.get((int) (position >>> 32));
+        int offset = (int) position;
+        if ((page.getShort(offset) & 0xFFFF) != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (page.get(offset + 2 + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] bytesOf(int id) {
+        long position = positions.getLong(id * 8);
+        ByteBuffer page = data.get((int) (position >>> 32));
+        int offset = (int) position;
+        byte[] bytes = new byte[page.getShort(offset) & 0xFFFF];
+        page.get(offset + 2, bytes);
+        return bytes;
+    }
+
+    String get(int id) {
+        return id < 0 ? null : new String(bytesOf(id), StandardCharsets.UTF_8);
+    }
+
+    // Ids of the strings equal to the key ignoring case and surrounding blanks
+    Set<Integer> idsMatching(String key) {
+        String normalized = normalize(key);
+        int hash = normalized.hashCode();
+        Set<Integer> ids = new HashSet<>();
+        for (int id = 0; id < size; id++) {
+            if (folded.getInt(id * 4) == hash && normalize(get(id)).equals(normalized)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static String normalize(String s) {
+        return s == null ? "" : s.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static int foldedHash(String s) {
+        return normalize(s).hashCode();
+    }
+
+    private static int hash(byte[] bytes) {
+        int h = Arrays.hashCode(bytes) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    long offHeapBytes() {
+        return (long) data.size() * DATA_PAGE_BYTES + positions.capacity() + folded.capacity() + table.capacity();
+    }
+}
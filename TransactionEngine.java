@@ -0,0 +1,168 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+// Applies deposits, withdrawals and transfers from many threads at once.
+// Each account maps to one of a fixed set of lock stripes. Transfers lock both
+// stripes in ascending stripe order, so two opposite transfers can never deadlock.
+// The balance rules themselves (including the CurrentAccount overdraft) stay in
+// the account classes.
+class TransactionEngine {
+
+    // Notified with the change (a Ledger record type and the amount) and the new balance
+    // while the account's stripe is still held, so listeners see the updates of one account in order
+    interface BalanceListener {
+        void balanceChanged(int accountNumber, short type, long amount, long newBalance);
+
+        // Both sides of a transfer, with both stripes held; override to persist them together.
+        // Throwing a RuntimeException before anything is recorded refuses the transfer: the
+        // engine puts both balances back and passes the exception on.
+        default void transferred(int fromAccNo, int toAccNo, long amount, long fromBalance, long toBalance) {
+            balanceChanged(fromAccNo, Ledger.TRANSFER_OUT, amount, fromBalance);
+            balanceChanged(toAccNo, Ledger.TRANSFER_IN, amount, toBalance);
+        }
+    }
+
+    // Resolves an account number, returning null if there is no such account
+    interface AccountLookup {
+        BankAccount find(int accountNumber) throws AccountNotFoundException;
+    }
+
+    private final AccountLookup accounts;
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final BalanceListener listener;
+
+    public TransactionEngine(AccountLookup accounts, int stripeCount, BalanceListener listener) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.accounts = accounts;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+        this.listener = listener;
+    }
+
+    private int stripeOf(int accNo) {
+        int h = accNo * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private BankAccount require(int accNo) throws AccountNotFoundException {
+        BankAccount account = accounts.find(accNo);
+        if (account == null) {
+            throw new AccountNotFoundException("Account number " + accNo + " not found!");
+        }
+        return account;
+    }
+
+    // Deposit into an account, returns the new balance (amounts in cents)
+    public long deposit(int accNo, long amount) throws AccountNotFoundException, InvalidAmountException {
+        ReentrantLock lock = stripes[stripeOf(accNo)];
+        lock.lock();
+        try {
+            // Resolved under the lock: with a bounded cache the object may be replaced between calls
+            BankAccount account = require(accNo);
+            account.deposit(amount);
+            long balance = account.getBalance();
+            listener.balanceChanged(accNo, Ledger.DEPOSIT, amount, balance);
+            return balance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Withdraw from an account, returns the new balance (amounts in cents)
+    public long withdraw(int accNo, long amount)
+            throws AccountNotFoundException, InvalidAmountException, InsufficientBalanceException {
+        ReentrantLock lock = stripes[stripeOf(accNo)];
+        lock.lock();
+        try {
+            BankAccount account = require(accNo);
+            account.withdraw(amount);
+            long balance = account.getBalance();
+            listener.balanceChanged(accNo, Ledger.WITHDRAWAL, amount, balance);
+            return balance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Move money between two accounts; either both balances change or neither does.
+    // The source may go into overdraft as far as its account type allows.
+    // Returns the source account's new balance (amounts in cents).
+    public long transfer(int fromAccNo, int toAccNo, long amount)
+            throws AccountNotFoundException, InvalidAmountException, InsufficientBalanceException {
+        if (fromAccNo == toAccNo) {
+            throw new InvalidAmountException("Cannot transfer to the same account");
+        }
+        int a = stripeOf(fromAccNo);
+        int b = stripeOf(toAccNo);
+        ReentrantLock first = stripes[Math.min(a, b)];
+        ReentrantLock second = stripes[Math.max(a, b)];
+        first.lock();
+        try {
+            second.lock(); // same lock as first when both accounts share a stripe (reentrant)
+            try {
+                BankAccount from = require(fromAccNo);
+                BankAccount to = require(toAccNo);
+                from.withdraw(amount);
+                try {
+                    // The amount was already validated as positive by withdraw; only an
+                    // overflow of the destination's balance can fail here
+                    to.deposit(amount);
+                } catch (ArithmeticException e) {
+                    from.undo(-amount);
+                    throw e;
+                }
+                long balance = from.getBalance();
+                try {
+                    listener.transferred(fromAccNo, toAccNo, amount, balance, to.getBalance());
+                } catch (RuntimeException e) {
+                    to.undo(amount);
+                    from.undo(-amount);
+                    throw e;
+                }
+                return balance;
+            } finally {
+                second.unlock();
+            }
+        } finally {
+            first.unlock();
+        }
+    }
+
+    // Run an action while holding the stripes of all given accounts.
+    // Stripes are taken in ascending order, the same rule transfers follow.
+    public void withAccountsLocked(int[] accNos, Runnable action) {
+        boolean[] needed = new boolean[stripes.length];
+        for (int accNo : accNos) {
+            needed[stripeOf(accNo)] = true;
+        }
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                if (needed[locked]) {
+                    stripes[locked].lock();
+                }
+            }
+            action.run();
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                if (needed[i]) {
+                    stripes[i].unlock();
+                }
+            }
+        }
+    }
+
+    // Run an action on an account while holding its stripe, e.g. to read a consistent balance
+    public void withAccountLocked(int accNo, Runnable action) {
+        ReentrantLock lock = stripes[stripeOf(accNo)];
+        lock.lock();
+        try {
+            action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.nio.file.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Throughput of durable transfers through the TransactionEngine and the BalanceWriter
+// journal, with one fsync per transfer (bank.writer.groupCommit=false) and with group
+// commit, at several thread counts. Every transfer is acknowledged only once its
+// journal group is on disk; the database side is left out (the flusher never runs),
+// so the numbers show what the journal allows before JDBC batching takes over.
+// Run: java TransferBenchmark [threads...]     (journals go to -Dbench.dir, default a temp dir)
+class TransferBenchmark {
+    private static final int ACCOUNTS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = { 1, 4, 16, 64 };
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        long millis = Long.getLong("bench.millis", 3000L);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            BankingApp.accounts.add(new CurrentAccount(i, "Customer " + i, 1_000_000, "c" + i + "@mail.example.com"));
+        }
+        String dir = System.getProperty("bench.dir");
+        Path base = dir != null ? Files.createDirectories(Paths.get(dir)) : Files.createTempDirectory("transfer-bench");
+
+        System.out.printf("%-14s %8s %14s %12s %16s%n", "mode", "threads", "transfers/s", "fsyncs/s",
+                "transfers/fsync");
+        int run = 0;
+        for (int threads : threadCounts) {
+            for (boolean groupCommit : new boolean[] { false, true }) {
+                // No database: batches never fill and the flush interval never ends
+                BalanceWriter writer = new BalanceWriter(base.resolve("journal-" + run++), Integer.MAX_VALUE,
+                        Long.MAX_VALUE, false, true, groupCommit, null);
+                TransactionEngine engine = new TransactionEngine(BankingApp::findaccount, 1024,
+                        new TransactionEngine.BalanceListener() {
+                            @Override
+                            public void balanceChanged(int accountNumber, short type, long amount, long newBalance) {
+                            }
+
+                            @Override
+                            public void transferred(int fromAccNo, int toAccNo, long amount, long fromBalance,
+                                    long toBalance) {
+                                try {
+                                    writer.submitAll(new int[] { fromAccNo, toAccNo },
+                                            new long[] { fromBalance, toBalance });
+                                } catch (java.io.IOException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                        });
+                String mode = groupCommit ? "group commit" : "single commit";
+                measure(mode, threads, millis / 3, engine, writer, false); // warmup
+                measure(mode, threads, millis, engine, writer, true);
+            }
+        }
+        System.exit(0);
+    }
+
+    // Every thread transfers between random pairs of accounts until the time is up
+    private static void measure(String mode, int threads, long millis, TransactionEngine engine,
+            BalanceWriter writer, boolean print) throws InterruptedException {
+        long[] done = new long[threads];
+        long forcesBefore = writer.getForces();
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.nanoTime() < deadline) {
+                        int from = random.nextInt(ACCOUNTS);
+                        int to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                        try {
+                            engine.transfer(from, to, 1 + random.nextInt(100));
+                            done[id]++;
+                        } catch (InsufficientBalanceException e) {
+                            // overdraft limit reached, pick another pair
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (!print) {
+            return;
+        }
+        long transfers = 0;
+        for (long n : done) {
+            transfers += n;
+        }
+        long forces = writer.getForces() - forcesBefore;
+        System.out.printf("%-14s %8d %14.0f %12.0f %16.1f%n", mode, threads, transfers / seconds, forces / seconds,
+                forces == 0 ? 0 : (double) transfers / forces);
+    }
+}
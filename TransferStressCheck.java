@@ -0,0 +1,170 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Stress check for TransactionEngine: many threads transfer between random accounts at
+// once, and every other thread keeps sending money back and forth between one fixed pair
+// in opposite directions. Few accounts and few lock stripes make threads collide on the
+// same stripes all the time. Afterwards the money in the bank must be unchanged, no
+// balance may be below what its account type allows, and every account must hold the
+// last balance the listener was told about. If the threads do not finish in time the
+// check fails and prints the threads the JVM finds deadlocked. Finally a transfer into an
+// account whose balance would overflow must fail and leave both balances as they were.
+// Runs without the database.
+// Run: java TransferStressCheck [threads] [transfers per thread]     (exit code 1 if a check fails)
+class TransferStressCheck {
+    private static final int ACCOUNTS = 32;
+    private static final int STRIPES = 8;
+    private static final long OPENING_BALANCE = 100_000;
+    private static final long OVERDRAFT_LIMIT = 10000 * Money.CENTS_PER_UNIT; // as in CurrentAccount
+    private static final long TIMEOUT_MILLIS = Long.getLong("bank.stresscheck.timeoutMs", 60_000L);
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int transfers = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        // Current accounts can go into overdraft, savings accounts cannot
+        BankAccount[] accounts = new BankAccount[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = i % 2 == 0
+                    ? new SavingsAccount(i, "Saver " + i, OPENING_BALANCE, "s" + i + "@mail.example.com")
+                    : new CurrentAccount(i, "Spender " + i, OPENING_BALANCE, "c" + i + "@mail.example.com");
+        }
+        long[] reported = new long[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            reported[i] = OPENING_BALANCE;
+        }
+        // The listener runs with the stripes held, so plain writes are ordered per account
+        TransactionEngine engine = new TransactionEngine(accNo -> accNo >= 0 && accNo < ACCOUNTS
+                ? accounts[accNo] : null, STRIPES, (accNo, type, amount, newBalance) -> reported[accNo] = newBalance);
+
+        AtomicLong done = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        Throwable[] error = new Throwable[1];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    for (int n = 0; n < transfers; n++) {
+                        int from;
+                        int to;
+                        if (id % 2 == 0) {
+                            from = random.nextInt(ACCOUNTS);
+                            to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                        } else {
+                            // Opposite pairs: thread 1 sends 0 -> 1 while thread 3 sends 1 -> 0, and so on
+                            int pair = (id / 4) % (ACCOUNTS / 2);
+                            boolean forward = id % 4 == 1;
+                            from = forward ? pair * 2 : pair * 2 + 1;
+                            to = forward ? pair * 2 + 1 : pair * 2;
+                        }
+                        try {
+                            engine.transfer(from, to, 1 + random.nextInt(50_000));
+                            done.incrementAndGet();
+                        } catch (InsufficientBalanceException e) {
+                            refused.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (error) {
+                        if (error[0] == null) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            }, "transfer-" + t);
+            workers[t].setDaemon(true); // a deadlocked worker must not keep the JVM alive
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        long deadline = begin + TIMEOUT_MILLIS * 1_000_000;
+        boolean finished = true;
+        for (Thread worker : workers) {
+            worker.join(Math.max(1, (deadline - System.nanoTime()) / 1_000_000));
+            if (worker.isAlive()) {
+                finished = false;
+                break;
+            }
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.printf("%d threads, %d transfers applied, %d refused in %.2f s%n",
+                threads, done.get(), refused.get(), seconds);
+
+        check("all threads finished within " + TIMEOUT_MILLIS + " ms", finished);
+        if (!finished) {
+            printDeadlocks();
+            System.exit(1);
+        }
+        check("no worker failed" + (error[0] == null ? "" : " (" + error[0] + ")"), error[0] == null);
+
+        long total = 0;
+        boolean withinLimits = true;
+        boolean matchesListener = true;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            long balance = accounts[i].getBalance();
+            total += balance;
+            if (accounts[i] instanceof SavingsAccount ? balance < 0 : balance < -OVERDRAFT_LIMIT) {
+                withinLimits = false;
+                System.out.println("  account " + i + " at " + Money.format(balance));
+            }
+            matchesListener &= reported[i] == balance;
+        }
+        check("total conserved (" + Money.format(total) + ")", total == ACCOUNTS * OPENING_BALANCE);
+        check("no balance below its account's limit", withinLimits);
+        check("listener saw the final balance of every account", matchesListener);
+        check("transfers were applied", done.get() > 0);
+        checkOverflow();
+
+        System.out.println(failures == 0 ? "All stress checks passed." : failures + " stress check(s) failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // The deposit fails after the withdraw has been applied; the source must get the money back
+    private static void checkOverflow() throws Exception {
+        BankAccount from = new SavingsAccount(0, "Sender", OPENING_BALANCE, "sender@mail.example.com");
+        BankAccount to = new SavingsAccount(1, "Full", Long.MAX_VALUE - 10, "full@mail.example.com");
+        boolean[] notified = { false };
+        TransactionEngine engine = new TransactionEngine(accNo -> accNo == 0 ? from : accNo == 1 ? to : null, STRIPES,
+                (accNo, type, amount, newBalance) -> notified[0] = true);
+        boolean failed = false;
+        try {
+            engine.transfer(0, 1, 11);
+        } catch (ArithmeticException e) {
+            failed = true;
+        }
+        check("transfer that would overflow the destination fails", failed);
+        check("overflowing transfer left both balances unchanged",
+                from.getBalance() == OPENING_BALANCE && to.getBalance() == Long.MAX_VALUE - 10);
+        check("listener not told about the overflowing transfer", !notified[0]);
+    }
+
+    private static void printDeadlocks() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long[] ids = bean.findDeadlockedThreads();
+        if (ids == null) {
+            System.out.println("  no deadlock found by the JVM; the workers are slow or stuck elsewhere");
+            return;
+        }
+        for (ThreadInfo info : bean.getThreadInfo(ids, true, true)) {
+            System.out.print("  " + info);
+        }
+    }
+
+    private static void check(String name, boolean ok) {
+        System.out.println((ok ? "OK   " : "FAIL ") + name);
+        if (!ok) {
+            failures++;
+        }
+    }
+}
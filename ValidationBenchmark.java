@@ -0,0 +1,48 @@
+import java.util.regex.Pattern;
+
+// Compares the old per-call regex validation with AccountValidator.
+// Run: java ValidationBenchmark
+class ValidationBenchmark {
+    private static final String REGEX = "^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,}$";
+    private static final Pattern PATTERN = Pattern.compile(REGEX);
+
+    public static void main(String[] args) throws Exception {
+        String[] emails = new String[1024];
+        for (int i = 0; i < emails.length; i++) {
+            // One in eight is invalid, roughly what an import with typos looks like
+            emails[i] = i % 8 == 0 ? "customer" + i + "@example" : "customer." + i + "@mail.example.com";
+        }
+        for (String email : emails) {
+            if ((AccountValidator.checkEmail(email) == AccountValidator.OK) != email.matches(REGEX)) {
+                throw new AssertionError("Validators disagree on " + email);
+            }
+        }
+        int mask = emails.length - 1;
+        int ops = 200_000;
+
+        Bench.run("email: String.matches (old)", ops, i -> emails[i & mask].matches(REGEX) ? 1 : 0);
+        Bench.run("email: precompiled Pattern", ops, i -> PATTERN.matcher(emails[i & mask]).matches() ? 1 : 0);
+        Bench.run("email: AccountValidator.checkEmail", ops, i -> AccountValidator.checkEmail(emails[i & mask]));
+
+        // Old flow: regex check, then exception on failure
+        Bench.run("new account, exceptions (old)", ops, i -> {
+            try {
+                String email = emails[i & mask];
+                if (!email.matches(REGEX)) {
+                    throw new InvalidEmailException("Invalid email format. Please use format: example@domain.com");
+                }
+                return new SavingsAccount(i, "Customer", 1000, email).getAccountNumber();
+            } catch (InvalidEmailException e) {
+                return -1;
+            }
+        });
+        // New bulk flow: result code, no exception for expected failures
+        Bench.run("new account, result codes", ops, i -> {
+            String email = emails[i & mask];
+            if (AccountValidator.checkNewAccount("Customer", email, 1000) != AccountValidator.OK) {
+                return -1;
+            }
+            return new SavingsAccount(i, "Customer", 1000, email).getAccountNumber();
+        });
+    }
+}
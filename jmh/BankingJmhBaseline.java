@@ -0,0 +1,49 @@
+import java.nio.file.Paths;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the JMH suite (bench.BankingJmh) with the GC profiler and records or checks a
+// baseline in Bench's file format, under the names BankingBenchmark prints:
+// -Dbench.save=<file> writes the results, -Dbench.baseline=<file> compares with a saved
+// baseline (exit code 1 on regressions, tolerance -Dbench.tolerance, default 0.25).
+// Other arguments are passed to JMH, for example a benchmark name pattern.
+// Run: java -Dbench.save=benchmarks/baseline.txt -cp target/benchmarks.jar BankingJmhBaseline
+public final class BankingJmhBaseline {
+    private BankingJmhBaseline() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions command = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(command).addProfiler(GCProfiler.class);
+        if (command.getIncludes().isEmpty()) {
+            builder.include("bench.BankingJmh");
+        }
+        Options options = builder.build();
+
+        for (RunResult run : new Runner(options).run()) {
+            String benchmark = run.getParams().getBenchmark();
+            Result<?> allocated = run.getSecondaryResults().get("gc.alloc.rate.norm");
+            Bench.results.put(BankingJmhWorkloads.workloadName(benchmark.substring(benchmark.lastIndexOf('.') + 1)),
+                    new double[] { run.getPrimaryResult().getScore(), allocated != null ? allocated.getScore() : -1 });
+        }
+
+        String save = System.getProperty("bench.save");
+        if (save != null) {
+            Bench.saveResults(Paths.get(save),
+                    "JMH " + (args.length == 0 ? "with the settings on bench.BankingJmh" : String.join(" ", args)));
+        }
+        String baseline = System.getProperty("bench.baseline");
+        if (baseline != null) {
+            double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.25"));
+            if (Bench.compareWithBaseline(Paths.get(baseline), tolerance) > 0) {
+                System.exit(1);
+            }
+        }
+    }
+}
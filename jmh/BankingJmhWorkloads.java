@@ -0,0 +1,56 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntToLongFunction;
+
+// Bridge from the JMH suite to BankingBenchmark's workloads. JMH accepts benchmark
+// classes only in a named package, and code in a named package cannot refer to the
+// application's classes in the unnamed package, so bench.BankingJmh looks this class up
+// by name and calls each workload through a JDK interface.
+public final class BankingJmhWorkloads {
+    // @Benchmark method of bench.BankingJmh, and the BankingBenchmark workload it runs
+    static final String[][] BENCHMARKS = {
+            { "findaccountHit", "findaccount (hit)" },
+            { "registryMiss", "AccountRegistry.get (miss)" },
+            { "deposit", "BankAccount.deposit" },
+            { "withdraw", "BankAccount.withdraw" },
+            { "withdrawIntoOverdraft", "CurrentAccount.withdraw into overdraft" },
+            { "withdrawOverLimit", "CurrentAccount.withdraw over limit (rejected)" },
+            { "engineDeposit", "TransactionEngine.deposit" },
+            { "engineTransfer", "TransactionEngine.transfer" },
+            { "calculateInterest", "SavingsAccount.CalculateInterest (no output)" },
+            { "interestFor", "SavingsAccount.interestFor" },
+            { "newSavingsAccount", "new SavingsAccount" },
+            { "validatedNewAccount", "validated new account (1 in 8 invalid)" },
+            { "requireValidNewAccountInvalid", "requireValidNewAccount (invalid, throws)" },
+    };
+
+    private BankingJmhWorkloads() {
+    }
+
+    // The workloads by benchmark method name
+    public static Map<String, IntToLongFunction> byMethod() throws Exception {
+        Map<String, Bench.Op> workloads = BankingBenchmark.workloads();
+        Map<String, IntToLongFunction> result = new HashMap<>();
+        for (String[] benchmark : BENCHMARKS) {
+            Bench.Op op = workloads.get(benchmark[1]);
+            result.put(benchmark[0], i -> {
+                try {
+                    return op.run(i);
+                } catch (Exception e) {
+                    throw new IllegalStateException(benchmark[1] + " failed", e);
+                }
+            });
+        }
+        return result;
+    }
+
+    // BankingBenchmark's name for a benchmark method
+    static String workloadName(String method) {
+        for (String[] benchmark : BENCHMARKS) {
+            if (benchmark[0].equals(method)) {
+                return benchmark[1];
+            }
+        }
+        return method;
+    }
+}
@@ -0,0 +1,131 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToLongFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JMH version of BankingBenchmark, without the JDBC paths. Every benchmark runs the
+// BankingBenchmark workload of the same name in BankingJmhWorkloads.BENCHMARKS, with its
+// own field so each call site sees one implementation and the JIT inlines it. The
+// returned value goes to JMH's blackhole. Each benchmark gets its own fork, so one
+// benchmark's profile does not shape the next.
+// Run: java -jar target/benchmarks.jar -prof gc
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BankingJmh {
+    private IntToLongFunction findaccountHit;
+    private IntToLongFunction registryMiss;
+    private IntToLongFunction deposit;
+    private IntToLongFunction withdraw;
+    private IntToLongFunction withdrawIntoOverdraft;
+    private IntToLongFunction withdrawOverLimit;
+    private IntToLongFunction engineDeposit;
+    private IntToLongFunction engineTransfer;
+    private IntToLongFunction calculateInterest;
+    private IntToLongFunction interestFor;
+    private IntToLongFunction newSavingsAccount;
+    private IntToLongFunction validatedNewAccount;
+    private IntToLongFunction requireValidNewAccountInvalid;
+
+    private int i; // operation index, as Bench passes it
+    private PrintStream console;
+
+    @Setup
+    public void setUp() throws Exception {
+        @SuppressWarnings("unchecked")
+        Map<String, IntToLongFunction> workloads = (Map<String, IntToLongFunction>) Class
+                .forName("BankingJmhWorkloads").getMethod("byMethod").invoke(null);
+        for (Map.Entry<String, IntToLongFunction> workload : workloads.entrySet()) {
+            BankingJmh.class.getDeclaredField(workload.getKey()).set(this, workload.getValue());
+        }
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // CalculateInterest prints its result
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public long findaccountHit() {
+        return findaccountHit.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long registryMiss() {
+        return registryMiss.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long deposit() {
+        return deposit.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long withdraw() {
+        return withdraw.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long withdrawIntoOverdraft() {
+        return withdrawIntoOverdraft.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long withdrawOverLimit() {
+        return withdrawOverLimit.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long engineDeposit() {
+        return engineDeposit.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long engineTransfer() {
+        return engineTransfer.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long calculateInterest() {
+        return calculateInterest.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long interestFor() {
+        return interestFor.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long newSavingsAccount() {
+        return newSavingsAccount.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long validatedNewAccount() {
+        return validatedNewAccount.applyAsLong(i++);
+    }
+
+    @Benchmark
+    public long requireValidNewAccountInvalid() {
+        return requireValidNewAccountInvalid.applyAsLong(i++);
+    }
+}
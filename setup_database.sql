@@ -7,13 +7,45 @@ CREATE DATABASE IF NOT EXISTS bankdb;
 -- Use the database
 USE bankdb;
 
--- Create accounts table
+-- Create accounts table (the layout of the latest schema migration, see SchemaMigrations.java;
+-- the application records the migration versions on its first start)
 CREATE TABLE IF NOT EXISTS accounts (
     account_number INT PRIMARY KEY,
     holder_name VARCHAR(100) NOT NULL,
-    balance DOUBLE NOT NULL,
+    balance BIGINT NOT NULL, -- in cents
     email VARCHAR(100) NOT NULL,
-    account_type VARCHAR(20) NOT NULL
+    account_type TINYINT NOT NULL DEFAULT 0, -- 0 savings, 1 current
+    version BIGINT NOT NULL DEFAULT 0, -- incremented on every balance update
+    updated_at TIMESTAMP(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6)
+        ON UPDATE CURRENT_TIMESTAMP(6), -- time of the last change, read by the snapshot catch-up
+    created_at TIMESTAMP(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6),
+    INDEX idx_accounts_updated_at (updated_at),
+    INDEX idx_accounts_email (email),
+    INDEX idx_accounts_holder_name (holder_name)
+)
+PARTITION BY RANGE (account_number) (
+    PARTITION p0 VALUES LESS THAN (100000000),
+    PARTITION p1 VALUES LESS THAN (200000000),
+    PARTITION p2 VALUES LESS THAN (300000000),
+    PARTITION p3 VALUES LESS THAN (400000000),
+    PARTITION p4 VALUES LESS THAN (500000000),
+    PARTITION p5 VALUES LESS THAN (600000000),
+    PARTITION p6 VALUES LESS THAN (700000000),
+    PARTITION p7 VALUES LESS THAN (800000000),
+    PARTITION p8 VALUES LESS THAN (900000000),
+    PARTITION p9 VALUES LESS THAN (1000000000),
+    PARTITION p10 VALUES LESS THAN (1100000000),
+    PARTITION p11 VALUES LESS THAN (1200000000),
+    PARTITION p12 VALUES LESS THAN (1300000000),
+    PARTITION p13 VALUES LESS THAN (1400000000),
+    PARTITION p14 VALUES LESS THAN (1500000000),
+    PARTITION p15 VALUES LESS THAN (1600000000),
+    PARTITION p16 VALUES LESS THAN (1700000000),
+    PARTITION p17 VALUES LESS THAN (1800000000),
+    PARTITION p18 VALUES LESS THAN (1900000000),
+    PARTITION p19 VALUES LESS THAN (2000000000),
+    PARTITION p20 VALUES LESS THAN (2100000000),
+    PARTITION pmax VALUES LESS THAN MAXVALUE
 );
 
 -- Display message